@@ -0,0 +1,70 @@
+package com.hmdp.annotation;
+
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 查询缓存，由HmdpCacheAspect处理，方法体就是查数据库的逻辑，缓存未命中时才执行
+ * 缓存的key为 prefix + key，走RedisUtil，本地缓存、热点key、布隆过滤器、指标都和手写的RedisUtil调用一样
+ * 注意：
+ *      逻辑过期模式下方法会在重建线程池里再被调用，方法里不要用UserHolder之类的线程变量
+ *      返回的对象可能在本地缓存中共享，调用方要修改时先复制一份
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface HmdpCacheable {
+
+    enum Mode {
+        //TTL过期，未命中时互斥锁保证只有一个请求查数据库，适合普通详情
+        MUTEX,
+        //逻辑过期，过期后返回旧数据并异步重建，适合热点数据
+        LOGICAL_EXPIRE,
+        //TTL过期，未命中时直接查数据库不加锁，适合查询很便宜的数据
+        READ_THROUGH
+    }
+
+    /**
+     * 缓存前缀，如 cache:shop::
+     */
+    String prefix();
+
+    /**
+     * 缓存key，SpEL表达式，如 #id；不填时用参数拼接，多个参数用:分隔
+     * 批量模式下忽略，key为集合里的每个id
+     */
+    String key() default "";
+
+    Mode mode() default Mode.MUTEX;
+
+    /**
+     * 缓存时间，逻辑过期模式下是逻辑过期时间
+     */
+    long ttl() default 30;
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+
+    /**
+     * 缓存时间的随机浮动比例，同时写入的key不会同时过期
+     */
+    double jitter() default 0.1;
+
+    /**
+     * 数据库里没有时是否缓存空值，防止缓存穿透
+     */
+    boolean cacheNull() default true;
+
+    /**
+     * 空值的缓存时间，单位秒
+     */
+    long nullTtlSeconds() default 60;
+
+    /**
+     * 批量模式：方法只有一个参数，是id的集合，返回id -> 对象的Map
+     * 缓存里已有的id不会传给方法，方法只查未命中的id，不支持逻辑过期
+     */
+    boolean batch() default false;
+}
@@ -0,0 +1,132 @@
+package com.hmdp.aspect;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.hmdp.annotation.HmdpCacheable;
+import com.hmdp.utils.CacheLoadOptions;
+import com.hmdp.utils.RedisUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @HmdpCacheable的切面，按注解的模式调用RedisUtil，未命中时再执行目标方法查数据库
+ */
+@Component
+@Aspect
+@Slf4j
+public class HmdpCacheAspect {
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    private final SpelExpressionParser parser = new SpelExpressionParser();
+
+    private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
+
+    //方法 -> 解析好的注解配置，注解和返回类型每次调用都一样，只解析一次
+    private final ConcurrentHashMap<Method, CacheOperation> operations = new ConcurrentHashMap<>();
+
+    private static class CacheOperation {
+        private HmdpCacheable annotation;
+        private CacheLoadOptions options;
+        //缓存值的类型，批量模式下是Map的value类型
+        private JavaType valueType;
+        private Expression keyExpression;
+    }
+
+    @Around("@annotation(com.hmdp.annotation.HmdpCacheable)")
+    public Object cache(ProceedingJoinPoint joinPoint) throws Throwable {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        CacheOperation operation = operations.computeIfAbsent(method, this::parse);
+        HmdpCacheable annotation = operation.annotation;
+        Object[] args = joinPoint.getArgs();
+
+        if (annotation.batch()) {
+            Collection<Object> ids = (Collection<Object>) args[0];
+            return redisUtil.multiGetOrLoad(annotation.prefix(), ids, operation.valueType,
+                    missing -> (Map<Object, Object>) proceed(joinPoint, new Object[]{missing}), operation.options);
+        }
+        Object key = key(operation, method, joinPoint.getTarget(), args);
+        if (annotation.mode() == HmdpCacheable.Mode.LOGICAL_EXPIRE) {
+            return redisUtil.getValueTime(annotation.prefix(), key, operation.valueType,
+                    () -> proceed(joinPoint, args), operation.options);
+        }
+        return redisUtil.getValueTTL(annotation.prefix(), key, operation.valueType,
+                () -> proceed(joinPoint, args), operation.options);
+    }
+
+    private CacheOperation parse(Method method) {
+        HmdpCacheable annotation = method.getAnnotation(HmdpCacheable.class);
+        if (annotation.batch() && annotation.mode() == HmdpCacheable.Mode.LOGICAL_EXPIRE) {
+            throw new IllegalStateException("批量缓存不支持逻辑过期：" + method);
+        }
+        if (annotation.batch() && (method.getParameterCount() != 1
+                || !Collection.class.isAssignableFrom(method.getParameterTypes()[0])
+                || !Map.class.isAssignableFrom(method.getReturnType()))) {
+            throw new IllegalStateException("批量缓存的方法只能有一个集合参数并返回Map：" + method);
+        }
+        CacheOperation operation = new CacheOperation();
+        operation.annotation = annotation;
+
+        CacheLoadOptions options = new CacheLoadOptions();
+        options.setTtlMillis(annotation.unit().toMillis(annotation.ttl()));
+        options.setJitter(annotation.jitter());
+        options.setCacheNull(annotation.cacheNull());
+        options.setNullTtlMillis(TimeUnit.SECONDS.toMillis(annotation.nullTtlSeconds()));
+        options.setMutex(annotation.mode() != HmdpCacheable.Mode.READ_THROUGH);
+        operation.options = options;
+
+        JavaType returnType = TypeFactory.defaultInstance().constructType(method.getGenericReturnType());
+        operation.valueType = annotation.batch() ? returnType.getContentType() : returnType;
+        if (!annotation.key().isEmpty()) {
+            operation.keyExpression = parser.parseExpression(annotation.key());
+        }
+        return operation;
+    }
+
+    //id是数字时原样返回，布隆过滤器只认数字id
+    private Object key(CacheOperation operation, Method method, Object target, Object[] args) {
+        if (operation.keyExpression != null) {
+            MethodBasedEvaluationContext context = new MethodBasedEvaluationContext(target, method, args, parameterNameDiscoverer);
+            return operation.keyExpression.getValue(context);
+        }
+        if (args.length == 1) {
+            return args[0];
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                key.append(':');
+            }
+            key.append(args[i]);
+        }
+        return key.toString();
+    }
+
+    //loader里不能抛受检异常，目标方法的异常包一层抛出去
+    private static Object proceed(ProceedingJoinPoint joinPoint, Object[] args) {
+        try {
+            return joinPoint.proceed(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException("缓存加载失败：" + joinPoint.getSignature(), e);
+        }
+    }
+}
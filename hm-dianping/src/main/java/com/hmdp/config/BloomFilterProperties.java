@@ -0,0 +1,37 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 缓存前缀对应的布隆过滤器配置，过滤器里放的是对应表的主键
+ * 没有配置的前缀不做过滤
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache.bloom")
+public class BloomFilterProperties {
+
+    private boolean enabled = true;
+
+    //全量重建的间隔，单位毫秒
+    private long rebuildIntervalMs = 3600000;
+
+    private List<Spec> specs = new ArrayList<>();
+
+    @Data
+    public static class Spec {
+        //缓存前缀，和RedisUtil的keyPrefix一致，例如 cache:shop::
+        private String prefix;
+        //主键所在的表
+        private String table;
+        //预计元素个数，表里实际的行数更多时按行数的2倍计算
+        private long expectedInsertions = 100000;
+        //误判率
+        private double fpp = 0.01;
+    }
+}
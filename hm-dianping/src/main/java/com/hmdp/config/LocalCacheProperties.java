@@ -0,0 +1,32 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RedisUtil一级缓存（本地Caffeine）的配置，按缓存前缀分别配置大小和过期时间
+ * 没有配置的前缀不走一级缓存
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache.local")
+public class LocalCacheProperties {
+
+    private boolean enabled = true;
+
+    private List<Spec> specs = new ArrayList<>();
+
+    @Data
+    public static class Spec {
+        //缓存前缀，和RedisUtil的keyPrefix一致，例如 cache:shop::
+        private String prefix;
+        //最多缓存的条数
+        private long maximumSize = 10000;
+        //写入后多久过期，单位秒，兜底没收到失效广播的情况
+        private long expireAfterWriteSeconds = 30;
+    }
+}
@@ -0,0 +1,140 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.SeckillOrderStatusCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueBuilder;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.config.RetryInterceptorBuilder;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.retry.RejectAndDontRequeueRecoverer;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Map;
+
+@Configuration
+@Slf4j
+public class RabbitMQConfig {
+
+    //未支付订单的延时队列，消息没有消费者，过期后死信转到取消队列
+    public static final String SECKILL_ORDER_DELAY_QUEUE = "seckillOrderDelayQueue_1";
+
+    //订单超时取消队列
+    public static final String SECKILL_ORDER_CANCEL_QUEUE = "seckillOrderCancelQueue_1";
+
+    //新博客推送到粉丝收件箱的队列
+    public static final String BLOG_FEED_QUEUE = "blogFeedQueue_1";
+
+    //未支付订单多久后取消，单位毫秒
+    @Value("${hmdp.seckill.order.cancel.timeout-ms:900000}")
+    private long cancelTimeoutMs;
+
+    //每批最多拉取的消息数
+    @Value("${hmdp.seckill.order.batch.size:100}")
+    private int batchSize;
+
+    //凑批等待时间，超过该时间没有新消息就直接处理已拉到的消息，单位毫秒
+    @Value("${hmdp.seckill.order.batch.wait-ms:50}")
+    private long batchWaitMs;
+
+    //单条消费秒杀订单最多尝试几次，用完才算最终失败
+    @Value("${hmdp.seckill.order.retry.max-attempts:3}")
+    private int orderMaxAttempts;
+
+    //第一次重试前等待的时间，之后每次翻倍，单位毫秒
+    @Value("${hmdp.seckill.order.retry.interval-ms:500}")
+    private long orderRetryIntervalMs;
+
+    /**
+     * 秒杀订单单条消费的容器工厂
+     * 建单失败（数据库抖动等）在消费者线程里退避重试，不写失败状态，客户端继续看到排队中
+     * 重试用完才写最终的失败状态并丢弃消息，避免先告诉客户端失败、重新投递后又建单成功
+     * @param configurer
+     * @param connectionFactory
+     * @param messageConverter
+     * @param seckillOrderStatusCache
+     * @return
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory seckillOrderListenerContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                                     ConnectionFactory connectionFactory,
+                                                                                     MessageConverter messageConverter,
+                                                                                     SeckillOrderStatusCache seckillOrderStatusCache) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setAdviceChain(RetryInterceptorBuilder.stateless()
+                .maxAttempts(orderMaxAttempts)
+                .backOffOptions(orderRetryIntervalMs, 2.0, orderRetryIntervalMs * 4)
+                .recoverer(new RejectAndDontRequeueRecoverer() {
+                    @Override
+                    public void recover(Message message, Throwable cause) {
+                        try {
+                            Map<String, Object> msg = (Map<String, Object>) messageConverter.fromMessage(message);
+                            seckillOrderStatusCache.failed(((Number) msg.get("orderId")).longValue(),
+                                    ((Number) msg.get("userId")).longValue(), cause.getMessage());
+                        } catch (Exception e) {
+                            log.error("秒杀订单消息解析失败:{}", new String(message.getBody()), e);
+                        }
+                        super.recover(message, cause);
+                    }
+                })
+                .build());
+        return factory;
+    }
+
+    /**
+     * 秒杀订单批量消费的容器工厂
+     * 先用SpringBoot的configurer套用yaml里的默认配置（消息转换器等），再覆盖成批量+手动确认
+     * @param configurer
+     * @param connectionFactory
+     * @return
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                              ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        //监听方法接收List<Message>
+        factory.setBatchListener(true);
+        //由消费者自己凑批，凑满batchSize或者等待batchWaitMs没有新消息就交给监听方法
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(batchWaitMs);
+        //yaml里prefetch为1，批量模式下必须至少能预取一整批
+        factory.setPrefetchCount(batchSize);
+        //每条消息单独ack/nack
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+
+    /**
+     * 延时队列：所有消息的超时时间一样，用队列级别的TTL，先进先过期，不会出现消息级TTL队头阻塞的问题
+     * 过期的消息通过默认交换机死信到取消队列，几十万个待取消订单也只是队列里的几十万条消息，不占线程
+     * 注意：TTL是队列的声明参数，修改timeout-ms后要先在rabbitmq里删掉旧队列，否则声明冲突
+     * @return
+     */
+    @Bean
+    public Queue seckillOrderDelayQueue() {
+        return QueueBuilder.durable(SECKILL_ORDER_DELAY_QUEUE)
+                .ttl((int) cancelTimeoutMs)
+                .deadLetterExchange("")
+                .deadLetterRoutingKey(SECKILL_ORDER_CANCEL_QUEUE)
+                .build();
+    }
+
+    @Bean
+    public Queue seckillOrderCancelQueue() {
+        return QueueBuilder.durable(SECKILL_ORDER_CANCEL_QUEUE).build();
+    }
+
+    @Bean
+    public Queue blogFeedQueue() {
+        return QueueBuilder.durable(BLOG_FEED_QUEUE).build();
+    }
+}
@@ -0,0 +1,68 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JacksonCacheCodec;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.SeckillStockAllotment;
+import com.hmdp.utils.SeckillStockUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class RedisConfig {
+
+    /**
+     * redis发布订阅的监听容器，各组件在自己的@PostConstruct里往容器注册要订阅的频道
+     * 用于在server1/server2之间广播本地状态的变化
+     * @param factory
+     * @return
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory factory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(factory);
+        return container;
+    }
+
+    /**
+     * RedisUtil缓存值的编码，json可读，smile更小更快
+     * 切换编码后旧编码的缓存会解析失败，按未命中重新加载
+     * @param codec
+     * @return
+     */
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:json}") String codec) {
+        return "smile".equalsIgnoreCase(codec) ? JacksonCacheCodec.smile() : JacksonCacheCodec.json();
+    }
+
+    /**
+     * 秒杀库存本地配额，hmdp.seckill.allotment.enabled为true时才创建
+     * 节点关闭时归还本地没卖掉的库存
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty(name = "hmdp.seckill.allotment.enabled", havingValue = "true")
+    public SeckillStockAllotment seckillStockAllotment(StringRedisTemplate stringRedisTemplate,
+                                                       SeckillStockUtil seckillStockUtil,
+                                                       @Value("${hmdp.seckill.allotment.lease-size:200}") int leaseSize,
+                                                       @Value("${hmdp.seckill.allotment.batch-size:100}") int batchSize) {
+        return new SeckillStockAllotment(stringRedisTemplate, seckillStockUtil, leaseSize, batchSize);
+    }
+
+    /**
+     * redis熔断器，RedisUtil的缓存读写、登录token校验、秒杀下单通过它访问redis
+     * @param properties
+     * @param meterRegistry
+     * @return
+     */
+    @Bean
+    public RedisCircuitBreaker redisCircuitBreaker(RedisDegradeProperties properties, MeterRegistry meterRegistry) {
+        return new RedisCircuitBreaker(properties, meterRegistry);
+    }
+}
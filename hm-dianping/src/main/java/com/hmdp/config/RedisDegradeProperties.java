@@ -0,0 +1,46 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * redis熔断和降级的配置，见RedisCircuitBreaker
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.redis.degrade")
+public class RedisDegradeProperties {
+
+    private boolean enabled = true;
+
+    //统计最近多少次调用的失败率
+    private int windowSize = 100;
+
+    //窗口内至少有这么多次调用才判断失败率
+    private int minimumCalls = 20;
+
+    //失败率达到这个比例熔断，慢调用也算失败
+    private double failureRateThreshold = 0.5;
+
+    //超过这个时间的调用算慢调用，单位毫秒
+    private long slowCallMs = 200;
+
+    //熔断后多久放少量请求去试探，单位毫秒
+    private long openMs = 5000;
+
+    //试探的请求数，全部成功才恢复
+    private int halfOpenCalls = 5;
+
+    //熔断期间本地没有旧数据时，同时直接查数据库的最大请求数
+    private int dbConcurrency = 10;
+
+    //熔断期间每秒最多直接查数据库的次数
+    private int dbPermitsPerSecond = 200;
+
+    //熔断期间可以返回的旧数据在本地保留多久，单位秒
+    private long staleSeconds = 600;
+
+    //本地最多保留多少条旧数据
+    private long staleMaximumSize = 50000;
+}
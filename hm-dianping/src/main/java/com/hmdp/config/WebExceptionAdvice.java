@@ -1,6 +1,7 @@
 package com.hmdp.config;
 
 import com.hmdp.dto.Result;
+import com.hmdp.utils.RedisUnavailableException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
@@ -9,6 +10,13 @@ import org.springframework.web.bind.annotation.RestControllerAdvice;
 @RestControllerAdvice
 public class WebExceptionAdvice {
 
+    //redis熔断、降级查数据库也被限流，让客户端稍后重试
+    @ExceptionHandler(RedisUnavailableException.class)
+    public Result handleRedisUnavailableException(RedisUnavailableException e) {
+        log.warn("redis不可用:{}", e.getMessage());
+        return Result.fail("系统繁忙，请稍后重试");
+    }
+
     @ExceptionHandler(RuntimeException.class)
     public Result handleRuntimeException(RuntimeException e) {
         log.error(e.toString(), e);
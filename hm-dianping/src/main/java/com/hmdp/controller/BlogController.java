@@ -35,15 +35,13 @@ public class BlogController {
         BeanUtils.copyProperties(userDTO,user);
         blog.setUserId(user.getId());
         // 保存探店博文
-        blogService.save(blog);
-        // 返回id
-        return Result.ok(blog.getId());
+        return blogService.saveBlog(blog);
     }
 
     @PutMapping("/like/{id}")
     public Result likeBlog(@PathVariable("id") Long id) {
-        Result r = blogService.likeBlog(id);
-        return Result.ok();
+        //返回点赞之后的状态和点赞数，前端不用再查一次
+        return blogService.likeBlog(id);
     }
 
     @GetMapping("/of/me")
@@ -86,6 +84,12 @@ public class BlogController {
         return blogService.queryBlogByUserId(current, userId);
     }
 
+    @GetMapping("/of/follow")
+    public Result queryBlogOfFollow(@RequestParam("lastId") Long max,
+                                    @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        return blogService.queryBlogOfFollow(max, offset);
+    }
+
     @GetMapping("/{id}")
     public Result queryBlogById(@PathVariable("id") Long blogId){
         return blogService.queryBlogById(blogId);
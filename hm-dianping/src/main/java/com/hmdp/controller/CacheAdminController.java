@@ -0,0 +1,103 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.BlogLikeWriteBack;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheRefreshScheduler;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.LocalCacheManager;
+import com.hmdp.utils.RedisCircuitBreaker;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+@RestController
+@RequestMapping("/admin/cache")
+public class CacheAdminController {
+
+    @Resource
+    private LocalCacheManager localCacheManager;
+
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Resource
+    private CacheRefreshScheduler cacheRefreshScheduler;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private BlogLikeWriteBack blogLikeWriteBack;
+
+    /**
+     * 每个缓存前缀在本地缓存、redis、数据库三层的命中统计和加载耗时，
+     * 同样的数据带直方图的版本在/actuator/prometheus
+     * @return
+     */
+    @GetMapping("stats")
+    public Result cacheStats() {
+        Map<String, Map<String, Object>> stats = new TreeMap<>(cacheMetrics.snapshot());
+        localCacheManager.stats().forEach((keyPrefix, localStats) ->
+                stats.computeIfAbsent(keyPrefix, k -> new TreeMap<>()).putAll(localStats));
+        return Result.ok(stats);
+    }
+
+    /**
+     * 布隆过滤器状态：元素个数、内存占用、拦截次数
+     * @return
+     */
+    @GetMapping("bloom")
+    public Result bloomStats() {
+        return Result.ok(cacheBloomFilter.stats());
+    }
+
+    /**
+     * 逻辑过期缓存的重建统计：去重、丢弃、提前刷新次数，排队时间和过期后多久刷新完成
+     * @return
+     */
+    @GetMapping("refresh")
+    public Result refreshMetrics() {
+        return Result.ok(cacheRefreshScheduler.metrics());
+    }
+
+    /**
+     * 本节点当前的热点key：估算访问次数、晋升时间、值是否在本地
+     * @return
+     */
+    @GetMapping("hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.stats());
+    }
+
+    /**
+     * redis熔断器状态：当前状态、窗口内失败数、被拒绝的调用、降级查数据库被限流的次数
+     * @return
+     */
+    @GetMapping("redis-circuit")
+    public Result redisCircuit() {
+        return Result.ok(redisCircuitBreaker.stats());
+    }
+
+    /**
+     * 点赞数写回数据库的状态：是否主节点、待同步博客数、每批大小、写回延迟
+     * @return
+     */
+    @GetMapping("like-flush")
+    public Result likeFlush() {
+        return Result.ok(blogLikeWriteBack.metrics());
+    }
+}
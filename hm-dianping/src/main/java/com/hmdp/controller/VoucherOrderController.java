@@ -3,11 +3,17 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillAdmissionLimiter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 @RestController
 @RequestMapping("/voucher-order")
@@ -15,9 +21,57 @@ public class VoucherOrderController {
 
     @Autowired
     private IVoucherOrderService voucherOrderServiceImpl;
+
+    @Autowired
+    private SeckillAdmissionLimiter seckillAdmissionLimiter;
+
+    //长轮询和SSE最长等待时间
+    private static final long MAX_WAIT_MILLIS = 30_000L;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) throws InterruptedException {
         Result r = voucherOrderServiceImpl.seckillVoucher(voucherId);
         return r;
     }
+
+    /**
+     * 查询秒杀订单的处理结果
+     * @param orderId 秒杀接口返回的订单id
+     * @return PENDING 排队中 CREATED 下单成功 FAILED 下单失败 CANCELLED 已取消
+     */
+    @GetMapping("seckill/status/{orderId}")
+    public Result querySeckillOrderStatus(@PathVariable("orderId") Long orderId) {
+        return voucherOrderServiceImpl.querySeckillOrderStatus(orderId);
+    }
+
+    /**
+     * 长轮询秒杀订单的处理结果，有结果立即返回，超时返回排队中
+     * @param orderId 订单id
+     * @param timeout 最长等待毫秒，不超过30秒
+     * @return
+     */
+    @GetMapping("seckill/status/{orderId}/wait")
+    public DeferredResult<Result> waitSeckillOrderStatus(@PathVariable("orderId") Long orderId,
+                                                         @RequestParam(value = "timeout", defaultValue = "10000") Long timeout) {
+        return voucherOrderServiceImpl.waitSeckillOrderStatus(orderId, Math.min(Math.max(timeout, 0L), MAX_WAIT_MILLIS));
+    }
+
+    /**
+     * SSE推送秒杀订单的处理结果
+     * @param orderId 订单id
+     * @return
+     */
+    @GetMapping(value = "seckill/status/{orderId}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamSeckillOrderStatus(@PathVariable("orderId") Long orderId) {
+        return voucherOrderServiceImpl.streamSeckillOrderStatus(orderId, MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * 秒杀准入统计：放行数、拒绝数、排队等待时间
+     * @return
+     */
+    @GetMapping("seckill/admission")
+    public Result seckillAdmissionMetrics() {
+        return Result.ok(seckillAdmissionLimiter.metrics());
+    }
 }
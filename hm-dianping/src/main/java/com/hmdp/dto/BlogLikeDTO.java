@@ -0,0 +1,11 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class BlogLikeDTO {
+    //这次操作之后当前用户是否点赞
+    private Boolean isLike;
+    //最新点赞数
+    private Integer liked;
+}
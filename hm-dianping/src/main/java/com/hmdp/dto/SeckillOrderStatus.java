@@ -0,0 +1,23 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class SeckillOrderStatus {
+
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELLED = "CANCELLED";
+
+    private Long orderId;
+    //PENDING 排队中  CREATED 下单成功  FAILED 下单失败  CANCELLED 超时未支付已取消
+    private String status;
+    private Long userId;
+    //失败原因
+    private String reason;
+
+    public boolean isFinished() {
+        return !PENDING.equals(status);
+    }
+}
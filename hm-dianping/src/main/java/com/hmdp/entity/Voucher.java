@@ -90,6 +90,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * redis库存分片数，不传使用默认配置
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
     /**
      * 创建时间
      */
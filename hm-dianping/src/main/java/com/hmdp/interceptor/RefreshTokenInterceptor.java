@@ -1,7 +1,11 @@
 package com.hmdp.interceptor;
 
 import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisUnavailableException;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,6 +25,14 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    //token -> 最近一次从redis读到的用户，redis熔断时用它识别已登录的用户，不至于所有人都被当成未登录
+    private final Cache<String, UserDTO> recentUsers = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(30, TimeUnit.MINUTES)
+            .build();
 
     /**
      * 在请求前执行拦截判断，该拦截器只做刷新token操作，不做实际拦截处理
@@ -36,7 +48,17 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         //获取请求头中的token
         String token = request.getHeader("authorization");
         //根据token获取redis中对应的用户
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries("login:user::"+token);
+        Map<Object, Object> userMap;
+        try{
+            userMap = redisCircuitBreaker.call(() -> stringRedisTemplate.opsForHash().entries("login:user::"+token));
+        }catch (RedisUnavailableException e){
+            //redis不可用，用本节点最近见过的用户，不刷新有效期
+            UserDTO recent = token == null ? null : recentUsers.getIfPresent(token);
+            if(recent != null){
+                UserHolder.saveUser(BeanUtil.copyProperties(recent, UserDTO.class));
+            }
+            return true;
+        }
         if(userMap != null && userMap.size() != 0){
             log.info("检测到用户登录，刷新用户token");
             //有用户信息，将用户信息转为userDTO并存放致ThreadLocal
@@ -44,8 +66,16 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
             UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
             //存在，则将user用户信息存放到ThreadLocal
             UserHolder.saveUser(userDTO);
-            //重新刷新时间
-            stringRedisTemplate.expire("login:user::"+token,30, TimeUnit.MINUTES);
+            recentUsers.put(token, BeanUtil.copyProperties(userDTO, UserDTO.class));
+            //重新刷新时间，刷新失败不影响这次请求
+            try{
+                redisCircuitBreaker.run(() -> stringRedisTemplate.expire("login:user::"+token,30, TimeUnit.MINUTES));
+            }catch (RedisUnavailableException e){
+                log.warn("刷新token有效期失败");
+            }
+        }else if(token != null){
+            //redis里没有了（过期、退出登录），本节点的也删掉
+            recentUsers.invalidate(token);
         }
         return true;
     }
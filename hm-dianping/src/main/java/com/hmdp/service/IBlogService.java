@@ -4,6 +4,10 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 
 public interface IBlogService extends IService<Blog> {
 
@@ -17,10 +21,26 @@ public interface IBlogService extends IService<Blog> {
     Result queryBlogById(Long blogId);
 
     /**
-     * 点赞blog
+     * 根据id查询blog，逻辑过期缓存，不带作者信息
+     * 返回的对象在缓存中共享，修改前先复制
+     * @param blogId
+     * @return 不存在返回null
+     */
+    Blog getBlogById(Long blogId);
+
+    /**
+     * 根据id批量查询blog，不带作者信息，缓存里没有的一次批量查数据库
+     * 返回的对象在缓存中共享，修改前先复制
+     * @param blogIds
+     * @return id -> blog，不存在的id不在结果里
+     */
+    Map<Long, Blog> getBlogsByIds(Collection<Long> blogIds);
+
+    /**
+     * 点赞blog，已经点赞过的取消点赞
      *
      * @param id
-     * @return
+     * @return BlogLikeDTO，这次操作之后是否点赞和最新点赞数
      */
     Result likeBlog(Long id);
 
@@ -33,6 +53,15 @@ public interface IBlogService extends IService<Blog> {
      */
     Result queryHotBlog(Integer current);
 
+    /**
+     * 按点赞数排序的一页blog，逻辑过期缓存，点赞数是写入缓存时的
+     * 热门排行榜不可用时queryHotBlog用它兜底
+     * 返回的列表在缓存中共享，修改前先复制
+     * @param current 页码
+     * @return
+     */
+    List<Blog> getHotBlogPage(Integer current);
+
     /**
      * 根据用户id分页查询博客
      * @param current 页码
@@ -40,4 +69,19 @@ public interface IBlogService extends IService<Blog> {
      * @return
      */
     Result queryBlogByUserId(Integer current, Long userId);
-}
\ No newline at end of file
+
+    /**
+     * 保存博客，并把id加入布隆过滤器和热门排行榜，异步推送到粉丝的收件箱
+     * @param blog
+     * @return
+     */
+    Result saveBlog(Blog blog);
+
+    /**
+     * 滚动分页查询关注的人发的博客，从收件箱feed:{userId}取
+     * @param max 上一页的最小时间戳，第一页传当前时间
+     * @param offset 上一页中时间戳等于max的条数，第一页传0
+     * @return ScrollResult
+     */
+    Result queryBlogOfFollow(Long max, Integer offset);
+}
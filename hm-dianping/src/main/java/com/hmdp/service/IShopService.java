@@ -14,5 +14,20 @@ public interface IShopService extends IService<Shop> {
      */
     Result queryShopById(Long id) throws InterruptedException;
 
+    /**
+     * 根据id查询商铺，互斥锁重建的TTL缓存
+     * 返回的对象在缓存中共享，修改前先复制
+     * @param id
+     * @return 不存在返回null
+     */
+    Shop getShopById(Long id);
+
     int updateShop(Shop shop);
+
+    /**
+     * 新增商铺，并把id加入布隆过滤器
+     * @param shop
+     * @return
+     */
+    Result saveShop(Shop shop);
 }
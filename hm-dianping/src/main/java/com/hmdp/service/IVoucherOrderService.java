@@ -5,6 +5,11 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+
 
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
@@ -18,7 +23,46 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     /**
      * 内部方法，主要用于实现回滚
      * @param seckillVoucher
+     * @return 是否新建了订单，用户已经买过（或消息重复投递）返回false
+     */
+    boolean getResult(Long orderId,Long userId,Long voucherId);
+
+    /**
+     * 内部方法，批量创建订单：按优惠卷聚合扣减库存，一条INSERT写入整批订单
+     * 任意一个优惠卷库存不足会抛异常回滚整批，由调用方逐条兜底
+     * @param voucherOrders
+     * @return 实际写入的订单（去掉了重复下单的）
+     */
+    List<VoucherOrder> getResultBatch(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消超时未支付的订单，归还数据库和redis的库存
+     * 订单已支付或已取消时什么都不做
+     * @param orderId
+     * @return 是否取消成功
+     */
+    boolean cancelUnpaidOrder(Long orderId);
+
+    /**
+     * 查询秒杀订单的处理结果，订单还在排队时只查redis
+     * @param orderId
+     * @return
+     */
+    Result querySeckillOrderStatus(Long orderId);
+
+    /**
+     * 长轮询等待秒杀订单的处理结果，有结果或超时时返回
+     * @param orderId
+     * @param timeoutMs
+     * @return
+     */
+    DeferredResult<Result> waitSeckillOrderStatus(Long orderId, long timeoutMs);
+
+    /**
+     * 用SSE推送秒杀订单的处理结果，先推当前状态，有结果后再推一次并关闭
+     * @param orderId
+     * @param timeoutMs
      * @return
      */
-    void getResult(Long orderId,Long userId,Long voucherId);
+    SseEmitter streamSeckillOrderStatus(Long orderId, long timeoutMs);
 }
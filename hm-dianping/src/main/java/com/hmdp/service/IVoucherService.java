@@ -10,4 +10,12 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 秒杀卷补库存，同时加数据库和redis的库存，并清除各节点的售罄标记
+     * @param voucherId
+     * @param count 补充的数量
+     * @return
+     */
+    Result restockSeckillVoucher(Long voucherId, Integer count);
 }
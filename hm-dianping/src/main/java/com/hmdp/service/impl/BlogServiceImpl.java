@@ -1,44 +1,54 @@
 package com.hmdp.service.impl;
 
 import ch.qos.logback.classic.spi.EventArgUtil;
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
-import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
-import com.hmdp.dto.BlogListToJsonDTO;
+import com.hmdp.annotation.HmdpCacheable;
+import com.hmdp.dto.BlogLikeDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
-import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.BlogFeedFanout;
+import com.hmdp.utils.BlogHotRanking;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.RedisUnavailableException;
 import com.hmdp.utils.RedisUtil;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserSummaryLoader;
 import com.hmdp.utils.UserHolder;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
-import javax.annotation.PreDestroy;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_RANK_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_DIRTY_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+
 
 @Service
 @Slf4j
@@ -49,7 +59,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private BlogMapper blogMapper;
 
     @Autowired
-    private UserMapper userMapper;
+    private UserSummaryLoader userSummaryLoader;
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
@@ -61,6 +71,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Autowired
     private RedisUtil redisUtil;
 
+    @Autowired
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Autowired
+    private BlogHotRanking blogHotRanking;
+
+    @Autowired
+    private BlogFeedFanout blogFeedFanout;
+
     private static final String BLOG_CACHE_NAME = "cache:blog::";
 
 
@@ -72,253 +91,323 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     private static final String CACHE_BLOG_QUERY_PAGE = "cache:blog:page::";
 
-    private static final String ID_PREFIX = UUID.randomUUID().toString()+"-";
+    //按id批量查询的博客缓存，TTL过期，和详情的逻辑过期缓存分开存
+    private static final String BLOG_ITEM_CACHE_NAME = "cache:blog:item::";
 
     private static final String BLOG_LIKENUMBER_QUEUE_NAME = "blogLikeNumberQueue_1";
 
-    //创建线程池为10个线程
-    private final ExecutorService CACHE_REFRESH_POOL = Executors.newFixedThreadPool(10);
+    private static final DefaultRedisScript<List> LIKE_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("Lua/likeBlog.lua"));
+        LIKE_SCRIPT.setResultType(List.class);
+    }
+
+    //自己的代理，内部调用@HmdpCacheable的方法要经过代理切面才生效
+    @Lazy
+    @Autowired
+    private IBlogService blogService;
 
     @Override
     public Result queryBlogById(Long blogId) {
-        //查询缓存中维护的点赞数
-        String likeNum = stringRedisTemplate.opsForValue().get(BLOG_CACHE_LIKE_NUMBER_NAME + blogId);
-        //获取缓存
-        RedisData cacheData = redisUtil.getValueTime(BLOG_CACHE_NAME, blogId, blogMapper);
-        if(cacheData == null){
-            Blog blog = blogMapper.selectById(blogId);
-            User user = userMapper.selectById(blog.getUserId());
-            blog.setUserId(user.getId());
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
-            blog.setLiked(Integer.valueOf(likeNum));
-            boolean cacheStatus = redisUtil.setValueForRedis(BLOG_CACHE_NAME + blogId, blog, LocalDateTime.now().plusMinutes(3));
-            if(cacheStatus == false){
-                log.info("缓存:{}添加失败",BLOG_CACHE_NAME+blogId);
-                return Result.fail("查看失败");
-            }
-            return Result.ok(blog);
+        //布隆过滤器判断一定不存在的博客时也返回null，不查redis也不查数据库
+        Blog cached = blogService.getBlogById(blogId);
+        if(cached == null){
+            return Result.fail("博客不存在");
         }
-        //同步维护的点赞数
-        JSONObject data = (JSONObject) cacheData.getData();//由于是复杂类型Blog,实际运行时JSONUtil会解析成JSONObject
-        Blog bean = data.toBean(Blog.class);
-        //判断该用户是否点赞过
-        Double likeTime = stringRedisTemplate.opsForZSet().score(BLOG_CACHE_LIKE_USER_NAME + blogId, UserHolder.getUser().getId().toString());
-        if(likeTime != null) bean.setIsLike(true);
-        else bean.setIsLike(false);
-        bean.setLiked(Integer.valueOf(likeNum));
+        //缓存里的对象在本地缓存中共享，复制一份再改作者和点赞信息
+        Blog bean = BeanUtil.copyProperties(cached, Blog.class);
+        //作者信息，同步维护的点赞数，判断该用户是否点赞过
+        List<Blog> records = Collections.singletonList(bean);
+        fillAuthors(records);
+        fillLikeNumbers(records, true);
+        fillIsLike(records);
         return Result.ok(bean);
     }
 
     @Override
-    public Result likeBlog(Long id) {
-        //要进行点赞排行（按时间），可以使用redis中的sortedSet有序集合（opsForZSet)，基于某一权值进行排序，这里使用时间戳
-        //实现思路，在redis中存储blog点赞过的用户集合,维护redis缓存中点赞的数量
-        //使用SpringTask定期检查redis中的点赞数同步到数据库
-
-        //判断该用户是否点赞过                            方法返回集合中元素对应的权值,元素不存在返回null
-        Double likeTime = stringRedisTemplate.opsForZSet().score(BLOG_CACHE_LIKE_USER_NAME + id, UserHolder.getUser().getId().toString());
-        if(likeTime != null){
-            //取消点赞
-            //删除该次点赞记录
-            stringRedisTemplate.opsForZSet().remove(BLOG_CACHE_LIKE_USER_NAME + id, UserHolder.getUser().getId().toString());
-            //同步减少redis中维护的点赞数
-            stringRedisTemplate.opsForValue().decrement(BLOG_CACHE_LIKE_NUMBER_NAME+id);
-            //刷新TTL时间
-            stringRedisTemplate.expire(BLOG_CACHE_LIKE_NUMBER_NAME+id,BLOG_LIKE_NUMBER_TTL_TIME, TimeUnit.MINUTES);
-        }
-        else{
-            //进行点赞
-            //添加该用户的点赞记录                                                                                          时间戳
-            stringRedisTemplate.opsForZSet().add(BLOG_CACHE_LIKE_USER_NAME+id,UserHolder.getUser().getId().toString(),System.currentTimeMillis());
-            //同步增加redis中的点赞数
-            stringRedisTemplate.opsForValue().increment(BLOG_CACHE_LIKE_NUMBER_NAME+id);
-            //刷新TTL时间
-            stringRedisTemplate.expire(BLOG_CACHE_LIKE_NUMBER_NAME+id,BLOG_LIKE_NUMBER_TTL_TIME, TimeUnit.MINUTES);
-        }
-
-        return Result.ok();
+    @HmdpCacheable(prefix = BLOG_CACHE_NAME, mode = HmdpCacheable.Mode.LOGICAL_EXPIRE, ttl = 3)
+    public Blog getBlogById(Long blogId) {
+        return blogMapper.selectById(blogId);
     }
 
-    //存储此时数据库中的blog点赞数
-    private static HashMap<Long,Integer> blogLikeNumber = new HashMap<>();
-    /**
-     * 定时扫描同步redis中的点赞数
-     *
-     */
-    @Scheduled(cron = "*/2 * * * * ?")
-    @Async
-    public void syncLikeNumber(){
-        log.info("");
-        //批量获取所有以BLOG_CACHE_LIKE_NUMBER_NAME为前缀的key
-        Set<String> keys = stringRedisTemplate.keys(BLOG_CACHE_LIKE_NUMBER_NAME + "*");
-
-        //为空则取消执行
-        if(keys == null || keys.isEmpty()){
-            return;
-        }
-
-        for(String key:keys){
-            //初始化数据，blogId和点赞数likeNumber
-            String likeNumberStr = stringRedisTemplate.opsForValue().get(key);
-            String[] strings = key.split("_");
-            Long blogId = Long.valueOf(strings[1]);
-            Integer likeNumber = Integer.valueOf(likeNumberStr);
-            //不为空，且点赞数没变化直接跳过
-            if(blogLikeNumber.get(blogId) != null && blogLikeNumber.get(blogId) == likeNumber) continue;
-
-            //为空或者点赞数有变化，修改数据库
-            LambdaUpdateWrapper<Blog> wrapper = new LambdaUpdateWrapper<>();
-            wrapper.eq(Blog::getId,blogId).set(Blog::getLiked,likeNumber);
-            blogLikeNumber.put(blogId,likeNumber);
-
+    @Override
+    @HmdpCacheable(prefix = BLOG_ITEM_CACHE_NAME, batch = true)
+    public Map<Long, Blog> getBlogsByIds(Collection<Long> blogIds) {
+        List<Blog> blogs = blogMapper.selectBatchIds(blogIds);
+        Map<Long, Blog> result = new HashMap<>();
+        for(Blog blog:blogs){
+            result.put(blog.getId(), blog);
         }
+        return result;
     }
 
     @Override
-    public Result queryHotBlog(Integer current) {
-        //获取缓存
-        String json = stringRedisTemplate.opsForValue().get(CACHE_BLOG_QUERY_PAGE + current);
-        if(json != null && !json.equals("")){
-            //不为空，则获取缓存，同时将维护的点赞数替换掉缓存中的点赞数
-
-            //由于这里redisData.data装的是复杂类型（和redisData一样），所以需要二次转化
-            //本质上是toBean识别不出内部的复杂类型,默认打成JSONObject
-            RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-            Object o = redisData.getData();
-            BlogListToJsonDTO blogListToJsonDTO = JSONUtil.toBean(JSONUtil.toJsonStr(o), BlogListToJsonDTO.class);
-            List<Blog> records = blogListToJsonDTO.getBlogs();
-            //判断过不过时
-            if(LocalDateTime.now().compareTo(redisData.getExpireTime()) > 0){
-                CACHE_REFRESH_POOL.submit(()->{
-                    getResult(current);
-                });
-                return Result.ok(records);
-            }
-            for(Blog b:records){
-                Long id = b.getId();
-                //查询缓存中维护的点赞数
-                String likeNum = stringRedisTemplate.opsForValue().get(BLOG_CACHE_LIKE_NUMBER_NAME + id);
-                if(likeNum == null){
-                    //没有维护点赞数，需要查库
-                    boolean lockStatus = false;//锁状态
-                    try{
-                        //获取分布式锁
-                        lockStatus = redisUtil.tryLock("lock:" + BLOG_CACHE_LIKE_NUMBER_NAME + id, ID_PREFIX + Thread.currentThread().getId(), 10);
-                        if(lockStatus == false){
-                            //锁获取失败
-                            return Result.fail("请刷新重试");
-                        }
-                        Blog blog = blogMapper.selectById(id);
-                        redisUtil.setValueForRedis(BLOG_CACHE_LIKE_NUMBER_NAME+id,blog.getLiked().toString(),BLOG_LIKE_NUMBER_TTL_TIME, TimeUnit.MINUTES);
-                        likeNum = blog.getLiked().toString();
-                    }finally {
-                        if(lockStatus == true){
-                            redisUtil.deleteLock("lock:" + BLOG_CACHE_LIKE_NUMBER_NAME + id, ID_PREFIX + Thread.currentThread().getId());
-                        }
-                    }
-                }
-                //替代缓存中的点赞数
-                b.setLiked(Integer.valueOf(likeNum));
+    public Result likeBlog(Long id) {
+        //点赞记录存在redis的zset里（权值为点赞时间戳），点赞数单独维护，定时同步到数据库
+        //判断是否点赞过、改点赞记录、改点赞数、改排行榜分数、标记待同步，都在一个lua脚本里，一次调用
+        //同一个用户连点两下也是一个一个执行，不会重复计数
+        String userId = UserHolder.getUser().getId().toString();
+        List<Long> result = toggleLike(id, userId);
+        if(result.get(0) < 0){
+            //点赞数不在redis里，从数据库加载，SET NX不覆盖其他请求同时加载的，再执行一次
+            Blog blog = blogMapper.selectOne(new LambdaQueryWrapper<Blog>().select(Blog::getId, Blog::getLiked).eq(Blog::getId, id));
+            if(blog == null){
+                return Result.fail("博客不存在");
             }
-            return Result.ok(records);
+            stringRedisTemplate.opsForValue().setIfAbsent(BLOG_CACHE_LIKE_NUMBER_NAME + id,
+                    String.valueOf(blog.getLiked() == null ? 0 : blog.getLiked()), BLOG_LIKE_NUMBER_TTL_TIME, TimeUnit.MINUTES);
+            result = toggleLike(id, userId);
         }
+        BlogLikeDTO like = new BlogLikeDTO();
+        like.setIsLike(result.get(0) == 1);
+        like.setLiked(result.get(1).intValue());
+        return Result.ok(like);
+    }
 
-        List<Blog> blogs = getResult(current);
-        if(blogs == null) return Result.fail("请重试");
-        else return Result.ok(blogs);
+    private List<Long> toggleLike(Long id, String userId){
+        return stringRedisTemplate.execute(LIKE_SCRIPT,
+                Arrays.asList(BLOG_CACHE_LIKE_USER_NAME + id, BLOG_CACHE_LIKE_NUMBER_NAME + id, BLOG_HOT_RANK_KEY, BLOG_LIKE_DIRTY_KEY),
+                userId, id.toString(), String.valueOf(System.currentTimeMillis()),
+                String.valueOf(TimeUnit.MINUTES.toSeconds(BLOG_LIKE_NUMBER_TTL_TIME)));
     }
 
+    @Override
+    public Result queryHotBlog(Integer current) {
+        //从排行榜取这一页的id，博客内容从缓存批量取
+        List<Long> blogIds = blogHotRanking.page(current, SystemConstants.MAX_PAGE_SIZE);
+        List<Blog> records;
+        if(blogIds != null){
+            records = getBlogs(blogIds);
+        }else{
+            //排行榜还没建好或者redis不可用，用数据库排序的页缓存兜底
+            //页缓存逻辑过期，过期了先返回旧的这一页，后台重建
+            records = BeanUtil.copyToList(blogService.getHotBlogPage(current), Blog.class);
+        }
+        //作者信息、点赞数以各自的缓存为准，是否点赞过每个用户不一样，都不放进博客的缓存
+        fillAuthors(records);
+        //一次MGET查出整页的点赞数，redis里没有的一次批量查库回填
+        fillLikeNumbers(records, true);
+        fillIsLike(records);
+        return Result.ok(records);
+    }
 
-    @PreDestroy
-    public void destroyThreadPool() {
-        if (CACHE_REFRESH_POOL == null || CACHE_REFRESH_POOL.isShutdown()) {
+    /**
+     * 用redis里维护的点赞数替换blog的点赞数，整页一次MGET
+     * redis里没有的按数据库的点赞数回填，一次pipeline，SET NX不覆盖并发点赞的INCR
+     * @param records
+     * @param loadMissing true时没有的点赞数批量查数据库，false时records就是刚从数据库查出来的，直接用
+     */
+    private void fillLikeNumbers(List<Blog> records, boolean loadMissing){
+        if(records.isEmpty()) return;
+        List<String> keys = new ArrayList<>(records.size());
+        for(Blog b:records){
+            keys.add(BLOG_CACHE_LIKE_NUMBER_NAME + b.getId());
+        }
+        List<String> likeNums;
+        try{
+            likeNums = redisUtil.multiGetString(keys);
+        }catch (RedisUnavailableException e){
+            //redis不可用，用博客对象上数据库的点赞数，可能比redis里的旧；不再逐条查库，redis挂了不能把数据库也打挂
             return;
         }
+        List<Blog> missing = new ArrayList<>();
+        for(int i = 0; i < records.size(); i++){
+            String likeNum = likeNums.get(i);
+            if(likeNum == null || likeNum.equals("")) missing.add(records.get(i));
+            else records.get(i).setLiked(Integer.valueOf(likeNum));
+        }
+        if(missing.isEmpty()) return;
+        Map<Long,Integer> dbLiked = new HashMap<>();
+        if(loadMissing){
+            List<Long> ids = new ArrayList<>(missing.size());
+            for(Blog b:missing) ids.add(b.getId());
+            for(Blog blog:blogMapper.selectBatchIds(ids)) dbLiked.put(blog.getId(), blog.getLiked());
+        }else{
+            for(Blog b:missing) dbLiked.put(b.getId(), b.getLiked());
+        }
+        Map<String,String> backfill = new HashMap<>();
+        for(Blog b:missing){
+            Integer liked = dbLiked.get(b.getId());
+            if(liked == null) continue;
+            b.setLiked(liked);
+            backfill.put(BLOG_CACHE_LIKE_NUMBER_NAME + b.getId(), liked.toString());
+        }
+        //回填失败下次再回填，不影响这一页
+        try{
+            redisUtil.multiSet(backfill, BLOG_LIKE_NUMBER_TTL_TIME, TimeUnit.MINUTES, true);
+        }catch (RedisUnavailableException e){
+            log.warn("点赞数回填失败，博客数:{}", backfill.size());
+        }
+    }
 
-        log.info("开始关闭缓存重建线程池...");
-        // 第一步：发起关闭请求（拒绝新任务，等待已提交任务执行）
-        CACHE_REFRESH_POOL.shutdown();
-
-        try {
-            // 第二步：阻塞等待，最多等10秒（超时则强制关闭）
-            // 超时时间根据你的业务调整：缓存重建一般5秒内完成，设10秒足够
-            if (!CACHE_REFRESH_POOL.awaitTermination(10, TimeUnit.SECONDS)) {
-                log.warn("线程池10秒内未关闭完成，强制中断剩余任务");
-                // 第三步：超时未关闭，强制中断（兜底）
-                List<Runnable> remainingTasks = CACHE_REFRESH_POOL.shutdownNow();
-                log.warn("强制关闭线程池，未执行的任务数：{}", remainingTasks.size());
-            } else {
-                log.info("线程池优雅关闭完成");
+    /**
+     * 当前用户是否点赞过，整页一次pipeline ZSCORE，未登录不查
+     * @param records
+     */
+    private void fillIsLike(List<Blog> records){
+        UserDTO user = UserHolder.getUser();
+        if(user == null || records.isEmpty()) return;
+        List<String> keys = new ArrayList<>(records.size());
+        for(Blog b:records){
+            keys.add(BLOG_CACHE_LIKE_USER_NAME + b.getId());
+        }
+        List<Double> scores;
+        try{
+            scores = redisUtil.multiZScore(keys, user.getId().toString());
+        }catch (RedisUnavailableException e){
+            //redis不可用，点赞记录查不到，都当作没点赞过
+            for(Blog b:records){
+                b.setIsLike(false);
             }
-        } catch (InterruptedException e) {
-            // 等待过程中被中断，再次强制关闭
-            log.error("线程池关闭等待被中断，强制关闭", e);
-            CACHE_REFRESH_POOL.shutdownNow();
-            // 恢复中断状态（线程规范）
-            Thread.currentThread().interrupt();
+            return;
+        }
+        for(int i = 0; i < records.size(); i++){
+            records.get(i).setIsLike(scores.get(i) != null);
         }
     }
 
+
     /**
-     * 方法提取，blog页面的分页查询
+     * blog页面的分页查询，按点赞数递减，热门排行榜不可用时的兜底
      * @param current
      * @return
      */
-    private @NonNull List<Blog> getResult(Integer current) {
-        //获取分布式锁
-        boolean lockStatus = false;
-        try{
-            lockStatus = redisUtil.tryLock("lock:"+CACHE_BLOG_QUERY_PAGE+ current,ID_PREFIX + Thread.currentThread().getId(), 10);
-            if(lockStatus == false){
-                //有人获取锁了，
-                return null;
-            }
-            //分页查询并按点赞数递减
-            Page<Blog> page = new Page<>(current,SystemConstants.MAX_PAGE_SIZE);
-            LambdaQueryWrapper<Blog> wrapper = new LambdaQueryWrapper<>();
-            wrapper.orderByDesc(Blog::getLiked);
-            Page<Blog> blogPage = blogMapper.selectPage(page, wrapper);
-
-            // 获取当前页数据
-            List<Blog> records = page.getRecords();
+    @Override
+    @HmdpCacheable(prefix = CACHE_BLOG_QUERY_PAGE, mode = HmdpCacheable.Mode.LOGICAL_EXPIRE, ttl = 10)
+    public List<Blog> getHotBlogPage(Integer current) {
+        //分页查询并按点赞数递减
+        Page<Blog> page = new Page<>(current,SystemConstants.MAX_PAGE_SIZE);
+        LambdaQueryWrapper<Blog> wrapper = new LambdaQueryWrapper<>();
+        wrapper.orderByDesc(Blog::getLiked);
+        blogMapper.selectPage(page, wrapper);
+
+        // 获取当前页数据
+        List<Blog> records = page.getRecords();
+        //如果redis中点赞数存在，则以redis为准，否则以数据库为准并同步到redis
+        fillLikeNumbers(records, false);
+        return records;
+    }
 
-            for(Blog b:records){
-                Long userId = b.getUserId();
-                User user = userMapper.selectById(userId);
-                b.setIcon(user.getIcon());
-                b.setName(user.getNickName());
-                //如果redis中点赞数存在，则以redis为准，否则以数据库为准并同步到reis
-                String s = stringRedisTemplate.opsForValue().get(BLOG_CACHE_LIKE_NUMBER_NAME + b.getId());
-                if(s == null || s.equals("")){
-                    //同步数据库的点赞数到redis
-                    redisUtil.setValueForRedis(BLOG_CACHE_LIKE_NUMBER_NAME+b.getId(),b.getLiked().toString(),BLOG_LIKE_NUMBER_TTL_TIME,TimeUnit.MINUTES);
-                }
-                else{
-                    b.setLiked(Integer.valueOf(s));
-                }
-            }
-            //存入缓存
-            BlogListToJsonDTO blogListToJsonDTO = new BlogListToJsonDTO();
-            blogListToJsonDTO.setBlogs(records);
-            redisUtil.setValueForRedis(CACHE_BLOG_QUERY_PAGE+ current,blogListToJsonDTO,LocalDateTime.now().plusMinutes(10));
-
-            return records;
-        }finally {
-            if(lockStatus == true){
-                redisUtil.deleteLock("lock:"+CACHE_BLOG_QUERY_PAGE+ current,ID_PREFIX + Thread.currentThread().getId());
-            }
+    /**
+     * 填充作者的昵称和头像，整页的作者一次批量加载
+     * 作者信息不放进博客的缓存，用户改了资料所有博客马上跟着变
+     * @param records
+     */
+    private void fillAuthors(List<Blog> records){
+        Set<Long> userIds = new HashSet<>();
+        for(Blog b:records){
+            userIds.add(b.getUserId());
+        }
+        if(userIds.isEmpty()) return;
+        Map<Long,UserDTO> users = userSummaryLoader.loadAll(userIds);
+        for(Blog b:records){
+            UserDTO user = users.get(b.getUserId());
+            if(user == null) continue;
+            b.setIcon(user.getIcon());
+            b.setName(user.getNickName());
         }
     }
 
     @Override
     public Result queryBlogByUserId(Integer current, Long userId) {
+        //只查这一页的id，博客内容从缓存批量取
         Page<Blog> page = blogMapper.selectPage(
                 new Page<>(current, SystemConstants.MAX_PAGE_SIZE),
                 new LambdaQueryWrapper<Blog>()
+                        .select(Blog::getId)
                         .eq(Blog::getUserId, userId)
                         .orderByDesc(Blog::getCreateTime)
         );
-        return Result.ok(page.getRecords());
+        List<Long> blogIds = new ArrayList<>();
+        for(Blog b:page.getRecords()){
+            blogIds.add(b.getId());
+        }
+        List<Blog> records = getBlogs(blogIds);
+        fillAuthors(records);
+        fillLikeNumbers(records, true);
+        return Result.ok(records);
+    }
+
+    /**
+     * 按id批量取博客，保持blogIds的顺序，不存在的跳过
+     * 缓存里的对象是共享的，返回的是复制出来的，可以直接改点赞信息
+     * @param blogIds
+     * @return
+     */
+    private List<Blog> getBlogs(List<Long> blogIds){
+        Map<Long, Blog> blogs = blogService.getBlogsByIds(blogIds);
+        List<Blog> records = new ArrayList<>(blogIds.size());
+        for(Long blogId:blogIds){
+            Blog blog = blogs.get(blogId);
+            if(blog != null) records.add(BeanUtil.copyProperties(blog, Blog.class));
+        }
+        return records;
+    }
+
+    @Override
+    public Result saveBlog(Blog blog) {
+        save(blog);
+        //新博客加入布隆过滤器，否则查询会被当成不存在
+        cacheBloomFilter.add(BLOG_CACHE_NAME, blog.getId());
+        //加入热门排行榜，没有点赞排在最后
+        blogHotRanking.add(blog.getId());
+        //异步推送到粉丝的收件箱，推送失败不影响发博客
+        try {
+            blogFeedFanout.publish(blog.getId(), blog.getUserId(), System.currentTimeMillis());
+        } catch (Exception e) {
+            log.error("博客推送消息发送失败，blogId:{}", blog.getId(), e);
+        }
+        return Result.ok(blog.getId());
+    }
+
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        Long userId = UserHolder.getUser().getId();
+        ScrollResult r = new ScrollResult();
+        //收件箱里的博客可能已经删了，一页全被过滤掉就接着往下翻，直到有博客或者收件箱翻完
+        while(true){
+            //从收件箱取score不大于max的博客，跳过上一页最后那个时间戳已经返回过的offset条
+            //每页都从max往下找，不管翻多深都是O(log n)，新推进来的博客score比max大，不会重复
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .reverseRangeByScoreWithScores(FEED_KEY + userId, 0, max, offset, SystemConstants.MAX_PAGE_SIZE);
+            if(tuples == null || tuples.isEmpty()){
+                r.setList(Collections.emptyList());
+                r.setMinTime(max);
+                r.setOffset(offset);
+                return Result.ok(r);
+            }
+            //这一页最小的时间戳，以及和它相同的有几条，作为下一页的max和offset
+            List<Long> blogIds = new ArrayList<>(tuples.size());
+            long minTime = 0;
+            int os = 1;
+            for(ZSetOperations.TypedTuple<String> tuple:tuples){
+                blogIds.add(Long.valueOf(tuple.getValue()));
+                long time = tuple.getScore().longValue();
+                if(time == minTime){
+                    os++;
+                }else{
+                    minTime = time;
+                    os = 1;
+                }
+            }
+            //整页的时间戳都等于max，要加上之前跳过的
+            if(minTime == max){
+                os += offset;
+            }
+            List<Blog> records = getBlogs(blogIds);
+            max = minTime;
+            offset = os;
+            if(records.isEmpty()){
+                continue;
+            }
+            fillAuthors(records);
+            fillLikeNumbers(records, true);
+            fillIsLike(records);
+            r.setList(records);
+            r.setMinTime(max);
+            r.setOffset(offset);
+            return Result.ok(r);
+        }
     }
 }
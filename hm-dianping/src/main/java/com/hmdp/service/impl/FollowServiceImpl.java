@@ -3,19 +3,20 @@ package com.hmdp.service.impl;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
-import com.hmdp.service.IUserService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserSummaryLoader;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -31,7 +32,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private IUserService userService;
+    private UserSummaryLoader userSummaryLoader;
 
     /**
      * 更新Redis中用户关注集合的缓存
@@ -120,21 +121,15 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         }
         // 将交集ID转换为Long类型
         List<Long> ids = intersect.stream().map(Long::parseLong).collect(Collectors.toList());
-        // 根据用户ID查询用户详细信息并转换为UserDTO
-        //解析：.query()创建wrapper条件构造
-        //     .in()拼接条件
-        //     .list()执行查询，底层实现seletList
-        //     .stream()将集合转换成顺序流，函数式for循环
-        //     .map(传入方法) 映射转换，根据方法将传入的参数转化为返回的参数
-        //     .collect(Collectors.toList())将处理好的顺序流转化为集合，具体为List类型
-        List<UserDTO> users = userService.query().in("id", ids).list()
-                .stream().map(user -> {
-                    UserDTO dto = new UserDTO();
-                    dto.setId(user.getId());
-                    dto.setNickName(user.getNickName());
-                    dto.setIcon(user.getIcon());
-                    return dto;
-                }).collect(Collectors.toList());
+        // 共同关注的用户一次批量加载，先查本地缓存和redis，没有的一次IN查询
+        Map<Long, UserDTO> summaries = userSummaryLoader.loadAll(ids);
+        List<UserDTO> users = new ArrayList<>(summaries.size());
+        for (Long id : ids) {
+            UserDTO user = summaries.get(id);
+            if (user != null) {
+                users.add(user);
+            }
+        }
         return Result.ok(users);
     }
 
@@ -1,12 +1,15 @@
 package com.hmdp.service.impl;
 
+import com.hmdp.annotation.HmdpCacheable;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheBloomFilter;
 import com.hmdp.utils.RedisUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -24,15 +27,30 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     @Autowired
     private RedisUtil redisUtil;
+
+    @Autowired
+    private CacheBloomFilter cacheBloomFilter;
+
+    //自己的代理，内部调用@HmdpCacheable的方法要经过代理切面才生效
+    @Lazy
+    @Autowired
+    private IShopService shopService;
+
+    private static final String CACHE_SHOP_KEY = "cache:shop::";
     @Override
     //该注解会形成cacheNames::key的键，然后查询该键的值，如果有直接返回不执行主方法，如果没有执行主方法并将其返回值作为缓存键的值
 //    @Cacheable(cacheNames = "cache:shop",key = "#id")
     public Result queryShopById(Long id) throws InterruptedException {
-        String cacheName = "cache:shop::";
-        Shop shop = redisUtil.getValueTTL(cacheName, id, Shop.class, shopMapper);
+        Shop shop = shopService.getShopById(id);
         return Result.ok(shop);
     }
 
+    @Override
+    @HmdpCacheable(prefix = CACHE_SHOP_KEY, ttl = 30)
+    public Shop getShopById(Long id) {
+        return shopMapper.selectById(id);
+    }
+
     @Override
     //删除缓存操作，在方法执行后执行，cacheNames指定缓存的前缀，key指定特定缓存，allEntries=true删除掉属于该前缀的所有缓存
     //@CacheEvict(cacheNames = "cache:shop",key = "#shop.getId()")//使用该注解会导致当缓存删除失败时数据库无法回滚,产生数据不一致
@@ -43,8 +61,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if(rows <= 0){
             throw new RuntimeException("数据库更新失败：updateShop");
         }
-        //删除缓存
-        stringRedisTemplate.delete("cache:shop::"+shop.getId());
+        //删除缓存，同时通知所有节点删掉本地缓存
+        redisUtil.delete(CACHE_SHOP_KEY+shop.getId());
         return rows;
     }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        //新店铺加入布隆过滤器，否则查询会被当成不存在
+        cacheBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
 }
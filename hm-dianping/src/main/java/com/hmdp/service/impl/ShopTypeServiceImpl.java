@@ -1,11 +1,11 @@
 package com.hmdp.service.impl;
 
+import com.hmdp.annotation.HmdpCacheable;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -17,8 +17,9 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
 
     @Autowired
     private ShopTypeMapper shopTypeMapper;
+    //店铺类型很少、查询很便宜，不用加锁，过期后直接查数据库
     @Override
-    @Cacheable(cacheNames = "cache:shop:type")
+    @HmdpCacheable(prefix = "cache:shop:type::", key = "'all'", mode = HmdpCacheable.Mode.READ_THROUGH, ttl = 60)
     public List<ShopType> queryTypeList() {
         List<ShopType> shopTypes = shopTypeMapper.selectList(null);
         return shopTypes;
@@ -12,6 +12,7 @@ import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserSummaryLoader;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,6 +36,10 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private UserSummaryLoader userSummaryLoader;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //校验手机号是否是无效格式
@@ -112,12 +117,24 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Override
     public Result queryUserById(Long userId) {
-        User user = userMapper.selectById(userId);
-        if (user == null) {
+        UserDTO userDTO = userSummaryLoader.load(userId);
+        if (userDTO == null) {
             return Result.fail("用户不存在");
         }
-        UserDTO userDTO = new UserDTO();
-        BeanUtils.copyProperties(user, userDTO);
         return Result.ok(userDTO);
     }
+
+    /**
+     * 修改用户资料，改完删除用户摘要缓存，博客作者、共同关注里的昵称头像跟着变
+     * @param entity
+     * @return
+     */
+    @Override
+    public boolean updateById(User entity) {
+        boolean updated = super.updateById(entity);
+        if (updated) {
+            userSummaryLoader.evict(entity.getId());
+        }
+        return updated;
+    }
 }
@@ -3,28 +3,44 @@ package com.hmdp.service.impl;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillOrderStatus;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.config.RabbitMQConfig;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisUnavailableException;
 import com.hmdp.utils.RedisUtil;
+import com.hmdp.utils.SeckillAdmissionLimiter;
+import com.hmdp.utils.SeckillOrderStatusCache;
+import com.hmdp.utils.SeckillStockAllotment;
+import com.hmdp.utils.SeckillStockUtil;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
+import com.rabbitmq.client.Channel;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RedissonClient;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 
 @Service
@@ -56,56 +72,109 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     private RabbitTemplate rabbitTemplate;
 
-    //redis分布式锁名，拼接用户id
-    private static final String REDIS_LOCK_NAME = "lock:seckillVoucherOrder::";
+    @Autowired
+    private MessageConverter messageConverter;
+
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
+
+    @Autowired
+    private SeckillStockUtil seckillStockUtil;
+
+    @Autowired
+    private SeckillAdmissionLimiter seckillAdmissionLimiter;
+
+    @Autowired
+    private SeckillOrderStatusCache seckillOrderStatusCache;
+
+    @Autowired
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    //本地配额模式，没开启时为null
+    @Autowired(required = false)
+    private SeckillStockAllotment seckillStockAllotment;
 
+    @Value("${hmdp.seckill.order.cancel.enabled:true}")
+    private boolean cancelEnabled;
+
+    //订单状态：未支付、已取消
+    private static final int ORDER_STATUS_UNPAID = 1;
+    private static final int ORDER_STATUS_CANCELLED = 4;
 
     private static final String CACHE_NAME_OF_SECKILL_VOUCHER_ORDER = "cache:seckillVoucher::";
     private static final String CACHE_NAME_OF_VOUCHER_ORDER = "cache:voucher::";
     // 定义全局的锁容器，存储每个用户ID对应的锁对象
     private static final ConcurrentHashMap<Long,Object> USER_LOCKS = new ConcurrentHashMap<>();
 
-    //该UUID因为被设定为静态常量，所以只会在创建的时候初始化一次，后续永远不变，这里相当于用作标识该类
-    private static final String ID_PREFIX = UUID.randomUUID().toString()+"-";
-
-    private static final String SECKILL_VOUCHER_STOCK_KEY = "stock:seckillVoucher::";
-
-    private static final String ORDER_BOUGHT_USER_KEY = "orderBought:seckillVoucher:";
-
-    //lua脚本的加载类                        返回类型
-    private static final DefaultRedisScript<Long> REDIS_SCRIPT;
-    static {
-        //初始化
-        REDIS_SCRIPT = new DefaultRedisScript<>();
-        //指定lua脚本                       将lua脚本包装成Resource类型
-        REDIS_SCRIPT.setLocation(new ClassPathResource("Lua/seckillVoucher.lua"));
-        //指定返回类型
-        REDIS_SCRIPT.setResultType(Long.class);
-    }
 
 
     //异步秒杀业务
     @Override
     public Result seckillVoucher(Long voucherId) {
         log.info("线程:{}执行seckillVoucher方法",Thread.currentThread().getId());
-        //获取库存key,已购订单key调用lua脚本
-        List<String> keys = new ArrayList<>();
-        keys.add(SECKILL_VOUCHER_STOCK_KEY+voucherId);
-        keys.add(ORDER_BOUGHT_USER_KEY+voucherId+"::users");
-        log.info("key1:{},key2:{}",keys.get(0),keys.get(1));
-        Long status = stringRedisTemplate.execute(REDIS_SCRIPT, keys, UserHolder.getUser().getId().toString());
+        //redis熔断中，库存和一人一单都判断不了，直接拒绝，不占着线程等redis超时
+        if(redisCircuitBreaker.isOpen()){
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        //本节点或其他节点已经确认卖完了，直接在内存里拒绝，不用再跑lua
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("卖完了");
+        }
+        //准入限流，超出处理能力的请求在跑lua之前拒绝
+        int admission = seckillAdmissionLimiter.tryAdmit(voucherId, UserHolder.getUser().getId());
+        if(admission == SeckillAdmissionLimiter.REJECTED_USER){
+            return Result.fail("请求太频繁，请稍后重试");
+        }
+        if(admission != SeckillAdmissionLimiter.ADMITTED){
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        //判断秒杀时间、库存、一人一单并扣redis库存，一次redis调用，不查数据库
+        //单key还是分片由优惠卷创建时决定
+        //开启了本地配额的单key优惠卷在本节点内存里扣库存
+        long checkedAt = System.currentTimeMillis();
+        SeckillStockUtil.VoucherMeta meta = seckillStockUtil.getMeta(voucherId);
+        boolean localAllotment = seckillStockAllotment != null && meta.getShards() == 1;
+        long status;
+        try{
+            status = redisCircuitBreaker.call(() -> localAllotment
+                    ? seckillStockAllotment.tryAcquire(voucherId, UserHolder.getUser().getId())
+                    : seckillStockUtil.tryAcquire(voucherId, UserHolder.getUser().getId()));
+        }catch (RedisUnavailableException e){
+            //熔断中命令没有发出去，什么都没改；本地配额模式的超时由SeckillStockAllotment自己撤销
+            if(e.isRejected() || localAllotment){
+                log.warn("秒杀扣库存时redis不可用，voucherId:{}", voucherId);
+                return Result.fail("系统繁忙，请稍后重试");
+            }
+            status = reconcileSeckill(voucherId, UserHolder.getUser().getId());
+            if(status != SeckillStockUtil.STATUS_OK){
+                return Result.fail("系统繁忙，请稍后重试");
+            }
+        }
 
         //没库存了
         if(status == 1){
+            //本地配额模式下只是本节点没库存了，其他节点手里可能还有，不能广播售罄
+            //没有元数据可能是优惠卷还在创建中，库存key还没写好，也不能广播售罄
+            if(!localAllotment && meta.isPresent()){
+                soldOutRegistry.markSoldOut(voucherId,checkedAt);
+            }
             return Result.fail("卖完了");
         }
         //已经买过了
         if(status == 2){
             return Result.fail("不要贪杯哦");
         }
+        if(status == 3){
+            return Result.fail("秒杀未开始");
+        }
+        if(status == 4){
+            return Result.fail("秒杀已结束");
+        }
 
         //生成订单id
         long orderId = redisUtil.nextId("order");
+        //客户端拿到订单id后查这个状态，不用查数据库
+        seckillOrderStatusCache.pending(orderId,UserHolder.getUser().getId());
         //将用户id,商品id,订单id存放到消息队列
 //        String msg = UserHolder.getUser().getId().toString()+","+voucherId+","+orderId;
         Map<String,Object> msg = new HashMap<>();
@@ -120,7 +189,32 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         return Result.ok(orderId);
     }
 
-    @RabbitListener(queues = "seckillVoucherQueue_1")
+    /**
+     * 秒杀lua发出去了但是没拿到结果（客户端超时、连接断开），脚本可能已经扣了库存、把用户加进了已购集合
+     * 用SISMEMBER确认：在集合里就当作抢到了继续下单，之前就买过的用户下单时撞唯一索引，不会多建单；
+     * 不在集合里说明脚本没有执行或者没有改任何数据
+     * 分片模式下如果超时发生在去其他分片扣库存的途中，redis库存可能没扣，数据库扣库存时的乐观锁保证不会超卖
+     * @return 0继续下单，-1无法确认
+     */
+    private long reconcileSeckill(Long voucherId, Long userId){
+        try{
+            if(seckillStockUtil.isBuyer(voucherId, userId)){
+                log.warn("秒杀lua超时但用户已在已购集合中，继续下单，voucherId:{}，userId:{}", voucherId, userId);
+                return SeckillStockUtil.STATUS_OK;
+            }
+            return -1;
+        }catch (Exception e){
+            //确认也失败了，用户可能留在已购集合里却没有订单，需要人工处理
+            log.error("秒杀结果无法确认，voucherId:{}，userId:{}", voucherId, userId, e);
+            return -1;
+        }
+    }
+
+    //hmdp.seckill.order.batch.enabled为true时由seckillVoucherBatchListener消费，两个监听只会启动一个
+    //抛出的异常由容器工厂退避重试，重试用完才写失败状态，见RabbitMQConfig.seckillOrderListenerContainerFactory
+    @RabbitListener(queues = "seckillVoucherQueue_1",
+            containerFactory = "seckillOrderListenerContainerFactory",
+            autoStartup = "#{!${hmdp.seckill.order.batch.enabled:false}}")
     public void seckillVoucherListener(Map<String,Object> msg){
         log.info("线程:{}执行seckillVoucherListener方法",Thread.currentThread().getId());
 //        String[] strings = msg.split(",");
@@ -134,47 +228,155 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
 
         //这里防止redis判断失误或者redis异常，做一个兜底作用，实际开发时有可能有多个消费者监听该队列
-        //解决同一个账号高并发下单问题，实现一人一单
-        //redis分布式锁版本，解决集群中锁不共用问题
-        //尝试获取redis分布式锁                  锁名key: 作用：业务：对应用户                        值value: 当前线程的唯一标识id      上锁时间，单位秒
-        boolean lockStatus = redisUtil.tryLock(REDIS_LOCK_NAME + voucherId, ID_PREFIX+Thread.currentThread().getId(), 120);
-        if(lockStatus == false){
-            //说明锁被占用，说明同一个用户在多次下单且该用户此时正在下单
-            log.error("请勿重复操作");
+        //一人一单由tb_voucher_order的唯一索引(user_id,voucher_id)兜底，不再加优惠卷级别的分布式锁，
+        //同一张优惠卷的订单可以被多个消费者、多个节点并行处理
+        //建单出错直接抛出，状态保持排队中，由容器重试
+        if(voucherOrderServiceImpl.getResult(orderId, userId,voucherId)){
+            seckillOrderStatusCache.created(orderId,userId);
+        }else{
+            seckillOrderStatusCache.failedIfPending(orderId,userId,"已经购买过了");
+        }
+    }
+
+    /**
+     * 批量消费秒杀订单，凑满batch.size条或者等待batch.wait-ms没有新消息就处理一批
+     * 整批一个事务：按优惠卷聚合成一条 stock = stock - k，订单一条多行INSERT
+     * 整批失败（某个优惠卷库存不够扣k个等）时退回逐条处理，每条消息单独ack/nack
+     * @param messages
+     * @param channel
+     */
+    @RabbitListener(queues = "seckillVoucherQueue_1",
+            containerFactory = "batchListenerContainerFactory",
+            autoStartup = "${hmdp.seckill.order.batch.enabled:false}")
+    public void seckillVoucherBatchListener(List<Message> messages, Channel channel) throws IOException {
+        log.info("线程:{}执行seckillVoucherBatchListener方法，本批消息数:{}",Thread.currentThread().getId(),messages.size());
+        //deliveryTag -> 订单，保持消息顺序
+        Map<Long,VoucherOrder> orders = new LinkedHashMap<>();
+        for(Message message:messages){
+            long deliveryTag = message.getMessageProperties().getDeliveryTag();
+            try{
+                Map<String,Object> msg = (Map<String, Object>) messageConverter.fromMessage(message);
+                VoucherOrder voucherOrder = new VoucherOrder();
+                voucherOrder.setId(((Number) msg.get("orderId")).longValue());
+                voucherOrder.setUserId(((Number) msg.get("userId")).longValue());
+                voucherOrder.setVoucherId(((Number) msg.get("voucherId")).longValue());
+                orders.put(deliveryTag,voucherOrder);
+            }catch (Exception e){
+                //消息格式不对，重新投递也没用，直接丢弃
+                log.error("秒杀订单消息解析失败:{}",new String(message.getBody()),e);
+                channel.basicNack(deliveryTag,false,false);
+            }
+        }
+        if(orders.isEmpty()){
             return;
         }
-        //上锁成功，执行扣库存生成订单业务
-//        Result r = null;//存储try块内的返回结果
+
         try{
-            voucherOrderServiceImpl.getResult(orderId, userId,voucherId);
-        }finally {
-            //                      当前锁的key                                         该线程创建锁时的唯一标识
-            redisUtil.deleteLock(REDIS_LOCK_NAME+ voucherId,ID_PREFIX+Thread.currentThread().getId());
-//            //释放锁
-//            //先判断该锁是不是由该线程自己创建的
-//            String s = stringRedisTemplate.opsForValue().get(REDIS_LOCK_NAME + UserHolder.getUser().getId());
-//            //这步释放锁和检验锁不是原子性，有可能检验成功但是删除失败导致锁一直存在，或者检验成功但是删除阻塞延迟了后续恢复删除了其他线程的锁
-//            if((ID_PREFIX+Thread.currentThread().getId()).equals(s)){
-//               //标识相同证明是同一个线程创建的锁，可以释放
-//               redisUtil.deleteLock(REDISLOCKNAME + UserHolder.getUser().getId());
-//            }
+            List<VoucherOrder> created = voucherOrderServiceImpl.getResultBatch(new ArrayList<>(orders.values()));
+            //整批成功（重复下单的订单在批内已经被过滤），逐条确认
+            Set<Long> createdIds = created.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            for(Map.Entry<Long,VoucherOrder> entry:orders.entrySet()){
+                VoucherOrder voucherOrder = entry.getValue();
+                if(createdIds.contains(voucherOrder.getId())){
+                    seckillOrderStatusCache.created(voucherOrder.getId(),voucherOrder.getUserId());
+                }else{
+                    seckillOrderStatusCache.failedIfPending(voucherOrder.getId(),voucherOrder.getUserId(),"已经购买过了");
+                }
+                channel.basicAck(entry.getKey(),false);
+            }
+            return;
+        }catch (Exception e){
+            log.error("批量创建订单失败，退回逐条处理，本批订单数:{}",orders.size(),e);
         }
 
+        //兜底：逐条走单条下单流程，单条失败只影响自己
+        for(Map.Entry<Long,VoucherOrder> entry:orders.entrySet()){
+            VoucherOrder voucherOrder = entry.getValue();
+            try{
+                if(voucherOrderServiceImpl.getResult(voucherOrder.getId(),voucherOrder.getUserId(),voucherOrder.getVoucherId())){
+                    seckillOrderStatusCache.created(voucherOrder.getId(),voucherOrder.getUserId());
+                }else{
+                    seckillOrderStatusCache.failedIfPending(voucherOrder.getId(),voucherOrder.getUserId(),"已经购买过了");
+                }
+                channel.basicAck(entry.getKey(),false);
+            }catch (Exception e){
+                //不重新入队，这条消息就此结束，可以写最终的失败状态
+                log.error("订单:{}创建失败",voucherOrder.getId(),e);
+                seckillOrderStatusCache.failed(voucherOrder.getId(),voucherOrder.getUserId(),e.getMessage());
+                channel.basicNack(entry.getKey(),false,false);
+            }
+        }
+    }
 
+    @Override
+    @Transactional
+    public List<VoucherOrder> getResultBatch(List<VoucherOrder> voucherOrders) {
+        //批内去重，同一个用户同一张优惠卷只保留第一条
+        Map<String,VoucherOrder> unique = new LinkedHashMap<>();
+        for(VoucherOrder voucherOrder:voucherOrders){
+            unique.putIfAbsent(voucherOrder.getUserId()+":"+voucherOrder.getVoucherId(),voucherOrder);
+        }
+        //一条SELECT查出本批里已经下过单的用户，防止redis出错有漏网之鱼
+        //并发的其他消费者如果在这之后插入了同一用户的订单，下面的批量INSERT会撞唯一索引，整批回滚后逐条处理
+        Set<Long> userIds = unique.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = unique.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        LambdaQueryWrapper<VoucherOrder> voucherOrderWrapper = new LambdaQueryWrapper<>();
+        //超时取消的订单不算，也不在唯一索引里，这些用户可以重新下单
+        voucherOrderWrapper.select(VoucherOrder::getUserId,VoucherOrder::getVoucherId)
+                .in(VoucherOrder::getUserId,userIds)
+                .in(VoucherOrder::getVoucherId,voucherIds)
+                .ne(VoucherOrder::getStatus,ORDER_STATUS_CANCELLED);
+        for(VoucherOrder bought:voucherOrderMapper.selectList(voucherOrderWrapper)){
+            if(unique.remove(bought.getUserId()+":"+bought.getVoucherId()) != null){
+                log.error("该用户已购买过，userId:{}，voucherId:{}",bought.getUserId(),bought.getVoucherId());
+            }
+        }
+        List<VoucherOrder> toInsert = new ArrayList<>(unique.values());
+        if(toInsert.isEmpty()){
+            return toInsert;
+        }
+
+        //按优惠卷聚合，每张优惠卷一条 stock = stock - k，库存不够k个就整批回滚
+        Map<Long,Long> countByVoucher = toInsert.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId,Collectors.counting()));
+        for(Map.Entry<Long,Long> entry:countByVoucher.entrySet()){
+            long count = entry.getValue();
+            LambdaUpdateWrapper<SeckillVoucher> seckillVoucherWrapper = new LambdaUpdateWrapper<>();
+            seckillVoucherWrapper.setSql("stock = stock-"+count).ge(SeckillVoucher::getStock,count).eq(SeckillVoucher::getVoucherId,entry.getKey());
+            int rows = seckillVoucherMapper.update(null,seckillVoucherWrapper);
+            if(rows <= 0){
+                throw new RuntimeException("库存扣除失败，voucherId:"+entry.getKey()+"，数量:"+count);
+            }
+        }
+
+        int rows = voucherOrderMapper.insertBatch(toInsert);
+        if(rows != toInsert.size()){
+            throw new RuntimeException("优惠卷订单批量新增失败");
+        }
+        for(VoucherOrder voucherOrder:toInsert){
+            sendCancelTimer(voucherOrder.getId(),voucherOrder.getUserId(),voucherOrder.getVoucherId());
+        }
+        return toInsert;
     }
 
     @Override
     @Transactional
-    public void getResult(Long orderId,Long userId,Long voucherId) {
+    public boolean getResult(Long orderId,Long userId,Long voucherId) {
         //防止redis出错有漏网之鱼
-        //判断该用户是否已经购买过了
-        LambdaQueryWrapper<VoucherOrder> voucherOrderWrapper = new LambdaQueryWrapper<>();
-        voucherOrderWrapper.eq(VoucherOrder::getVoucherId,voucherId).eq(VoucherOrder::getUserId,userId);
-        List<VoucherOrder> voucherOrders = voucherOrderMapper.selectList(voucherOrderWrapper);
-        if(voucherOrders != null && voucherOrders.size() >= 1){
+        //先插入订单：同一用户重复下单会撞唯一索引uk_user_voucher，同一条消息重复投递会撞主键，
+        //这两种情况什么数据都没改，直接当作已处理（幂等）返回
+        //uk_user_voucher只包含未取消的订单，之前的订单超时取消了可以直接再插一条，取消的订单保留
+        //同一条消息在订单取消后重复投递撞的是主键，不会把取消的订单复活
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setVoucherId(voucherId);
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(userId);
+        try{
+            voucherOrderMapper.insert(voucherOrder);
+        }catch (DuplicateKeyException e){
             //该用户已经购买过
-            log.error("该用户已购买过");
-            return;
+            log.error("该用户已购买过，userId:{}，voucherId:{}",userId,voucherId);
+            return false;
         }
         //减库存
         //用乐观锁解决超卖问题，用库存量是否大于0来判断
@@ -184,18 +386,134 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         seckillVoucherWrapper.setSql("stock = stock-1").gt(SeckillVoucher::getStock,0).eq(SeckillVoucher::getVoucherId,voucherId);//条件构造，现库存大于0才可执行（及库存不变）
         int rows = seckillVoucherMapper.update(null,seckillVoucherWrapper);
         if(rows <= 0){
-            //回滚表示撤销当前事务的操作，如果当前事务并没有对数据进行修改，那么触发的回滚也不会修改任何数据
+            //回滚表示撤销当前事务的操作，这里会把上面插入的订单一起撤销
             throw new RuntimeException("库存扣除失败");
         }
+        sendCancelTimer(orderId,userId,voucherId);
+        return true;
+    }
 
-        VoucherOrder voucherOrder = new VoucherOrder();
-        voucherOrder.setVoucherId(voucherId);
-        voucherOrder.setId(orderId);
-        voucherOrder.setUserId(userId);
-        rows = voucherOrderMapper.insert(voucherOrder);
-        if(rows <= 0){
-            throw new RuntimeException("优惠卷订单新增失败");
+    /**
+     * 订单创建后发到延时队列，超时后死信到取消队列
+     * 事务如果回滚了订单不存在，取消时直接忽略
+     */
+    private void sendCancelTimer(Long orderId,Long userId,Long voucherId){
+        if(!cancelEnabled){
+            return;
+        }
+        Map<String,Object> msg = new HashMap<>();
+        msg.put("orderId",orderId);
+        msg.put("voucherId",voucherId);
+        msg.put("userId",userId);
+        rabbitTemplate.convertAndSend(RabbitMQConfig.SECKILL_ORDER_DELAY_QUEUE,msg);
+    }
+
+    @Override
+    public Result querySeckillOrderStatus(Long orderId) {
+        SeckillOrderStatus status = seckillOrderStatusCache.get(orderId);
+        if(status == null){
+            //状态已经过期，订单早就处理完了，这时才查数据库
+            VoucherOrder voucherOrder = voucherOrderMapper.selectById(orderId);
+            if(voucherOrder == null || !voucherOrder.getUserId().equals(UserHolder.getUser().getId())){
+                return Result.fail("订单不存在");
+            }
+            status = new SeckillOrderStatus();
+            status.setOrderId(orderId);
+            status.setUserId(voucherOrder.getUserId());
+            status.setStatus(Integer.valueOf(ORDER_STATUS_CANCELLED).equals(voucherOrder.getStatus())
+                    ? SeckillOrderStatus.CANCELLED : SeckillOrderStatus.CREATED);
+            return Result.ok(status);
+        }
+        //只能查自己的订单
+        if(!UserHolder.getUser().getId().equals(status.getUserId())){
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(status);
+    }
+
+    @Override
+    public DeferredResult<Result> waitSeckillOrderStatus(Long orderId, long timeoutMs) {
+        DeferredResult<Result> deferredResult = new DeferredResult<>(timeoutMs);
+        Result current = querySeckillOrderStatus(orderId);
+        //订单不存在或者已经有结果了，直接返回
+        if(!current.getSuccess() || ((SeckillOrderStatus) current.getData()).isFinished()){
+            deferredResult.setResult(current);
+            return deferredResult;
+        }
+        Runnable cancel = seckillOrderStatusCache.await(orderId, status -> deferredResult.setResult(Result.ok(status)));
+        //超时还没结果，返回排队中
+        deferredResult.onTimeout(() -> {
+            cancel.run();
+            deferredResult.setResult(current);
+        });
+        deferredResult.onCompletion(cancel);
+        return deferredResult;
+    }
+
+    @Override
+    public SseEmitter streamSeckillOrderStatus(Long orderId, long timeoutMs) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Result current = querySeckillOrderStatus(orderId);
+        try{
+            emitter.send(SseEmitter.event().name("status").data(current));
+        }catch (IOException e){
+            emitter.completeWithError(e);
+            return emitter;
+        }
+        if(!current.getSuccess() || ((SeckillOrderStatus) current.getData()).isFinished()){
+            emitter.complete();
+            return emitter;
         }
+        Runnable cancel = seckillOrderStatusCache.await(orderId, status -> {
+            try{
+                emitter.send(SseEmitter.event().name("status").data(Result.ok(status)));
+                emitter.complete();
+            }catch (IOException e){
+                emitter.completeWithError(e);
+            }
+        });
+        emitter.onTimeout(cancel);
+        emitter.onCompletion(cancel);
+        emitter.onError(e -> cancel.run());
+        return emitter;
+    }
+
+    @RabbitListener(queues = RabbitMQConfig.SECKILL_ORDER_CANCEL_QUEUE, autoStartup = "${hmdp.seckill.order.cancel.enabled:true}")
+    public void seckillOrderCancelListener(Map<String,Object> msg){
+        Long orderId = ((Number) msg.get("orderId")).longValue();
+        boolean cancelled = voucherOrderServiceImpl.cancelUnpaidOrder(orderId);
+        log.info("订单:{}超时未支付，取消结果:{}",orderId,cancelled);
+        if(cancelled){
+            seckillOrderStatusCache.cancelled(orderId,((Number) msg.get("userId")).longValue());
+        }
+    }
+
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(Long orderId) {
+        VoucherOrder voucherOrder = voucherOrderMapper.selectById(orderId);
+        if(voucherOrder == null || !Integer.valueOf(ORDER_STATUS_UNPAID).equals(voucherOrder.getStatus())){
+            //订单没创建成功、已支付或已经取消过了
+            return false;
+        }
+        //乐观锁，只有还是未支付才改成已取消，和支付并发时只有一个能成功
+        LambdaUpdateWrapper<VoucherOrder> orderWrapper = new LambdaUpdateWrapper<>();
+        orderWrapper.set(VoucherOrder::getStatus,ORDER_STATUS_CANCELLED)
+                .eq(VoucherOrder::getId,orderId)
+                .eq(VoucherOrder::getStatus,ORDER_STATUS_UNPAID);
+        if(voucherOrderMapper.update(null,orderWrapper) <= 0){
+            return false;
+        }
+        //归还数据库库存
+        LambdaUpdateWrapper<SeckillVoucher> seckillVoucherWrapper = new LambdaUpdateWrapper<>();
+        seckillVoucherWrapper.setSql("stock = stock+1").eq(SeckillVoucher::getVoucherId,voucherOrder.getVoucherId());
+        seckillVoucherMapper.update(null,seckillVoucherWrapper);
+        //归还redis库存和一人一单名额，redis异常抛出去让数据库回滚，消息重新投递
+        //lua只在用户还在已购集合里时加库存，重复执行不会多还
+        seckillStockUtil.releaseStock(voucherOrder.getVoucherId(),voucherOrder.getUserId());
+        //有库存了，清除各节点的售罄标记
+        soldOutRegistry.clear(voucherOrder.getVoucherId());
+        return true;
     }
 
 
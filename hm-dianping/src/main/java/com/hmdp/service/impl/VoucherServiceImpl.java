@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,25 +8,40 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillAdmissionLimiter;
+import com.hmdp.utils.SeckillStockUtil;
+import com.hmdp.utils.SoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
 
 
 @Service
+@Slf4j
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private SoldOutRegistry soldOutRegistry;
 
-    private static final String SECKILLVOUCHER_STOCK_KEY = "stock:seckillVoucher::";
+    @Autowired
+    private SeckillStockUtil seckillStockUtil;
+
+    @Autowired
+    private SeckillAdmissionLimiter seckillAdmissionLimiter;
+
+    //新增秒杀卷没有指定分片数时使用，1为单key
+    @Value("${hmdp.seckill.stock.default-shards:1}")
+    private int defaultStockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -47,8 +63,42 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //将秒杀卷库存存储到redis
-        stringRedisTemplate.opsForValue().set(SECKILLVOUCHER_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        //将秒杀卷库存和秒杀时间存储到redis，热门卷可以拆成多个分片分散到不同的key上
+        int shards = voucher.getStockShards() == null ? defaultStockShards : voucher.getStockShards();
+        seckillStockUtil.initStock(voucher.getId(),voucher.getStock(),shards,voucher.getBeginTime(),voucher.getEndTime());
+        //库存重新写入了，清除各节点的售罄标记
+        soldOutRegistry.clear(voucher.getId());
+        seckillAdmissionLimiter.reset(voucher.getId());
+    }
 
+    @Override
+    @Transactional
+    public Result restockSeckillVoucher(Long voucherId, Integer count) {
+        if(count == null || count <= 0){
+            return Result.fail("补充数量必须大于0");
+        }
+        //先加数据库库存，不是秒杀卷就直接返回
+        LambdaUpdateWrapper<SeckillVoucher> wrapper = new LambdaUpdateWrapper<>();
+        wrapper.setSql("stock = stock+"+count).eq(SeckillVoucher::getVoucherId,voucherId);
+        boolean updated = seckillVoucherService.update(wrapper);
+        if(!updated){
+            return Result.fail("该优惠卷不是限时秒杀优惠卷");
+        }
+        //数据库提交后再加redis库存：提交前加了，提交失败时redis会多出数据库没有的库存，
+        //分片模式加到一半失败也一样；提交后redis失败只会少卖，不会超卖
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try{
+                    seckillStockUtil.addStock(voucherId,count);
+                }catch (Exception e){
+                    log.error("补充redis库存失败，数据库库存已增加，需要手动补redis库存，voucherId:{}，count:{}", voucherId, count, e);
+                    return;
+                }
+                soldOutRegistry.clear(voucherId);
+                seckillAdmissionLimiter.reset(voucherId);
+            }
+        });
+        return Result.ok();
     }
 }
@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.hmdp.config.RabbitMQConfig;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+
+/**
+ * 关注流的推模式：发博客时把博客id推到每个粉丝的收件箱 zset feed:{userId}  member博客id  score发布时间戳
+ *      saveBlog只发一条mq消息，推送在消费者里做，粉丝再多也不拖慢发博客
+ *      粉丝按tb_follow的id分批查（不用OFFSET），每批一次pipeline ZADD，同时把收件箱裁到max-size条
+ *      消息重复投递时ZADD同样的member和score，不会重复
+ * 读收件箱见BlogServiceImpl.queryBlogOfFollow
+ */
+@Component
+@Slf4j
+public class BlogFeedFanout {
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    private FollowMapper followMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //每批查多少个粉丝、一次pipeline推多少个收件箱
+    @Value("${hmdp.blog.feed.batch-size:500}")
+    private int batchSize;
+
+    //每个收件箱最多保留的博客数，更早的删掉
+    @Value("${hmdp.blog.feed.max-size:1000}")
+    private int maxSize;
+
+    /**
+     * 发布博客后调用，异步推送到粉丝的收件箱
+     * @param blogId
+     * @param authorId
+     * @param timestamp 发布时间戳，收件箱按它排序
+     */
+    public void publish(Long blogId, Long authorId, long timestamp) {
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("blogId", blogId);
+        msg.put("authorId", authorId);
+        msg.put("timestamp", timestamp);
+        rabbitTemplate.convertAndSend(RabbitMQConfig.BLOG_FEED_QUEUE, msg);
+    }
+
+    @RabbitListener(queues = RabbitMQConfig.BLOG_FEED_QUEUE)
+    public void blogFeedListener(Map<String, Object> msg) {
+        //rabbitmq的json序列化会根据数字大小决定用Long还是Integer，手动转换为long
+        Long blogId = ((Number) msg.get("blogId")).longValue();
+        Long authorId = ((Number) msg.get("authorId")).longValue();
+        long timestamp = ((Number) msg.get("timestamp")).longValue();
+        long start = System.currentTimeMillis();
+        int fans = fanout(blogId, authorId, timestamp);
+        log.info("博客推送到粉丝收件箱，blogId:{}，粉丝数:{}，耗时:{}ms", blogId, fans, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 推送到作者所有粉丝的收件箱
+     * @return 粉丝数
+     */
+    public int fanout(Long blogId, Long authorId, long timestamp) {
+        byte[] member = blogId.toString().getBytes(StandardCharsets.UTF_8);
+        long lastId = 0;
+        int fans = 0;
+        while (true) {
+            //按主键往后翻，不用OFFSET，粉丝多的时候每批的代价一样
+            List<Follow> follows = followMapper.selectList(new LambdaQueryWrapper<Follow>()
+                    .select(Follow::getId, Follow::getUserId)
+                    .eq(Follow::getFollowUserId, authorId)
+                    .gt(Follow::getId, lastId)
+                    .orderByAsc(Follow::getId)
+                    .last("limit " + batchSize));
+            if (follows.isEmpty()) {
+                break;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Follow follow : follows) {
+                    byte[] key = (FEED_KEY + follow.getUserId()).getBytes(StandardCharsets.UTF_8);
+                    connection.zSetCommands().zAdd(key, timestamp, member);
+                    //只保留最新的max-size条
+                    connection.zSetCommands().zRemRange(key, 0, -maxSize - 1);
+                }
+                return null;
+            });
+            fans += follows.size();
+            lastId = follows.get(follows.size() - 1).getId();
+            if (follows.size() < batchSize) {
+                break;
+            }
+        }
+        return fans;
+    }
+}
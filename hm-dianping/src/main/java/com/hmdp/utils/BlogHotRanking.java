@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_RANK_KEY;
+
+/**
+ * 热门博客排行榜，zset blog:hot:rank  member博客id  score点赞数
+ *      点赞、取消点赞时在likeBlog.lua里和点赞记录一起改，分数直接设成最新点赞数
+ *      热门页按ZREVRANGE取一页id，再批量取博客，第几页的代价都一样，不用数据库的ORDER BY liked LIMIT offset
+ *      启动时从tb_blog流式读一遍重建，写到临时key里再RENAME，重建期间读的还是旧的排行榜
+ * 排行榜还没建好（key不存在）或者redis不可用时page返回null，由调用方按数据库排序兜底
+ */
+@Component
+@Slf4j
+public class BlogHotRanking {
+
+    //重建时写入的临时key，完成后RENAME成BLOG_HOT_RANK_KEY
+    private static final String BLOG_HOT_RANK_BUILDING_KEY = BLOG_HOT_RANK_KEY + ":building";
+
+    private static final String BLOG_HOT_RANK_LOCK = "lock:" + BLOG_HOT_RANK_KEY;
+
+    //和BlogServiceImpl里的点赞数key一致，重建时redis里的点赞数比数据库的新
+    private static final String BLOG_LIKE_NUMBER_KEY = "cache:blog:likeNumber::blog_";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    @Autowired
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    @Value("${hmdp.blog.hot-rank.rebuild-on-startup:true}")
+    private boolean rebuildOnStartup;
+
+    //重建时每攒多少行一次MGET点赞数、一次pipeline ZADD
+    @Value("${hmdp.blog.hot-rank.batch-size:500}")
+    private int batchSize;
+
+    @PostConstruct
+    public void init() {
+        if (!rebuildOnStartup) {
+            return;
+        }
+        try {
+            rebuild();
+        } catch (Exception e) {
+            //重建失败热门页按数据库排序兜底
+            log.error("热门博客排行榜重建失败", e);
+        }
+    }
+
+    /**
+     * 从数据库全量重建排行榜，多个节点同时启动时只有拿到锁的节点重建
+     * 重建期间的点赞加到了旧的排行榜上，RENAME之后以重建时读到的点赞数为准，下次点赞时再跟上
+     * @return 是否重建了
+     */
+    public boolean rebuild() {
+        if (!redisUtil.tryLock(BLOG_HOT_RANK_LOCK, 1, 600)) {
+            log.info("其他节点在重建热门博客排行榜");
+            return false;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            stringRedisTemplate.delete(BLOG_HOT_RANK_BUILDING_KEY);
+            AtomicLong count = new AtomicLong();
+            List<long[]> batch = new ArrayList<>(batchSize);
+            //mysql驱动fetchSize为Integer.MIN_VALUE时逐行读，不把整张表读进内存
+            jdbcTemplate.query(con -> {
+                PreparedStatement ps = con.prepareStatement("select id, liked from tb_blog",
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                ps.setFetchSize(Integer.MIN_VALUE);
+                return ps;
+            }, rs -> {
+                batch.add(new long[]{rs.getLong(1), rs.getLong(2)});
+                if (batch.size() >= batchSize) {
+                    writeBatch(batch);
+                    count.addAndGet(batch.size());
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                count.addAndGet(batch.size());
+            }
+            if (count.get() == 0) {
+                stringRedisTemplate.delete(BLOG_HOT_RANK_KEY);
+            } else {
+                stringRedisTemplate.rename(BLOG_HOT_RANK_BUILDING_KEY, BLOG_HOT_RANK_KEY);
+            }
+            log.info("热门博客排行榜重建完成，博客数:{}，耗时:{}ms", count.get(), System.currentTimeMillis() - start);
+            return true;
+        } finally {
+            redisUtil.deleteLock(BLOG_HOT_RANK_LOCK);
+        }
+    }
+
+    //一批博客：一次MGET取redis里的点赞数，一次pipeline写进临时key
+    private void writeBatch(List<long[]> batch) {
+        List<String> keys = new ArrayList<>(batch.size());
+        for (long[] row : batch) {
+            keys.add(BLOG_LIKE_NUMBER_KEY + row[0]);
+        }
+        List<String> likeNumbers = redisUtil.multiGetString(keys);
+        byte[] rankKey = BLOG_HOT_RANK_BUILDING_KEY.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < batch.size(); i++) {
+                String likeNumber = likeNumbers.get(i);
+                double score = likeNumber == null || likeNumber.isEmpty() ? batch.get(i)[1] : Double.parseDouble(likeNumber);
+                connection.zSetCommands().zAdd(rankKey, score,
+                        String.valueOf(batch.get(i)[0]).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 新博客加入排行榜，已经在排行榜里的不覆盖分数
+     * @param blogId
+     */
+    public void add(Long blogId) {
+        try {
+            redisCircuitBreaker.run(() -> stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                    connection.zSetCommands().zAdd(BLOG_HOT_RANK_KEY.getBytes(StandardCharsets.UTF_8), 0,
+                            blogId.toString().getBytes(StandardCharsets.UTF_8), RedisZSetCommands.ZAddArgs.ifNotExists())));
+        } catch (Exception e) {
+            //下次点赞或者重建时会加进去
+            log.error("新博客加入排行榜失败，blogId:{}", blogId, e);
+        }
+    }
+
+    /**
+     * 按点赞数从高到低取一页博客id
+     * @param current 页码，从1开始
+     * @param pageSize
+     * @return 博客id，超过最后一页返回空列表，排行榜不存在或者redis不可用返回null
+     */
+    public List<Long> page(int current, int pageSize) {
+        long start = (long) (Math.max(current, 1) - 1) * pageSize;
+        Set<String> members;
+        try {
+            members = redisCircuitBreaker.call(() ->
+                    stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_RANK_KEY, start, start + pageSize - 1));
+            if ((members == null || members.isEmpty())
+                    && !Boolean.TRUE.equals(redisCircuitBreaker.call(() -> stringRedisTemplate.hasKey(BLOG_HOT_RANK_KEY)))) {
+                return null;
+            }
+        } catch (RedisUnavailableException e) {
+            return null;
+        }
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        List<Long> blogIds = new ArrayList<>(members.size());
+        for (String member : members) {
+            blogIds.add(Long.valueOf(member));
+        }
+        return blogIds;
+    }
+}
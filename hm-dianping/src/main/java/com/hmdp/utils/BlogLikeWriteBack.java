@@ -0,0 +1,227 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_DIRTY_KEY;
+
+/**
+ * 点赞数写回数据库，由MyTask定时调用
+ *      likeBlog.lua把点赞数变了的博客id放进待同步zset（权值为第一次变化的时间）
+ *      同步时从待同步里按变化时间取出一批（likeFlushPop.lua，取出和放进同步中是一步），一次MGET点赞数，
+ *      一条UPDATE ... CASE写回数据库，成功后从同步中删掉；失败或者节点挂了，同步中的id下次放回待同步
+ *      所有节点都调度，只有拿到选主租约的节点同步，租约每次同步时续期，主节点挂了租约过期后其他节点接手
+ * 指标：hmdp.blog.like.flush.batch.size 每批博客数  hmdp.blog.like.flush.lag 点赞数变化到写回数据库的时间
+ *      hmdp.blog.like.flush.pending 待同步的博客数  hmdp.blog.like.flush.rows 写回的行数
+ */
+@Component
+@Slf4j
+public class BlogLikeWriteBack {
+
+    //和BlogServiceImpl里的点赞数key一致
+    private static final String BLOG_LIKE_NUMBER_KEY = "cache:blog:likeNumber::blog_";
+
+    //同步中的博客id，只有主节点读写
+    private static final String BLOG_LIKE_FLUSHING_KEY = BLOG_LIKE_DIRTY_KEY + ":flushing";
+
+    private static final String BLOG_LIKE_FLUSH_LEADER_KEY = "leader:blog:like:flush";
+
+    private static final DefaultRedisScript<List> POP_SCRIPT;
+    private static final DefaultRedisScript<Long> LEADER_SCRIPT;
+    static {
+        POP_SCRIPT = new DefaultRedisScript<>();
+        POP_SCRIPT.setLocation(new ClassPathResource("Lua/likeFlushPop.lua"));
+        POP_SCRIPT.setResultType(List.class);
+        LEADER_SCRIPT = new DefaultRedisScript<>();
+        LEADER_SCRIPT.setLocation(new ClassPathResource("Lua/leaderLease.lua"));
+        LEADER_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.blog.like.flush.batch-size:500}")
+    private int batchSize;
+
+    //一次同步最多处理几批，剩下的下次再同步，不让一次同步占太久
+    @Value("${hmdp.blog.like.flush.max-batches:20}")
+    private int maxBatches;
+
+    //选主租约时间，要比同步间隔长几倍，主节点挂了这么久之后其他节点接手
+    @Value("${hmdp.blog.like.flush.leader-lease-ms:10000}")
+    private long leaderLeaseMs;
+
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+
+    private volatile boolean leader;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicInteger leaderGauge = new AtomicInteger();
+
+    private DistributionSummary batchSizeSummary;
+    private Timer lagTimer;
+    private Counter rowsCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    public void init() {
+        batchSizeSummary = DistributionSummary.builder("hmdp.blog.like.flush.batch.size")
+                .description("每批写回的博客数")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        lagTimer = Timer.builder("hmdp.blog.like.flush.lag")
+                .description("点赞数变化到写回数据库的时间")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        rowsCounter = meterRegistry.counter("hmdp.blog.like.flush.rows");
+        failedCounter = meterRegistry.counter("hmdp.blog.like.flush.failed");
+        Gauge.builder("hmdp.blog.like.flush.pending", pending, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("hmdp.blog.like.flush.leader", leaderGauge, AtomicInteger::get).register(meterRegistry);
+    }
+
+    /**
+     * 同步一次，不是主节点直接返回
+     * @return 写回的博客数
+     */
+    public int flush() {
+        leader = Long.valueOf(1).equals(stringRedisTemplate.execute(LEADER_SCRIPT,
+                Collections.singletonList(BLOG_LIKE_FLUSH_LEADER_KEY), nodeId, String.valueOf(leaderLeaseMs)));
+        leaderGauge.set(leader ? 1 : 0);
+        if (!leader) {
+            return 0;
+        }
+        //上次没同步完的放回待同步，时间取早的
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_LIKE_FLUSHING_KEY))) {
+            stringRedisTemplate.opsForZSet().unionAndStore(BLOG_LIKE_DIRTY_KEY, Collections.singletonList(BLOG_LIKE_FLUSHING_KEY),
+                    BLOG_LIKE_DIRTY_KEY, RedisZSetCommands.Aggregate.MIN);
+            stringRedisTemplate.delete(BLOG_LIKE_FLUSHING_KEY);
+        }
+        int flushed = 0;
+        for (int i = 0; i < maxBatches; i++) {
+            int size = flushBatch();
+            flushed += size;
+            if (size < batchSize) {
+                break;
+            }
+        }
+        Long remaining = stringRedisTemplate.opsForZSet().zCard(BLOG_LIKE_DIRTY_KEY);
+        pending.set(remaining == null ? 0 : remaining);
+        if (flushed > 0) {
+            log.info("点赞数写回数据库，博客数:{}，待同步:{}", flushed, pending.get());
+        }
+        return flushed;
+    }
+
+    //取出一批写回数据库，返回取出的博客数
+    private int flushBatch() {
+        List<Object> popped = stringRedisTemplate.execute(POP_SCRIPT,
+                Arrays.asList(BLOG_LIKE_DIRTY_KEY, BLOG_LIKE_FLUSHING_KEY), String.valueOf(batchSize));
+        if (popped == null || popped.isEmpty()) {
+            return 0;
+        }
+        List<String> blogIds = new ArrayList<>(popped.size() / 2);
+        List<Long> dirtyAt = new ArrayList<>(popped.size() / 2);
+        List<String> keys = new ArrayList<>(popped.size() / 2);
+        for (int i = 0; i < popped.size(); i += 2) {
+            String blogId = popped.get(i).toString();
+            blogIds.add(blogId);
+            dirtyAt.add((long) Double.parseDouble(popped.get(i + 1).toString()));
+            keys.add(BLOG_LIKE_NUMBER_KEY + blogId);
+        }
+        List<String> likeNumbers = redisUtil.multiGetString(keys);
+        List<Blog> blogs = new ArrayList<>(blogIds.size());
+        for (int i = 0; i < blogIds.size(); i++) {
+            //点赞数过期了没有可写的，跳过
+            String likeNumber = likeNumbers.get(i);
+            if (likeNumber == null || likeNumber.isEmpty()) {
+                continue;
+            }
+            Blog blog = new Blog();
+            blog.setId(Long.valueOf(blogIds.get(i)));
+            blog.setLiked(Integer.valueOf(likeNumber));
+            blogs.add(blog);
+        }
+        if (!blogs.isEmpty()) {
+            try {
+                rowsCounter.increment(blogMapper.updateLikedBatch(blogs));
+            } catch (Exception e) {
+                //留在同步中，下次放回待同步重试
+                failedCounter.increment();
+                log.error("点赞数写回数据库失败，博客数:{}", blogs.size(), e);
+                return 0;
+            }
+        }
+        stringRedisTemplate.opsForZSet().remove(BLOG_LIKE_FLUSHING_KEY, blogIds.toArray());
+        long now = System.currentTimeMillis();
+        for (Long at : dirtyAt) {
+            lagTimer.record(Math.max(now - at, 0), TimeUnit.MILLISECONDS);
+        }
+        batchSizeSummary.record(blogIds.size());
+        return blogIds.size();
+    }
+
+    //节点关闭时主动放弃租约，其他节点不用等租约过期
+    @PreDestroy
+    public void releaseLeader() {
+        if (leader) {
+            try {
+                redisUtil.deleteLock(BLOG_LIKE_FLUSH_LEADER_KEY, nodeId);
+            } catch (Exception e) {
+                log.warn("放弃点赞数同步的租约失败");
+            }
+        }
+    }
+
+    /**
+     * 同步状态
+     * @return
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("leader", leader);
+        metrics.put("pending", pending.get());
+        metrics.put("batches", batchSizeSummary.count());
+        metrics.put("batchSizeMean", batchSizeSummary.mean());
+        metrics.put("rows", (long) rowsCounter.count());
+        metrics.put("failed", (long) failedCounter.count());
+        metrics.put("lagMeanMs", lagTimer.mean(TimeUnit.MILLISECONDS));
+        metrics.put("lagMaxMs", lagTimer.max(TimeUnit.MILLISECONDS));
+        return metrics;
+    }
+}
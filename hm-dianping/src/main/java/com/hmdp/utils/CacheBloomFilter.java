@@ -0,0 +1,199 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.BloomFilterProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存穿透的第一道防线：按缓存前缀维护一份主键的布隆过滤器，不存在的id不查redis也不查数据库
+ * 启动时从表里加载全部主键，定时全量重建（数据删除后过滤器里的旧id会在重建后清掉）
+ * 新增数据后调用add，通过redis发布订阅让所有节点都加上
+ * 过滤器还没加载好、或者前缀没有配置时一律当作可能存在
+ */
+@Component
+@Slf4j
+public class CacheBloomFilter implements MessageListener {
+
+    private static final String CACHE_BLOOM_CHANNEL = "channel:cache:bloom";
+
+    @Autowired
+    private BloomFilterProperties bloomFilterProperties;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private static class Holder {
+        private final BloomFilterProperties.Spec spec;
+        //正在使用的过滤器，加载完成前为null
+        private volatile IdBloomFilter current;
+        //重建中的过滤器，重建期间新增的id两边都要加
+        private volatile IdBloomFilter building;
+        private volatile long elements;
+        private volatile long rebuiltAt;
+        private final AtomicLong rejected = new AtomicLong();
+
+        Holder(BloomFilterProperties.Spec spec) {
+            this.spec = spec;
+        }
+    }
+
+    //缓存前缀 -> 过滤器
+    private final Map<String, Holder> holders = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!bloomFilterProperties.isEnabled()) {
+            return;
+        }
+        for (BloomFilterProperties.Spec spec : bloomFilterProperties.getSpecs()) {
+            holders.put(spec.getPrefix(), new Holder(spec));
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+        rebuildAll();
+    }
+
+    /**
+     * 定时全量重建
+     */
+    @Scheduled(initialDelayString = "${hmdp.cache.bloom.rebuild-interval-ms:3600000}",
+            fixedDelayString = "${hmdp.cache.bloom.rebuild-interval-ms:3600000}")
+    public void rebuildAll() {
+        for (Holder holder : holders.values()) {
+            try {
+                rebuild(holder);
+            } catch (Exception e) {
+                //重建失败继续用旧的过滤器，第一次加载失败就不过滤
+                holder.building = null;
+                log.error("布隆过滤器重建失败，前缀:{}，表:{}", holder.spec.getPrefix(), holder.spec.getTable(), e);
+            }
+        }
+    }
+
+    private void rebuild(Holder holder) {
+        BloomFilterProperties.Spec spec = holder.spec;
+        long start = System.currentTimeMillis();
+        Long count = jdbcTemplate.queryForObject("select count(*) from " + spec.getTable(), Long.class);
+        long expected = Math.max(spec.getExpectedInsertions(), count == null ? 0 : count * 2);
+        IdBloomFilter filter = new IdBloomFilter(expected, spec.getFpp());
+        holder.building = filter;
+        AtomicLong elements = new AtomicLong();
+        //逐行放进过滤器，不把全部id读到list里
+        jdbcTemplate.query("select id from " + spec.getTable(), rs -> {
+            filter.put(rs.getLong(1));
+            elements.incrementAndGet();
+        });
+        holder.current = filter;
+        holder.building = null;
+        holder.elements = elements.get();
+        holder.rebuiltAt = System.currentTimeMillis();
+        log.info("布隆过滤器重建完成，前缀:{}，元素个数:{}，内存:{}KB，哈希次数:{}，耗时:{}ms", spec.getPrefix(), elements.get(),
+                filter.memoryBytes() / 1024, filter.getHashCount(), holder.rebuiltAt - start);
+    }
+
+    /**
+     * 判断id是否可能存在
+     * @param keyPrefix 缓存前缀
+     * @param id
+     * @return false表示数据库里一定没有
+     */
+    public <ID> boolean mightContain(String keyPrefix, ID id) {
+        Holder holder = holders.get(keyPrefix);
+        if (holder == null || !(id instanceof Number)) {
+            return true;
+        }
+        IdBloomFilter filter = holder.current;
+        if (filter == null || filter.mightContain(((Number) id).longValue())) {
+            return true;
+        }
+        holder.rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 新增数据后把id加入所有节点的过滤器
+     * @param keyPrefix 缓存前缀
+     * @param id
+     */
+    public void add(String keyPrefix, Long id) {
+        if (!holders.containsKey(keyPrefix) || id == null) {
+            return;
+        }
+        addLocal(keyPrefix, id);
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, keyPrefix + "|" + id);
+        } catch (Exception e) {
+            //其他节点要到下次重建才能查到这条数据
+            log.error("布隆过滤器新增广播失败，前缀:{}，id:{}", keyPrefix, id, e);
+        }
+    }
+
+    private void addLocal(String keyPrefix, long id) {
+        Holder holder = holders.get(keyPrefix);
+        if (holder == null) {
+            return;
+        }
+        IdBloomFilter building = holder.building;
+        if (building != null) {
+            building.put(id);
+        }
+        IdBloomFilter current = holder.current;
+        if (current != null) {
+            current.put(id);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        //消息格式 缓存前缀|id，前缀里有冒号，从最后一个|分开
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf('|');
+        if (index <= 0) {
+            log.error("无法识别的布隆过滤器消息:{}", body);
+            return;
+        }
+        addLocal(body.substring(0, index), Long.parseLong(body.substring(index + 1)));
+    }
+
+    /**
+     * 每个前缀的过滤器状态
+     * @return
+     */
+    public Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, Holder> entry : holders.entrySet()) {
+            Holder holder = entry.getValue();
+            IdBloomFilter filter = holder.current;
+            Map<String, Object> prefixStats = new LinkedHashMap<>();
+            prefixStats.put("ready", filter != null);
+            prefixStats.put("elements", holder.elements);
+            prefixStats.put("memoryBytes", filter == null ? 0 : filter.memoryBytes());
+            prefixStats.put("hashCount", filter == null ? 0 : filter.getHashCount());
+            prefixStats.put("fpp", holder.spec.getFpp());
+            prefixStats.put("rejected", holder.rejected.get());
+            prefixStats.put("rebuiltAt", holder.rebuiltAt);
+            stats.put(entry.getKey(), prefixStats);
+        }
+        return stats;
+    }
+}
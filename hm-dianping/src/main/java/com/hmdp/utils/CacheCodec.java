@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+
+/**
+ * RedisUtil写入redis的缓存值的编解码
+ * 解码时带上完整的泛型类型，RedisData<Blog>这种嵌套类型一次就能解析成对象，不会变成JSONObject再转一次
+ * 实现：JacksonCacheCodec.json() 可读的json，JacksonCacheCodec.smile() 更小更快的二进制
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码名称，用于日志和统计
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, JavaType type);
+
+    default <T> T decode(byte[] bytes, Class<T> type) {
+        return decode(bytes, TypeFactory.defaultInstance().constructType(type));
+    }
+
+    /**
+     * 构造RedisData<T>的类型
+     * @param dataType data的类型
+     * @return
+     */
+    static JavaType redisDataType(Class<?> dataType) {
+        return TypeFactory.defaultInstance().constructParametricType(RedisData.class, dataType);
+    }
+
+    /**
+     * 构造RedisData<T>的类型，data是List<Blog>这种泛型类型时用
+     * @param dataType data的类型
+     * @return
+     */
+    static JavaType redisDataType(JavaType dataType) {
+        return TypeFactory.defaultInstance().constructParametricType(RedisData.class, dataType);
+    }
+}
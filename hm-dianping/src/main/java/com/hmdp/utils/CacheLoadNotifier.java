@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 缓存重建完成的通知
+ * 拿到互斥锁的节点重建完缓存后发布key，其他节点上等待这个key的请求被唤醒后直接读redis，不用固定休眠轮询
+ * 每个节点每个key最多只有一个请求在等（同节点的其他请求在RedisUtil里等这个请求的结果）
+ */
+@Component
+@Slf4j
+public class CacheLoadNotifier implements MessageListener {
+
+    private static final String CACHE_LOADED_CHANNEL = "channel:cache:loaded";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //key -> 本节点等待这个key重建完成的请求
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void subscribe() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_LOADED_CHANNEL));
+    }
+
+    /**
+     * 开始等待key重建完成，要在检查redis之前调用，防止检查完到开始等待之间错过通知
+     * @param key 完整的key
+     * @return 收到通知时完成
+     */
+    public CompletableFuture<Void> await(String key) {
+        return waiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+    }
+
+    /**
+     * 不再等待，超时或者已经拿到结果时调用
+     */
+    public void cancel(String key, CompletableFuture<Void> waiter) {
+        waiters.remove(key, waiter);
+    }
+
+    /**
+     * 通知所有节点key已经重建完成
+     * @param key 完整的key
+     */
+    public void loaded(String key) {
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+        } catch (Exception e) {
+            //通知失败等待的请求会在退避重试时自己读到
+            log.error("缓存重建通知发送失败，key:{}", key, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        CompletableFuture<Void> waiter = waiters.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (waiter != null) {
+            waiter.complete(null);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * RedisUtil按loader查询缓存时的写入策略，@HmdpCacheable的属性最终转成这个
+ */
+@Data
+public class CacheLoadOptions {
+
+    //缓存时间，逻辑过期模式下是逻辑过期时间
+    private long ttlMillis;
+
+    //缓存时间的随机浮动比例，0.1表示在ttl的±10%之间，同一批写入的key不会同时过期
+    private double jitter;
+
+    //数据库里没有时是否缓存空值
+    private boolean cacheNull = true;
+
+    //空值的缓存时间
+    private long nullTtlMillis;
+
+    //未命中时是否用互斥锁保证只有一个请求查数据库，false为直接查（读穿透）
+    private boolean mutex = true;
+
+    /**
+     * 加上随机浮动后的缓存时间
+     * @return
+     */
+    public long nextTtlMillis() {
+        if (jitter <= 0) {
+            return ttlMillis;
+        }
+        double factor = 1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter);
+        return Math.max(1, (long) (ttlMillis * factor));
+    }
+}
@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存指标，按缓存前缀打标签注册到Micrometer，通过/actuator/metrics和/actuator/prometheus查看
+ *      hmdp.cache.gets          计数  layer=bloom|hot|redis|stale  result=hit|null_hit|miss|rejected
+ *      hmdp.cache.load          耗时  查数据库重建缓存，result=success|error
+ *      hmdp.cache.lock.wait     耗时  没拿到重建权的请求等待的时间，result=local|notified|acquired|timeout
+ *      hmdp.cache.refresh       计数  逻辑过期重建任务，result=submitted|deduplicated|rejected|early
+ *      hmdp.cache.refresh.lag   耗时  逻辑过期后多久才重建完成
+ *      hmdp.cache.errors        计数  operation=write|decode|shed（redis熔断、本地没有旧数据、查数据库也被限流）
+ * 耗时都带百分位直方图，按前缀调TTL时看p99
+ * 本地缓存的命中率由LocalCacheManager注册Caffeine自带的指标
+ */
+@Component
+public class CacheMetrics {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    //前缀 -> 指标名+标签 -> 指标，避免每次记录都去registry里查
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Counter>> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Timer>> timers = new ConcurrentHashMap<>();
+
+    public void redisHit(String prefix) {
+        counter(prefix, "hmdp.cache.gets", "layer", "redis", "result", "hit").increment();
+    }
+
+    //命中了缓存的空值
+    public void redisNullHit(String prefix) {
+        counter(prefix, "hmdp.cache.gets", "layer", "redis", "result", "null_hit").increment();
+    }
+
+    public void redisMiss(String prefix) {
+        counter(prefix, "hmdp.cache.gets", "layer", "redis", "result", "miss").increment();
+    }
+
+    //命中本节点自动晋升的热点key
+    public void hotHit(String prefix) {
+        counter(prefix, "hmdp.cache.gets", "layer", "hot", "result", "hit").increment();
+    }
+
+    //redis熔断期间返回了本地保留的旧数据
+    public void staleHit(String prefix) {
+        counter(prefix, "hmdp.cache.gets", "layer", "stale", "result", "hit").increment();
+    }
+
+    public void bloomRejected(String prefix) {
+        counter(prefix, "hmdp.cache.gets", "layer", "bloom", "result", "rejected").increment();
+    }
+
+    public void load(String prefix, long nanos, boolean success) {
+        timer(prefix, "hmdp.cache.load", "result", success ? "success" : "error").record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void lockWait(String prefix, long nanos, String result) {
+        timer(prefix, "hmdp.cache.lock.wait", "result", result).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void refresh(String prefix, String result) {
+        counter(prefix, "hmdp.cache.refresh", "result", result).increment();
+    }
+
+    public void refreshLag(String prefix, long millis) {
+        timer(prefix, "hmdp.cache.refresh.lag").record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void error(String prefix, String operation) {
+        counter(prefix, "hmdp.cache.errors", "operation", operation).increment();
+    }
+
+    /**
+     * 从完整的key里取缓存前缀，cache:shop::1 -> cache:shop::
+     * @param key
+     * @return 没有::分隔的key返回other
+     */
+    public static String prefixOf(String key) {
+        int index = key.lastIndexOf("::");
+        return index < 0 ? "other" : key.substring(0, index + 2);
+    }
+
+    private Counter counter(String prefix, String name, String... tags) {
+        return counters.computeIfAbsent(prefix, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(label(name, tags), k -> Counter.builder(name)
+                        .tag("prefix", prefix)
+                        .tags(tags)
+                        .register(meterRegistry));
+    }
+
+    private Timer timer(String prefix, String name, String... tags) {
+        return timers.computeIfAbsent(prefix, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(label(name, tags), k -> Timer.builder(name)
+                        .tag("prefix", prefix)
+                        .tags(tags)
+                        .publishPercentiles(0.5, 0.95, 0.99)
+                        .publishPercentileHistogram()
+                        .minimumExpectedValue(Duration.ofNanos(100_000))
+                        .maximumExpectedValue(Duration.ofSeconds(10))
+                        .register(meterRegistry));
+    }
+
+    //hmdp.cache.gets + layer=redis,result=hit -> gets.redis.hit
+    private static String label(String name, String... tags) {
+        StringBuilder label = new StringBuilder(name.substring("hmdp.cache.".length()));
+        for (int i = 1; i < tags.length; i += 2) {
+            label.append('.').append(tags[i]);
+        }
+        return label.toString();
+    }
+
+    /**
+     * 每个前缀的指标快照，给管理接口用
+     * @return 前缀 -> 指标
+     */
+    public Map<String, Map<String, Object>> snapshot() {
+        Map<String, Map<String, Object>> snapshot = new TreeMap<>();
+        counters.forEach((prefix, byLabel) -> {
+            Map<String, Object> prefixStats = snapshot.computeIfAbsent(prefix, k -> new TreeMap<>());
+            byLabel.forEach((label, counter) -> prefixStats.put(label, (long) counter.count()));
+        });
+        timers.forEach((prefix, byLabel) -> {
+            Map<String, Object> prefixStats = snapshot.computeIfAbsent(prefix, k -> new TreeMap<>());
+            byLabel.forEach((label, timer) -> {
+                HistogramSnapshot histogram = timer.takeSnapshot();
+                Map<String, Object> timerStats = new LinkedHashMap<>();
+                timerStats.put("count", histogram.count());
+                timerStats.put("meanMs", histogram.mean(TimeUnit.MILLISECONDS));
+                timerStats.put("maxMs", histogram.max(TimeUnit.MILLISECONDS));
+                for (ValueAtPercentile percentile : histogram.percentileValues()) {
+                    timerStats.put("p" + Math.round(percentile.percentile() * 100) + "Ms", percentile.value(TimeUnit.MILLISECONDS));
+                }
+                prefixStats.put(label, timerStats);
+            });
+        });
+        return snapshot;
+    }
+}
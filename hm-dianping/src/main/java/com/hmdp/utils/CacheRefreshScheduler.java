@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 逻辑过期缓存的异步重建调度
+ *      同一个key在本节点最多只有一个排队或者执行中的重建任务，重复提交直接忽略
+ *      XFetch提前过期：按这类缓存重建耗时的滑动平均，越接近逻辑过期时间越可能提前触发重建，
+ *                    热点key在过期前就被刷新，不会出现一批请求同时读到过期数据
+ *      有界队列，队列满了丢弃新任务（请求继续返回旧数据），记录丢弃次数
+ *      统计排队时间和过期后多久才刷新完成
+ */
+@Component
+@Slf4j
+public class CacheRefreshScheduler {
+
+    //还没有重建耗时数据时按这个估算
+    private static final double DEFAULT_LOAD_MILLIS = 50.0;
+
+    //重建耗时滑动平均的权重
+    private static final double EWMA_ALPHA = 0.2;
+
+    @Value("${hmdp.cache.refresh.threads:4}")
+    private int threads;
+
+    @Value("${hmdp.cache.refresh.queue-capacity:1000}")
+    private int queueCapacity;
+
+    //XFetch的beta，越大越提前刷新，0关闭提前刷新
+    @Value("${hmdp.cache.refresh.beta:1.0}")
+    private double beta;
+
+    @Autowired
+    private CacheMetrics cacheMetrics;
+
+    private ThreadPoolExecutor refreshPool;
+
+    //key -> 提交时间，本节点排队或者执行中的重建任务
+    private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<>();
+
+    //分组（缓存前缀） -> 重建耗时滑动平均，单位毫秒
+    private final ConcurrentHashMap<String, Double> loadMillis = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder early = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder queueWaitMillisTotal = new LongAdder();
+    private final AtomicLong queueWaitMillisMax = new AtomicLong();
+    private final LongAdder staleMillisTotal = new LongAdder();
+    private final LongAdder staleCount = new LongAdder();
+    private final AtomicLong staleMillisMax = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadSeq = new AtomicInteger();
+        refreshPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-refresh-" + threadSeq.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                //队列满了不在请求线程里执行，丢掉这次重建，请求继续用旧数据
+                //去掉排队标记，下次请求还能再提交
+                (r, executor) -> {
+                    RefreshTask refreshTask = (RefreshTask) r;
+                    refreshTask.rejected = true;
+                    pending.remove(refreshTask.key, refreshTask.submittedAt);
+                    rejected.increment();
+                    cacheMetrics.refresh(refreshTask.group, "rejected");
+                });
+    }
+
+    private class RefreshTask implements Runnable {
+        private final String group;
+        private final String key;
+        private final long submittedAt;
+        private final long expireAt;
+        private final BooleanSupplier task;
+        //拒绝策略在提交线程里同步执行，提交完就能知道有没有被拒绝
+        private boolean rejected;
+
+        RefreshTask(String group, String key, long submittedAt, long expireAt, BooleanSupplier task) {
+            this.group = group;
+            this.key = key;
+            this.submittedAt = submittedAt;
+            this.expireAt = expireAt;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            recordMax(queueWaitMillisMax, queueWaitMillisTotal, start - submittedAt);
+            try {
+                if (task.getAsBoolean()) {
+                    long end = System.currentTimeMillis();
+                    loadMillis.merge(group, (double) (end - start),
+                            (old, sample) -> old * (1 - EWMA_ALPHA) + sample * EWMA_ALPHA);
+                    if (expireAt > 0 && end > expireAt) {
+                        staleCount.increment();
+                        recordMax(staleMillisMax, staleMillisTotal, end - expireAt);
+                        cacheMetrics.refreshLag(group, end - expireAt);
+                    }
+                }
+                completed.increment();
+            } catch (Exception e) {
+                failed.increment();
+                cacheMetrics.refresh(group, "failed");
+                log.error("缓存重建失败，key:{}", key, e);
+            } finally {
+                pending.remove(key, submittedAt);
+            }
+        }
+    }
+
+    /**
+     * 是否按XFetch提前重建：now - 重建耗时 * beta * ln(random) >= 逻辑过期时间
+     * @param group 缓存前缀
+     * @param expireTime 逻辑过期时间
+     * @return
+     */
+    public boolean shouldRefreshEarly(String group, LocalDateTime expireTime) {
+        if (beta <= 0 || expireTime == null) {
+            return false;
+        }
+        long expireAt = toMillis(expireTime);
+        double delta = loadMillis.getOrDefault(group, DEFAULT_LOAD_MILLIS);
+        double gap = -delta * beta * Math.log(ThreadLocalRandom.current().nextDouble(Double.MIN_VALUE, 1.0));
+        return System.currentTimeMillis() + gap >= expireAt;
+    }
+
+    /**
+     * 提交重建任务
+     * @param group 缓存前缀，用来统计这类缓存的重建耗时
+     * @param key 完整的key，同一个key同时只有一个任务
+     * @param expireTime 逻辑过期时间，用来统计过期多久后才刷新完成
+     * @param task 重建任务，返回true表示真的重建了（拿到锁查了数据库）
+     * @return 是否提交成功
+     */
+    public boolean submit(String group, String key, LocalDateTime expireTime, BooleanSupplier task) {
+        long submittedAt = System.currentTimeMillis();
+        if (pending.putIfAbsent(key, submittedAt) != null) {
+            deduplicated.increment();
+            cacheMetrics.refresh(group, "deduplicated");
+            return false;
+        }
+        long expireAt = expireTime == null ? 0 : toMillis(expireTime);
+        RefreshTask refreshTask = new RefreshTask(group, key, submittedAt, expireAt, task);
+        refreshPool.execute(refreshTask);
+        if (refreshTask.rejected) {
+            return false;
+        }
+        submitted.increment();
+        cacheMetrics.refresh(group, "submitted");
+        if (submittedAt < expireAt) {
+            early.increment();
+            cacheMetrics.refresh(group, "early");
+        }
+        return true;
+    }
+
+    private static void recordMax(AtomicLong max, LongAdder total, long value) {
+        total.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 重建统计
+     * @return
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long completedCount = completed.sum() + failed.sum();
+        long staleTimes = staleCount.sum();
+        metrics.put("submitted", submitted.sum());
+        metrics.put("deduplicated", deduplicated.sum());
+        metrics.put("rejected", rejected.sum());
+        metrics.put("early", early.sum());
+        metrics.put("completed", completed.sum());
+        metrics.put("failed", failed.sum());
+        metrics.put("pending", pending.size());
+        metrics.put("queueSize", refreshPool.getQueue().size());
+        metrics.put("queueWaitMillisAvg", completedCount == 0 ? 0 : queueWaitMillisTotal.sum() / completedCount);
+        metrics.put("queueWaitMillisMax", queueWaitMillisMax.get());
+        metrics.put("staleRefreshes", staleTimes);
+        metrics.put("staleMillisAvg", staleTimes == 0 ? 0 : staleMillisTotal.sum() / staleTimes);
+        metrics.put("staleMillisMax", staleMillisMax.get());
+        metrics.put("loadMillisEwma", new LinkedHashMap<>(loadMillis));
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        log.info("开始关闭缓存重建线程池...");
+        refreshPool.shutdown();
+        try {
+            if (!refreshPool.awaitTermination(10, TimeUnit.SECONDS)) {
+                List<Runnable> remainingTasks = refreshPool.shutdownNow();
+                log.warn("强制关闭缓存重建线程池，未执行的任务数：{}", remainingTasks.size());
+            }
+        } catch (InterruptedException e) {
+            refreshPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点key探测，RedisUtil每次读缓存时按采样率记录一次访问
+ *      count-min sketch估算每个key的访问次数，每个窗口所有计数减半，很久以前的访问逐渐不算数
+ *      估算值超过阈值的key进入top-K，同时晋升为热点：值放进本节点短TTL的缓存，读这个key不再访问redis
+ *      窗口结束时估算值掉到阈值一半以下的key降级，删掉本地的值
+ * 和LocalCacheManager的区别：本地缓存按前缀配置，热点缓存不用配置，任何前缀的key热起来都会自动缓存在本节点
+ * 热点缓存的值同样在RedisUtil.delete时通过失效广播删除，TTL很短，兜底没收到广播的情况
+ */
+@Component
+@Slf4j
+public class HotKeyDetector {
+
+    //count-min sketch的行数，每行一个哈希函数
+    private static final int DEPTH = 4;
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+
+    //采样率，1为每次读都记录
+    @Value("${hmdp.cache.hot-key.sample-rate:0.1}")
+    private double sampleRate;
+
+    //每行的计数器个数，按2的幂取整
+    @Value("${hmdp.cache.hot-key.sketch-width:4096}")
+    private int sketchWidth;
+
+    //衰减后的访问次数估算值超过这个数晋升为热点
+    @Value("${hmdp.cache.hot-key.threshold:500}")
+    private long threshold;
+
+    @Value("${hmdp.cache.hot-key.top-k:50}")
+    private int topK;
+
+    //热点值在本节点缓存的时间
+    @Value("${hmdp.cache.hot-key.ttl-ms:2000}")
+    private long ttlMs;
+
+    private int widthMask;
+
+    private AtomicLongArray counts;
+
+    //key -> 热点信息，最多topK个
+    private final ConcurrentHashMap<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    //热点key的值
+    private Cache<String, Object> values;
+
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+
+    private static class HotKey {
+        private final String prefix;
+        private final long promotedAt;
+        private volatile long estimate;
+
+        HotKey(String prefix, long estimate) {
+            this.prefix = prefix;
+            this.estimate = estimate;
+            this.promotedAt = System.currentTimeMillis();
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        int width = Integer.highestOneBit(Math.max(sketchWidth - 1, 1)) << 1;
+        widthMask = width - 1;
+        counts = new AtomicLongArray(DEPTH * width);
+        values = Caffeine.newBuilder()
+                .maximumSize(Math.max(topK, 1))
+                .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 记录一次读，按采样率计数，估算值过了阈值就晋升为热点
+     * @param keyPrefix
+     * @param key 完整的key
+     */
+    public void record(String keyPrefix, String key) {
+        if (!enabled || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return;
+        }
+        long estimate = scale(increment(key));
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey != null) {
+            hotKey.estimate = estimate;
+            return;
+        }
+        if (estimate >= threshold) {
+            promote(keyPrefix, key, estimate);
+        }
+    }
+
+    /**
+     * 取热点key在本节点的值
+     * @param key 完整的key
+     * @return 不是热点或者值已经过期返回null，缓存的空值返回LocalCacheManager.NULL_VALUE
+     */
+    public Object get(String key) {
+        if (hotKeys.isEmpty()) {
+            return null;
+        }
+        return values.getIfPresent(key);
+    }
+
+    /**
+     * 从redis读到值之后调用，是热点才缓存
+     * @param key 完整的key
+     * @param value
+     */
+    public void putIfHot(String key, Object value) {
+        if (hotKeys.containsKey(key)) {
+            values.put(key, value == null ? LocalCacheManager.NULL_VALUE : value);
+        }
+    }
+
+    public void invalidate(String key) {
+        values.invalidate(key);
+    }
+
+    private synchronized void promote(String keyPrefix, String key, long estimate) {
+        if (hotKeys.containsKey(key)) {
+            return;
+        }
+        if (hotKeys.size() >= topK) {
+            //top-K满了，比最冷的那个热才替换它
+            Map.Entry<String, HotKey> coldest = null;
+            for (Map.Entry<String, HotKey> entry : hotKeys.entrySet()) {
+                if (coldest == null || entry.getValue().estimate < coldest.getValue().estimate) {
+                    coldest = entry;
+                }
+            }
+            if (coldest == null || coldest.getValue().estimate >= estimate) {
+                return;
+            }
+            demote(coldest.getKey());
+        }
+        hotKeys.put(key, new HotKey(keyPrefix, estimate));
+        promotions.increment();
+        log.info("热点key晋升:{}，估算访问次数:{}", key, estimate);
+    }
+
+    private void demote(String key) {
+        if (hotKeys.remove(key) != null) {
+            values.invalidate(key);
+            demotions.increment();
+            log.info("热点key降级:{}", key);
+        }
+    }
+
+    /**
+     * 窗口结束，所有计数减半，重新估算热点key，冷下来的降级
+     * 降级阈值是晋升阈值的一半，避免在阈值附近来回晋升降级
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.window-ms:10000}")
+    public void decay() {
+        if (!enabled) {
+            return;
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                counts.getAndUpdate(i, c -> c >> 1);
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<String, HotKey> entry : hotKeys.entrySet()) {
+                long estimate = scale(estimate(entry.getKey()));
+                entry.getValue().estimate = estimate;
+                if (estimate < threshold / 2) {
+                    demote(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private long increment(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * (widthMask + 1) + ((h1 + i * h2) & widthMask);
+            min = Math.min(min, counts.incrementAndGet(index));
+        }
+        return min;
+    }
+
+    private long estimate(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * (widthMask + 1) + ((h1 + i * h2) & widthMask);
+            min = Math.min(min, counts.get(index));
+        }
+        return min;
+    }
+
+    //采样计数换算成实际访问次数
+    private long scale(long sampled) {
+        return sampleRate >= 1 ? sampled : (long) (sampled / sampleRate);
+    }
+
+    //FNV-1a再用SplitMix64打散，高低32位当两个哈希函数
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * 当前的热点key，按估算访问次数从高到低
+     * @return
+     */
+    public Map<String, Object> stats() {
+        List<Map.Entry<String, HotKey>> entries = new ArrayList<>(hotKeys.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, HotKey> e) -> e.getValue().estimate).reversed());
+        List<Map<String, Object>> keys = new ArrayList<>(entries.size());
+        for (Map.Entry<String, HotKey> entry : entries) {
+            Map<String, Object> hotKey = new LinkedHashMap<>();
+            hotKey.put("key", entry.getKey());
+            hotKey.put("prefix", entry.getValue().prefix);
+            hotKey.put("estimate", entry.getValue().estimate);
+            hotKey.put("promotedAt", entry.getValue().promotedAt);
+            hotKey.put("cached", values.getIfPresent(entry.getKey()) != null);
+            keys.add(hotKey);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("sampleRate", sampleRate);
+        stats.put("threshold", threshold);
+        stats.put("topK", topK);
+        stats.put("promotions", promotions.sum());
+        stats.put("demotions", demotions.sum());
+        stats.put("hotKeys", keys);
+        return stats;
+    }
+}
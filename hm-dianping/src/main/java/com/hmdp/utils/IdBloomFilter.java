@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 存放数据库主键的布隆过滤器，位数组放在本节点内存
+ * 按预计元素个数和误判率计算位数组长度和哈希次数：
+ *      m = -n * ln(p) / (ln2)^2      k = m / n * ln2
+ * 可以并发添加和查询，不支持删除
+ */
+public class IdBloomFilter {
+
+    private final AtomicLongArray bits;
+
+    //位数组长度
+    private final long bitSize;
+
+    //每个元素的哈希次数
+    private final int hashCount;
+
+    public IdBloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        //位数组按long分配，长度取64的整数倍
+        long words = Math.max((m + 63) / 64, 1);
+        this.bits = new AtomicLongArray((int) words);
+        this.bitSize = words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+    }
+
+    public void put(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long old;
+            do {
+                old = bits.get(word);
+                if ((old & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    /**
+     * @param id
+     * @return false表示一定不存在，true表示可能存在
+     */
+    public boolean mightContain(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //占用的内存，单位字节
+    public long memoryBytes() {
+        return bitSize / 8;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    //SplitMix64的混合函数，连续的自增id也能打散到整个位数组
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,102 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * 基于jackson的缓存编解码，json和smile共用同一套配置
+ * LocalDateTime统一编码成毫秒时间戳（本地时区），和原来JSONUtil写入的格式一致，新旧缓存可以互相读
+ */
+public class JacksonCacheCodec implements CacheCodec {
+
+    private final String name;
+
+    private final ObjectMapper objectMapper;
+
+    private JacksonCacheCodec(String name, ObjectMapper objectMapper) {
+        this.name = name;
+        this.objectMapper = objectMapper;
+    }
+
+    public static JacksonCacheCodec json() {
+        return new JacksonCacheCodec("json", configure(new ObjectMapper()));
+    }
+
+    public static JacksonCacheCodec smile() {
+        return new JacksonCacheCodec("smile", configure(new ObjectMapper(new SmileFactory())));
+    }
+
+    private static ObjectMapper configure(ObjectMapper objectMapper) {
+        SimpleModule timeModule = new SimpleModule();
+        timeModule.addSerializer(LocalDateTime.class, new EpochMillisSerializer());
+        timeModule.addDeserializer(LocalDateTime.class, new EpochMillisDeserializer());
+        return objectMapper
+                .registerModule(new JavaTimeModule())
+                .registerModule(timeModule)
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                //实体加了字段，旧缓存里没有；删了字段，旧缓存里多出来，都不能解析失败
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存编码失败:" + value.getClass().getName(), e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, JavaType type) {
+        try {
+            return objectMapper.readValue(bytes, type);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存解码失败:" + type, e);
+        }
+    }
+
+    private static class EpochMillisSerializer extends JsonSerializer<LocalDateTime> {
+        @Override
+        public void serialize(LocalDateTime value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeNumber(value.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+    }
+
+    private static class EpochMillisDeserializer extends JsonDeserializer<LocalDateTime> {
+        @Override
+        public LocalDateTime deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            if (p.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+                return LocalDateTime.ofInstant(Instant.ofEpochMilli(p.getLongValue()), ZoneId.systemDefault());
+            }
+            //兼容iso格式的字符串
+            String text = p.getValueAsString();
+            if (text == null || text.isEmpty()) {
+                return null;
+            }
+            return LocalDateTime.parse(text);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.hmdp.config.LocalCacheProperties;
+import com.hmdp.config.RedisDegradeProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RedisUtil的一级缓存：每个缓存前缀一个Caffeine，缓存反序列化之后的对象，命中时不用访问redis也不用解析json
+ * 缓存删除和重建时通过redis发布订阅通知所有节点删掉本地的这个key
+ * 另外每个从redis读到或者重建出来的值都在本节点多保留一份旧数据（不分前缀，保留stale-seconds），
+ * 只在redis熔断时返回，见RedisUtil
+ * 注意：本地缓存里的对象是所有请求共享的，调用方不要修改返回的对象
+ */
+@Component
+@Slf4j
+public class LocalCacheManager implements MessageListener {
+
+    private static final String CACHE_EVICT_CHANNEL = "channel:cache:evict";
+
+    //本地缓存里表示"数据库里也没有"的空值
+    public static final Object NULL_VALUE = new Object();
+
+    @Autowired
+    private LocalCacheProperties localCacheProperties;
+
+    @Autowired
+    private RedisDegradeProperties redisDegradeProperties;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //广播消息带上节点标识，自己发的失效消息不用再处理一次
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+
+    //缓存前缀 -> 本地缓存
+    private final Map<String, Cache<String, Object>> caches = new ConcurrentHashMap<>();
+
+    //redis熔断时返回的旧数据
+    private Cache<String, Object> staleCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    //热点key的值也缓存在本节点，跟着本地缓存一起失效
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+
+    @PostConstruct
+    public void init() {
+        if (localCacheProperties.isEnabled()) {
+            for (LocalCacheProperties.Spec spec : localCacheProperties.getSpecs()) {
+                Cache<String, Object> cache = Caffeine.newBuilder()
+                        .maximumSize(spec.getMaximumSize())
+                        .expireAfterWrite(spec.getExpireAfterWriteSeconds(), TimeUnit.SECONDS)
+                        .recordStats()
+                        .build();
+                //命中率、淘汰数注册成cache.gets、cache.evictions等指标，cache标签为前缀
+                CaffeineCacheMetrics.monitor(meterRegistry, cache, spec.getPrefix());
+                caches.put(spec.getPrefix(), cache);
+                log.info("本地缓存:{}，最大条数:{}，过期时间:{}秒", spec.getPrefix(), spec.getMaximumSize(), spec.getExpireAfterWriteSeconds());
+            }
+        }
+        staleCache = Caffeine.newBuilder()
+                .maximumSize(redisDegradeProperties.getStaleMaximumSize())
+                .expireAfterWrite(redisDegradeProperties.getStaleSeconds(), TimeUnit.SECONDS)
+                .build();
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_EVICT_CHANNEL));
+    }
+
+    /**
+     * 查本地缓存
+     * @param keyPrefix
+     * @param key 完整的key
+     * @return 没有命中或者该前缀没有本地缓存返回null，数据库里不存在的数据返回NULL_VALUE
+     */
+    public Object get(String keyPrefix, String key) {
+        Cache<String, Object> cache = caches.get(keyPrefix);
+        return cache == null ? null : cache.getIfPresent(key);
+    }
+
+    public void put(String keyPrefix, String key, Object value) {
+        Cache<String, Object> cache = caches.get(keyPrefix);
+        if (cache != null) {
+            cache.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+
+    /**
+     * 保留一份旧数据，redis熔断时返回
+     * @param key 完整的key
+     * @param value 缓存的值，null为数据库里不存在
+     */
+    public void putStale(String key, Object value) {
+        if (redisDegradeProperties.isEnabled()) {
+            staleCache.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+
+    /**
+     * 取旧数据
+     * @param key 完整的key
+     * @return 没有返回null，数据库里不存在的数据返回NULL_VALUE
+     */
+    public Object getStale(String key) {
+        return staleCache.getIfPresent(key);
+    }
+
+    /**
+     * 删除所有节点本地缓存中的key
+     * @param key 完整的key
+     */
+    public void evict(String key) {
+        //没有配置本地缓存的前缀不用广播，开了热点探测时任何key都可能在某个节点上是热点
+        if (!evictLocal(key) && !hotKeyDetector.isEnabled()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_EVICT_CHANNEL, nodeId + "|" + key);
+        } catch (Exception e) {
+            //广播失败其他节点只能等本地缓存过期
+            log.error("本地缓存失效广播失败，key:{}", key, e);
+        }
+    }
+
+    /**
+     * 批量删除所有节点本地缓存中的key，所有key合成一条广播
+     * @param keys 完整的key
+     */
+    public void evictAll(Collection<String> keys) {
+        StringBuilder body = new StringBuilder(nodeId).append('|');
+        boolean broadcast = hotKeyDetector.isEnabled();
+        boolean first = true;
+        for (String key : keys) {
+            broadcast |= evictLocal(key);
+            if (!first) {
+                body.append('\n');
+            }
+            body.append(key);
+            first = false;
+        }
+        if (first || !broadcast) {
+            return;
+        }
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_EVICT_CHANNEL, body.toString());
+        } catch (Exception e) {
+            log.error("本地缓存失效广播失败，key数:{}", keys.size(), e);
+        }
+    }
+
+    /**
+     * 只删除本节点本地缓存中的key
+     * @param key 完整的key
+     * @return key是否属于配置了本地缓存的前缀
+     */
+    public boolean evictLocal(String key) {
+        hotKeyDetector.invalidate(key);
+        staleCache.invalidate(key);
+        boolean matched = false;
+        for (Map.Entry<String, Cache<String, Object>> entry : caches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                entry.getValue().invalidate(key);
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        //消息格式 节点标识|key，批量删除时多个key用换行分隔
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf('|');
+        if (index <= 0 || body.substring(0, index).equals(nodeId)) {
+            return;
+        }
+        for (String key : body.substring(index + 1).split("\n")) {
+            evictLocal(key);
+        }
+    }
+
+    /**
+     * 每个前缀本地缓存的命中统计，redis和数据库两层的统计在CacheMetrics
+     * @return
+     */
+    public Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        caches.forEach((keyPrefix, cache) -> {
+            CacheStats cacheStats = cache.stats();
+            Map<String, Object> prefixStats = new LinkedHashMap<>();
+            prefixStats.put("localHits", cacheStats.hitCount());
+            prefixStats.put("localMisses", cacheStats.missCount());
+            prefixStats.put("localHitRatio", cacheStats.hitRate());
+            prefixStats.put("localEvictions", cacheStats.evictionCount());
+            prefixStats.put("localSize", cache.estimatedSize());
+            stats.put(keyPrefix, prefixStats);
+        });
+        Map<String, Object> staleStats = new LinkedHashMap<>();
+        staleStats.put("localSize", staleCache.estimatedSize());
+        stats.put("stale", staleStats);
+        return stats;
+    }
+}
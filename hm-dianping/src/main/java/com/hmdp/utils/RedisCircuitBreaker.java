@@ -0,0 +1,244 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RedisDegradeProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * redis熔断器，包住请求路径上的redis调用
+ *      关闭：正常调用，统计最近window-size次调用，失败（连接失败、超时）和慢调用的比例达到阈值就熔断
+ *      熔断：直接抛RedisUnavailableException，不再等redis超时，调用方返回本地旧数据或者限流查数据库
+ *      半开：熔断open-ms之后放half-open-calls个请求去试探，全部成功恢复，有一个失败继续熔断
+ * 同时提供熔断期间直接查数据库的许可：限制并发数和每秒次数，redis挂了不能把数据库也打挂
+ * 只有DataAccessException算失败，lua脚本返回错误之类的业务异常原样抛出
+ */
+@Slf4j
+public class RedisCircuitBreaker {
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final RedisDegradeProperties properties;
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+
+    private volatile long openedAt;
+
+    //半开状态下已经放出去的试探请求和成功数
+    private final AtomicInteger halfOpenPermits = new AtomicInteger();
+    private final AtomicInteger halfOpenSuccesses = new AtomicInteger();
+
+    //最近window-size次调用的结果，true为失败
+    private final boolean[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int windowFailures;
+
+    private final Semaphore dbConcurrency;
+
+    //每秒查数据库的许可：当前秒和这一秒已经发出去的许可
+    private final AtomicLong dbPermitSecond = new AtomicLong();
+    private final AtomicInteger dbPermitsUsed = new AtomicInteger();
+
+    private final Counter successCounter;
+    private final Counter failureCounter;
+    private final Counter slowCounter;
+    private final Counter rejectedCounter;
+    private final Counter dbShedCounter;
+    private final AtomicLong opened = new AtomicLong();
+
+    public RedisCircuitBreaker(RedisDegradeProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.window = new boolean[Math.max(properties.getWindowSize(), 1)];
+        this.dbConcurrency = new Semaphore(properties.getDbConcurrency());
+        Gauge.builder("hmdp.redis.circuit.state", state, AtomicInteger::get)
+                .description("0关闭 1熔断 2半开")
+                .register(meterRegistry);
+        this.successCounter = meterRegistry.counter("hmdp.redis.circuit.calls", "result", "success");
+        this.failureCounter = meterRegistry.counter("hmdp.redis.circuit.calls", "result", "failure");
+        this.slowCounter = meterRegistry.counter("hmdp.redis.circuit.calls", "result", "slow");
+        this.rejectedCounter = meterRegistry.counter("hmdp.redis.circuit.calls", "result", "rejected");
+        this.dbShedCounter = meterRegistry.counter("hmdp.redis.degrade.db.shed");
+    }
+
+    /**
+     * 通过熔断器调用redis
+     * @param redisCall
+     * @return
+     * @throws RedisUnavailableException 熔断中，或者redis连接失败、超时
+     */
+    public <T> T call(Supplier<T> redisCall) {
+        if (!properties.isEnabled()) {
+            return redisCall.get();
+        }
+        if (!tryPermit()) {
+            rejectedCounter.increment();
+            throw new RedisUnavailableException("redis熔断中", true);
+        }
+        long start = System.nanoTime();
+        T result;
+        try {
+            result = redisCall.get();
+        } catch (DataAccessException e) {
+            onResult(false);
+            failureCounter.increment();
+            throw new RedisUnavailableException("redis调用失败", e);
+        } catch (RuntimeException e) {
+            //业务异常说明redis是通的
+            onResult(true);
+            throw e;
+        }
+        boolean fast = System.nanoTime() - start <= properties.getSlowCallMs() * 1_000_000L;
+        onResult(fast);
+        if (fast) {
+            successCounter.increment();
+        } else {
+            slowCounter.increment();
+        }
+        return result;
+    }
+
+    public void run(Runnable redisCall) {
+        call(() -> {
+            redisCall.run();
+            return null;
+        });
+    }
+
+    /**
+     * 是否熔断中，只读状态不占用半开的试探名额
+     * @return
+     */
+    public boolean isOpen() {
+        return properties.isEnabled() && state.get() == OPEN
+                && System.currentTimeMillis() - openedAt < properties.getOpenMs();
+    }
+
+    private boolean tryPermit() {
+        int current = state.get();
+        if (current == CLOSED) {
+            return true;
+        }
+        if (current == OPEN) {
+            if (System.currentTimeMillis() - openedAt < properties.getOpenMs()) {
+                return false;
+            }
+            //熔断时间到了，第一个请求把状态改成半开
+            if (state.compareAndSet(OPEN, HALF_OPEN)) {
+                halfOpenPermits.set(0);
+                halfOpenSuccesses.set(0);
+                log.info("redis熔断进入半开，放{}个请求试探", properties.getHalfOpenCalls());
+            }
+        }
+        return state.get() == HALF_OPEN && halfOpenPermits.incrementAndGet() <= properties.getHalfOpenCalls();
+    }
+
+    private void onResult(boolean success) {
+        if (state.get() == HALF_OPEN) {
+            if (!success) {
+                open();
+            } else if (halfOpenSuccesses.incrementAndGet() >= properties.getHalfOpenCalls()
+                    && state.compareAndSet(HALF_OPEN, CLOSED)) {
+                resetWindow();
+                log.info("redis熔断恢复");
+            }
+            return;
+        }
+        boolean shouldOpen;
+        synchronized (window) {
+            if (windowCount == window.length) {
+                if (window[windowIndex]) {
+                    windowFailures--;
+                }
+            } else {
+                windowCount++;
+            }
+            window[windowIndex] = !success;
+            if (!success) {
+                windowFailures++;
+            }
+            windowIndex = (windowIndex + 1) % window.length;
+            shouldOpen = windowCount >= properties.getMinimumCalls()
+                    && windowFailures >= windowCount * properties.getFailureRateThreshold();
+        }
+        if (shouldOpen && state.get() == CLOSED) {
+            open();
+        }
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        if (state.getAndSet(OPEN) != OPEN) {
+            opened.incrementAndGet();
+            log.error("redis调用失败率过高，熔断{}毫秒", properties.getOpenMs());
+        }
+    }
+
+    private void resetWindow() {
+        synchronized (window) {
+            windowIndex = 0;
+            windowCount = 0;
+            windowFailures = 0;
+        }
+    }
+
+    /**
+     * 熔断期间直接查数据库前申请许可，拿到后必须调用releaseDbPermit
+     * @return 超过并发数或者这一秒的次数用完了返回false
+     */
+    public boolean tryAcquireDbPermit() {
+        if (!dbConcurrency.tryAcquire()) {
+            dbShedCounter.increment();
+            return false;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        long current = dbPermitSecond.get();
+        if (current != second && dbPermitSecond.compareAndSet(current, second)) {
+            dbPermitsUsed.set(0);
+        }
+        if (dbPermitsUsed.incrementAndGet() > properties.getDbPermitsPerSecond()) {
+            dbConcurrency.release();
+            dbShedCounter.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public void releaseDbPermit() {
+        dbConcurrency.release();
+    }
+
+    /**
+     * 熔断器状态
+     * @return
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        int current = state.get();
+        stats.put("enabled", properties.isEnabled());
+        stats.put("state", current == CLOSED ? "CLOSED" : current == OPEN ? "OPEN" : "HALF_OPEN");
+        stats.put("openedTimes", opened.get());
+        synchronized (window) {
+            stats.put("windowCalls", windowCount);
+            stats.put("windowFailures", windowFailures);
+        }
+        stats.put("success", (long) successCounter.count());
+        stats.put("failure", (long) failureCounter.count());
+        stats.put("slow", (long) slowCounter.count());
+        stats.put("rejected", (long) rejectedCounter.count());
+        stats.put("dbShed", (long) dbShedCounter.count());
+        stats.put("dbConcurrencyAvailable", dbConcurrency.availablePermits());
+        return stats;
+    }
+}
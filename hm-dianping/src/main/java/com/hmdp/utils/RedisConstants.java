@@ -16,6 +16,10 @@ public class RedisConstants {
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    //热门博客排行榜，zset blogId -> 点赞数
+    public static final String BLOG_HOT_RANK_KEY = "blog:hot:rank";
+    //点赞数变了、还没同步到数据库的博客id，zset权值为第一次变化的时间
+    public static final String BLOG_LIKE_DIRTY_KEY = "blog:like:dirty";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
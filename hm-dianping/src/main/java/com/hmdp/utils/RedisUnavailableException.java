@@ -0,0 +1,28 @@
+package com.hmdp.utils;
+
+/**
+ * redis熔断中或者调用redis失败（连接失败、超时），调用方按降级处理
+ */
+public class RedisUnavailableException extends RuntimeException {
+
+    //true为熔断中直接拒绝，命令没有发给redis；false时命令可能已经在redis上执行了，只是没拿到结果
+    private final boolean rejected;
+
+    public RedisUnavailableException(String message) {
+        this(message, false);
+    }
+
+    public RedisUnavailableException(String message, boolean rejected) {
+        super(message);
+        this.rejected = rejected;
+    }
+
+    public RedisUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+        this.rejected = false;
+    }
+
+    public boolean isRejected() {
+        return rejected;
+    }
+}
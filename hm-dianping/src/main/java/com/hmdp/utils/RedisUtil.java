@@ -1,27 +1,47 @@
 package com.hmdp.utils;
 
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Component
 @Slf4j
@@ -32,8 +52,51 @@ public class RedisUtil {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
-    //创建线程池为10个线程
-    private final ExecutorService CACHE_REFRESH_POOL = Executors.newFixedThreadPool(10);
+    @Autowired
+    private LocalCacheManager localCacheManager;
+
+    @Autowired
+    private CacheLoadNotifier cacheLoadNotifier;
+
+    @Autowired
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Autowired
+    private CacheCodec cacheCodec;
+
+    @Autowired
+    private CacheMetrics cacheMetrics;
+
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+
+    //缓存读写通过熔断器访问redis，熔断时返回本地旧数据或者限流查数据库
+    @Autowired
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    //redis里缓存的空值
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    //readCache表示redis里没有这个缓存，和缓存的空值null区分开
+    private static final Object CACHE_MISS = new Object();
+
+    //key -> 本节点正在重建这个key的请求的结果
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    //缓存未命中时等待其他节点重建的最长时间，超过就直接查数据库
+    @Value("${hmdp.cache.load-wait-ms:3000}")
+    private long loadWaitMs;
+
+    //等待其他节点重建时的退避间隔
+    private static final long LOAD_BACKOFF_MIN_MILLIS = 10L;
+    private static final long LOAD_BACKOFF_MAX_MILLIS = 200L;
+
+    //同节点的请求比重建的请求多等一会，重建的请求自己超时后还要查一次数据库
+    private static final long LOAD_WAIT_GRACE_MILLIS = 1000L;
+
+    //逻辑过期缓存的异步重建，同一个key只排一个任务
+    @Autowired
+    private CacheRefreshScheduler cacheRefreshScheduler;
 
     //lua脚本的加载类                        返回类型
     private static final DefaultRedisScript<Long> REDIS_SCRIPT;
@@ -51,14 +114,28 @@ public class RedisUtil {
 
     public <T> boolean tryLock(String key,T value,long time){
         //setIfAbsent创建键值对，如果存在则创建并返回true,否则不创建返回false
-        Boolean aBoolean = stringRedisTemplate.opsForValue().setIfAbsent(key, value+"", time, TimeUnit.SECONDS);
+        Boolean aBoolean = redisCircuitBreaker.call(() -> stringRedisTemplate.opsForValue().setIfAbsent(key, value+"", time, TimeUnit.SECONDS));
 //        return aBoolean.booleanValue();这种方法无法避免当aBoolean为null产生报错
         return Boolean.TRUE.equals(aBoolean);//直接用其与TRUE进行对比
     }
 
     //普通缓存删除
     public void deleteLock(String key){
-        stringRedisTemplate.delete(key);
+        redisCircuitBreaker.run(() -> stringRedisTemplate.delete(key));
+    }
+
+    /**
+     * 删除缓存，同时删除所有节点本地缓存中的这个key
+     * 数据库更新后删缓存用这个方法，不要直接用stringRedisTemplate.delete
+     * @param key 完整的key
+     */
+    public void delete(String key){
+        redisCircuitBreaker.run(() -> stringRedisTemplate.delete(key));
+        localCacheManager.evict(key);
+    }
+
+    public <ID> void evict(String keyPrefix, ID id){
+        delete(keyPrefix + id);
     }
     /**
      * 分布式锁对应锁的缓存删除，主要实现（判断该线程和该锁是不是对应关系，对应可删）
@@ -72,40 +149,51 @@ public class RedisUtil {
 
     //往redis添加缓存，具有TTL过期时间
     public boolean setValueForRedis(String key, Object val, Long time, TimeUnit timeUnit){
-        //将val转成json,如果val为空就存入空缓存
-        String json = "";
-        if(val != null){
-            json = JSONUtil.toJsonStr(val);
-        }
+        return setValueForRedis(key, val, time, timeUnit, true);
+    }
+
+    /**
+     * @param broadcast 是否通知所有节点删掉本地缓存；未命中后的回填不用，
+     *                  redis里原来没有这个key，其他节点本地不会有比它新的值，扫一遍不存在的id也不会每个都广播一次
+     */
+    private boolean setValueForRedis(String key, Object val, Long time, TimeUnit timeUnit, boolean broadcast){
         try{
-            //如果抛出异常就表示缓存失败
-            stringRedisTemplate.opsForValue().set(key,json,time,timeUnit);
+            //如果val为空就存入空缓存，如果抛出异常就表示缓存失败
+            writeBytes(key, encode(val), time, timeUnit);
         }catch (Exception e){
-            log.info("缓存创建时错误");
+            log.info("缓存创建时错误，key:{}", key);
+            cacheMetrics.error(CacheMetrics.prefixOf(key), "write");
             return false;
         }
+        //redis里的值变了，各节点本地缓存里的旧值要删掉
+        if(broadcast){
+            localCacheManager.evict(key);
+        }
         return true;
     }
 
     //往redis添加缓存，逻辑过期时间
     public <T> boolean setValueForRedis(String key, T val, LocalDateTime localDateTime){
+        return setValueForRedis(key, val, localDateTime, true);
+    }
+
+    private <T> boolean setValueForRedis(String key, T val, LocalDateTime localDateTime, boolean broadcast){
         //初始化封装类型
         RedisData<T> redisData = new RedisData<>();
         redisData.setData(val);
         redisData.setExpireTime(localDateTime);
-        //将redisData转json,如果val为空就存入空缓存
-        String json = "";
-        if(val != null){
-            json = JSONUtil.toJsonStr(redisData);
-        }
         try{
-            //报错则表示缓存创建失败
-            if(json.equals("")) stringRedisTemplate.opsForValue().set(key,json,1L,TimeUnit.MINUTES);
-            else stringRedisTemplate.opsForValue().set(key,json);
+            //如果val为空就存入空缓存，报错则表示缓存创建失败
+            if(val == null) writeBytes(key,EMPTY_VALUE,1L,TimeUnit.MINUTES);
+            else writeBytes(key,cacheCodec.encode(redisData),null,null);
         }catch(Exception e){
-            log.info("缓存创建时错误");
+            log.info("缓存创建时错误，key:{}", key);
+            cacheMetrics.error(CacheMetrics.prefixOf(key), "write");
             return false;
         }
+        if(broadcast){
+            localCacheManager.evict(key);
+        }
         return true;
     }
 
@@ -119,57 +207,380 @@ public class RedisUtil {
      * @param <ID>
      */
     public <T,ID> T getValueTTL(String keyPrefix, ID id, Class<T> classType, BaseMapper<T> tMapper){
-        //初始化锁名
-        String lockName = "lock:"+keyPrefix;
         //缓存空值用TTL不用逻辑过期，需要排除逻辑过期
         if(classType == RedisData.class){
             log.info("缓存空值用TTL不用逻辑过期");
             return null;
         }
+        //布隆过滤器判断数据库里一定没有的id，不查redis也不查数据库
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
+        String key = keyPrefix + id;
+        Object value = getOrLoad(keyPrefix, key, TypeFactory.defaultInstance().constructType(classType), true, true,
+                () -> selectById(keyPrefix, id, tMapper),
+                t -> setValueForRedis(key, t, 1L, TimeUnit.MINUTES, false));
+        return classType.cast(value);
+    }
+
+    /**
+     * 根据key查找缓存，未命中时调用loader查数据库，按options写入redis
+     * @HmdpCacheable的互斥锁和读穿透模式用这个方法
+     * @param keyPrefix
+     * @param id
+     * @param type 缓存值的类型，可以是List<ShopType>这种泛型类型
+     * @param loader 查数据库
+     * @param options 缓存时间、空值、是否互斥
+     * @return
+     */
+    public <T,ID> T getValueTTL(String keyPrefix, ID id, JavaType type, Supplier<T> loader, CacheLoadOptions options){
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
+        String key = keyPrefix + id;
+        return (T) getOrLoad(keyPrefix, key, type, options.isMutex(), options.isCacheNull(),
+                () -> load(keyPrefix, loader),
+                value -> writeTTL(key, value, options, false));
+    }
+
+    /**
+     * 根据key查找逻辑过期的缓存，未命中时调用loader查数据库写入缓存，过期了返回旧数据并提交重建任务
+     * @HmdpCacheable的逻辑过期模式用这个方法，重建任务在重建线程池里调用loader
+     * @param keyPrefix
+     * @param id
+     * @param dataType data的类型
+     * @param loader 查数据库
+     * @param options ttl是逻辑过期时间
+     * @return data，数据库里没有返回null
+     */
+    public <T,ID> T getValueTime(String keyPrefix, ID id, JavaType dataType, Supplier<T> loader, CacheLoadOptions options){
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
+        String key = keyPrefix + id;
+        RedisData<T> redisData = (RedisData<T>) getOrLoad(keyPrefix, key, CacheCodec.redisDataType(dataType),
+                options.isMutex(), options.isCacheNull(),
+                () -> toRedisData(load(keyPrefix, loader), options),
+                value -> writeLogical(key, (RedisData<?>) value, options, false));
+        if(redisData == null){
+            return null;
+        }
+        //过期了或者快过期了（XFetch提前过期），提交重建任务，这次先返回旧数据
+        if(LocalDateTime.now().compareTo(redisData.getExpireTime()) > 0
+                || cacheRefreshScheduler.shouldRefreshEarly(keyPrefix, redisData.getExpireTime())){
+            submitRefresh(keyPrefix, key, redisData.getExpireTime(),
+                    () -> writeLogical(key, toRedisData(load(keyPrefix, loader), options), options, true));
+        }
+        return redisData.getData();
+    }
+
+    //布隆过滤器判断数据库里一定没有的id
+    private <ID> boolean mightContain(String keyPrefix, ID id){
+        if(cacheBloomFilter.mightContain(keyPrefix, id)){
+            return true;
+        }
+        cacheMetrics.bloomRejected(keyPrefix);
+        return false;
+    }
+
+    private <T> RedisData<T> toRedisData(T data, CacheLoadOptions options){
+        if(data == null){
+            return null;
+        }
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setData(data);
+        redisData.setExpireTime(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(options.nextTtlMillis())));
+        return redisData;
+    }
+
+    private void writeTTL(String key, Object value, CacheLoadOptions options, boolean broadcast){
+        if(value != null){
+            setValueForRedis(key, value, options.nextTtlMillis(), TimeUnit.MILLISECONDS, broadcast);
+        }else if(options.isCacheNull()){
+            setValueForRedis(key, null, options.getNullTtlMillis(), TimeUnit.MILLISECONDS, broadcast);
+        }
+    }
+
+    //逻辑过期的数据不设TTL，空值设TTL；重建时覆盖旧值要广播，未命中回填不用
+    private void writeLogical(String key, RedisData<?> redisData, CacheLoadOptions options, boolean broadcast){
+        if(redisData != null){
+            setValueForRedis(key, redisData.getData(), redisData.getExpireTime(), broadcast);
+        }else if(options.isCacheNull()){
+            setValueForRedis(key, null, options.getNullTtlMillis(), TimeUnit.MILLISECONDS, broadcast);
+        }
+    }
+
+    /**
+     * 先查本节点缓存，再查redis，都没有时查数据库并写回
+     * @param mutex true时本节点同一个key只让一个请求去重建，再用redis互斥锁保证所有节点只有一个请求查数据库
+     * @param cacheNull 数据库里没有时本节点是否缓存空值
+     * @param loader 查数据库，返回redis里存的形式
+     * @param writer 写redis
+     * @return redis里存的形式，缓存的空值返回null
+     */
+    private Object getOrLoad(String keyPrefix, String key, JavaType type, boolean mutex, boolean cacheNull,
+                             Supplier<Object> loader, Consumer<Object> writer){
+        //先查本地缓存，命中了不用访问redis也不用解析json
+        Object local = getLocal(keyPrefix, key);
+        if(local != null){
+            return local == LocalCacheManager.NULL_VALUE ? null : local;
+        }
         //查询缓存是否存在
-        String json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
-        if(json != null){
-            //如果不为空，直接返回
-            if(json.equals("")) return null;
-            T bean = JSONUtil.toBean(json, classType);
-            return bean;
+        Object cached;
+        try{
+            cached = readCache(keyPrefix, key, type);
+        }catch (RedisUnavailableException e){
+            return degrade(keyPrefix, key, loader, e);
+        }
+        if(cached != CACHE_MISS){
+            recordRedisHit(keyPrefix, cached);
+            return cached;
+        }
+        cacheMetrics.redisMiss(keyPrefix);
+        //读穿透，不加锁直接查数据库
+        if(!mutex){
+            Object value = loader.get();
+            writer.accept(value);
+            putLocal(keyPrefix, key, value, cacheNull);
+            return value;
+        }
+        //不存在，同一个节点同一个key只让一个请求去重建，其他请求等它的结果
+        CompletableFuture<Object> loading = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, loading);
+        if(inFlight != null){
+            long waitStart = System.nanoTime();
+            try{
+                Object value = inFlight.get(loadWaitMs + LOAD_WAIT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                cacheMetrics.lockWait(keyPrefix, System.nanoTime() - waitStart, "local");
+                return value;
+            }catch (ExecutionException e){
+                //重建的请求失败了：redis不可用走降级，还是受查数据库的许可限制；其他失败自己查数据库
+                if(e.getCause() instanceof RedisUnavailableException){
+                    return degrade(keyPrefix, key, loader, (RedisUnavailableException) e.getCause());
+                }
+                log.warn("本节点缓存重建失败，直接查询数据库，key:{}", key);
+                return loader.get();
+            }catch (Exception e){
+                //等不到结果就直接查数据库，不返回假的null
+                cacheMetrics.lockWait(keyPrefix, System.nanoTime() - waitStart, "timeout");
+                log.warn("等待本节点缓存重建超时，直接查询数据库，key:{}", key);
+                return loader.get();
+            }
         }
-        boolean lockStatus = false;//存储获取互斥锁的状态
-        T t = null;//获取数据库查询结果
-        //不存在
         try{
+            Object value;//获取数据库查询结果
+            try{
+                value = loadWithMutex(keyPrefix, key, type, cacheNull, loader, writer);
+            }catch (RedisUnavailableException e){
+                //重建途中redis熔断了，本节点等这个key的请求也拿这个结果，不会每个请求都去查数据库
+                value = degrade(keyPrefix, key, loader, e);
+            }
+            //唤醒本节点等待这个key的请求
+            loading.complete(value);
+            return value;
+        }catch (RuntimeException e){
+            //重建失败不能给等待的请求null，它们会当成数据不存在
+            loading.completeExceptionally(e);
+            throw e;
+        }finally {
+            inFlightLoads.remove(key, loading);
+        }
+    }
+
+    /**
+     * 本节点负责重建缓存的请求：抢redis互斥锁，抢到了查数据库重建并通知其他节点，
+     * 抢不到就等拿到锁的节点发重建完成的通知，等待时间按退避递增，每次醒来都会再查一次redis再抢一次锁
+     * 超过load-wait-ms还没等到就直接查数据库；查数据库失败原样抛出，不当作数据不存在
+     */
+    private Object loadWithMutex(String keyPrefix, String key, JavaType type, boolean cacheNull,
+                                 Supplier<Object> loader, Consumer<Object> writer){
+        String lockName = "lock:" + key;
+        long deadline = System.currentTimeMillis() + loadWaitMs;
+        long backoff = LOAD_BACKOFF_MIN_MILLIS;
+        //第一次没抢到锁的时间，统计等待其他节点重建花了多久
+        long waitStart = 0;
+        while (true){
             //尝试获取互斥锁
-            lockStatus = tryLock(lockName + id,1,5);
-            //获取锁失败
-            if(lockStatus == false) {
-                for (int i = 0; i < 5; i++) {
-                    //休眠50毫秒
-                    Thread.sleep(50);
-                    //再访问缓存存不存在
-                    json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
-                    if (json != null) {
-                        //如果不为空，直接返回
-                        if(json.equals("")) return null;
-                        T bean = JSONUtil.toBean(json, classType);
-                        return bean;
+            if(tryLock(lockName,1,5)){
+                if(waitStart > 0){
+                    cacheMetrics.lockWait(keyPrefix, System.nanoTime() - waitStart, "acquired");
+                }
+                try{
+                    //拿到锁后再查一次，可能是其他节点刚重建完释放了锁
+                    Object cached = readCache(keyPrefix, key, type);
+                    if(cached != CACHE_MISS){
+                        return cached;
                     }
+                    Object value = loader.get();
+                    //存入缓存
+                    writer.accept(value);
+                    putLocal(keyPrefix, key, value, cacheNull);
+                    cacheLoadNotifier.loaded(key);
+                    return value;
+                }finally {
+                    deleteLock(lockName);
                 }
-                log.info("访问缓存超时，请重试");
-                return null;
             }
-            //获取锁成功
-            t = tMapper.selectById((Serializable) id);
-            //存入缓存
-            setValueForRedis(keyPrefix+id,t,1L,TimeUnit.MINUTES);
-        }catch (Exception e){
-            e.printStackTrace();
-        } finally {
-            //如果获取锁成功就删除锁
-            if(lockStatus == true) {
-                deleteLock(lockName+id);
+            if(waitStart == 0){
+                waitStart = System.nanoTime();
+            }
+            //其他节点在重建，先登记等待再查redis，防止查完到开始等待之间错过通知
+            CompletableFuture<Void> waiter = cacheLoadNotifier.await(key);
+            try{
+                Object cached = readCache(keyPrefix, key, type);
+                if(cached != CACHE_MISS){
+                    cacheMetrics.lockWait(keyPrefix, System.nanoTime() - waitStart, "notified");
+                    return cached;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0){
+                    cacheMetrics.lockWait(keyPrefix, System.nanoTime() - waitStart, "timeout");
+                    break;
+                }
+                try{
+                    waiter.get(Math.min(backoff, remaining), TimeUnit.MILLISECONDS);
+                }catch (TimeoutException | ExecutionException e){
+                    //没等到通知，可能是通知丢了或者拿锁的节点挂了，下一轮再查一次、再抢一次锁
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("等待缓存重建被中断，key:" + key, e);
+                }
+            }finally {
+                cacheLoadNotifier.cancel(key, waiter);
+            }
+            backoff = Math.min(backoff * 2, LOAD_BACKOFF_MAX_MILLIS);
+        }
+        //兜底直接查数据库，不写缓存，缓存留给拿到锁的请求重建
+        log.warn("等待其他节点重建缓存超时，直接查询数据库，key:{}", key);
+        return loader.get();
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value, boolean cacheNull){
+        if(value == null && !cacheNull){
+            return;
+        }
+        localCacheManager.put(keyPrefix, key, value);
+        localCacheManager.putStale(key, value);
+        hotKeyDetector.putIfHot(key, value);
+    }
+
+    /**
+     * redis熔断或者调用失败时的降级：有本地旧数据返回旧数据，
+     * 没有就限流直接查数据库，结果只放进本地旧数据，redis恢复后再正常重建
+     * @return redis里存的形式，数据库里没有返回null
+     * @throws RedisUnavailableException 查数据库的许可也拿不到
+     */
+    private Object degrade(String keyPrefix, String key, Supplier<Object> loader, RedisUnavailableException e){
+        Object stale = localCacheManager.getStale(key);
+        if(stale != null){
+            cacheMetrics.staleHit(keyPrefix);
+            return stale == LocalCacheManager.NULL_VALUE ? null : stale;
+        }
+        if(!redisCircuitBreaker.tryAcquireDbPermit()){
+            cacheMetrics.error(keyPrefix, "shed");
+            throw new RedisUnavailableException("系统繁忙，请稍后重试", e);
+        }
+        try{
+            Object value = loader.get();
+            localCacheManager.putStale(key, value);
+            return value;
+        }finally {
+            redisCircuitBreaker.releaseDbPermit();
+        }
+    }
+
+    //查数据库，记录这个前缀的加载耗时
+    private <T,ID> T selectById(String keyPrefix, ID id, BaseMapper<T> tMapper){
+        return load(keyPrefix, () -> tMapper.selectById((Serializable) id));
+    }
+
+    private <T> T load(String keyPrefix, Supplier<T> loader){
+        long start = System.nanoTime();
+        boolean success = false;
+        try{
+            T t = loader.get();
+            success = true;
+            return t;
+        }finally {
+            cacheMetrics.load(keyPrefix, System.nanoTime() - start, success);
+        }
+    }
+
+    //redis命中，区分命中的是不是缓存的空值
+    private void recordRedisHit(String keyPrefix, Object cached){
+        if(cached == null){
+            cacheMetrics.redisNullHit(keyPrefix);
+        }else{
+            cacheMetrics.redisHit(keyPrefix);
+        }
+    }
+
+    /**
+     * 读redis里的缓存，解码后放进本地缓存
+     * @return 缓存不存在或者解码失败（旧格式、切换过编码）返回CACHE_MISS，缓存的空值返回null
+     */
+    private Object readCache(String keyPrefix, String key, JavaType type){
+        byte[] bytes = readBytes(key);
+        if(bytes == null){
+            return CACHE_MISS;
+        }
+        Object value = null;
+        if(bytes.length > 0){
+            try{
+                value = decode(bytes, type);
+            }catch (Exception e){
+                log.warn("缓存解码失败，按未命中处理，key:{}，编码:{}", key, cacheCodec.name(), e);
+                cacheMetrics.error(keyPrefix, "decode");
+                return CACHE_MISS;
             }
         }
-        return t;
+        localCacheManager.put(keyPrefix, key, value);
+        localCacheManager.putStale(key, value);
+        hotKeyDetector.putIfHot(key, value);
+        return value;
+    }
+
+    //查本节点的缓存：先查按前缀配置的本地缓存，再查自动晋升的热点key，顺便记录这次访问
+    private Object getLocal(String keyPrefix, String key){
+        hotKeyDetector.record(keyPrefix, key);
+        Object local = localCacheManager.get(keyPrefix, key);
+        if(local == null){
+            local = hotKeyDetector.get(key);
+            if(local != null){
+                cacheMetrics.hotHit(keyPrefix);
+            }
+        }
+        return local;
+    }
+
+    //字符串原样存，redis里的点赞数等计数要能直接INCR和Integer.valueOf，其他对象交给编码器
+    private byte[] encode(Object val){
+        if(val == null){
+            return EMPTY_VALUE;
+        }
+        if(val instanceof CharSequence){
+            return val.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return cacheCodec.encode(val);
+    }
+
+    private Object decode(byte[] bytes, JavaType type){
+        if(type.getRawClass() == String.class){
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        return cacheCodec.decode(bytes, type);
+    }
+
+    //按字节读写，smile编码的值不是合法的utf-8字符串，不能走StringRedisTemplate的序列化
+    private byte[] readBytes(String key){
+        return redisCircuitBreaker.call(() -> stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private void writeBytes(String key, byte[] value, Long time, TimeUnit timeUnit){
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, timeUnit);
+        redisCircuitBreaker.run(() -> stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(key.getBytes(StandardCharsets.UTF_8), value, expiration, RedisStringCommands.SetOption.upsert())));
     }
 
     /**
@@ -182,103 +593,461 @@ public class RedisUtil {
      * @param <ID>
      */
     public <T,ID> RedisData getValueTime(String keyPrefix,ID id,BaseMapper<T> tMapper){
-        //初始化锁名
-        String lockName = "lock:"+keyPrefix;
-        //取缓存
-        String json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
-        RedisData bean = null;//存储获取到的缓存
-        if(json != null){
-            //如果存在，且不为空
-            if(json.equals("")) return null;
-            bean = JSONUtil.toBean(json, RedisData.class);
+        //不知道data的类型，data会解析成Map，新代码用带类型的重载
+        return getValueTime(keyPrefix, id, Object.class, (BaseMapper) tMapper);
+    }
+
+    /**
+     * 根据key查找缓存，用逻辑过期解决缓存穿透，data按dataType解析
+     * @param keyPrefix
+     * @param id
+     * @param dataType data的类型
+     * @return
+     * @param <T>
+     * @param <ID>
+     */
+    public <T,ID> RedisData<T> getValueTime(String keyPrefix,ID id,Class<T> dataType,BaseMapper<T> tMapper){
+        //布隆过滤器判断数据库里一定没有的id，直接返回
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
+        //先查本地缓存，逻辑过期了就走redis，由redis那边触发重建
+        Object local = getLocal(keyPrefix, keyPrefix + id);
+        if(local == LocalCacheManager.NULL_VALUE) return null;
+        if(local != null && LocalDateTime.now().compareTo(((RedisData) local).getExpireTime()) <= 0){
+            RedisData<T> bean = (RedisData<T>) local;
+            //本地缓存命中也要按XFetch提前刷新，否则热点key直到过期才会有请求去redis触发重建
+            if(cacheRefreshScheduler.shouldRefreshEarly(keyPrefix, bean.getExpireTime())){
+                submitRefresh(keyPrefix, id, tMapper, bean.getExpireTime());
+            }
+            return bean;
+        }
+        //取缓存，redis熔断时返回本地旧数据，没有旧数据按未命中处理
+        Object cached;
+        try{
+            cached = readCache(keyPrefix, keyPrefix + id, CacheCodec.redisDataType(dataType));
+        }catch (RedisUnavailableException e){
+            Object stale = localCacheManager.getStale(keyPrefix + id);
+            if(stale != null && stale != LocalCacheManager.NULL_VALUE){
+                cacheMetrics.staleHit(keyPrefix);
+                return (RedisData<T>) stale;
+            }
+            return null;
+        }
+        if(cached != CACHE_MISS){
+            recordRedisHit(keyPrefix, cached);
+            //缓存的空值
+            if(cached == null) return null;
+            RedisData<T> bean = (RedisData<T>) cached;//存储获取到的缓存
             //不管过没过期都直接返回bean
-            //如果bean是过期的就开启新线程创建缓存
-            if(LocalDateTime.now().compareTo(bean.getExpireTime()) > 0){
-                //从线程池调用线程执行方法
-                CACHE_REFRESH_POOL.submit(()->{
-                    //获取分布式锁的情况
-                    boolean lockStatus = false;
-                    try{
-                        //获取分布式锁
-                        lockStatus = tryLock(lockName + id,1,5);
-                        if(lockStatus == false){
-                            //锁获取失败，有其他线程在创建缓存
-                            log.error("锁获取失败，有其他线程在创建缓存");
-                            return;
-                        }
-                        //获取锁成功，查询数据并更新缓存
-                        T t = tMapper.selectById((Serializable) id);
-                        boolean cacheStatus = setValueForRedis(keyPrefix + id, t, LocalDateTime.now().plusMinutes(5));
-                        if(cacheStatus == false){
-                            log.error("缓存创建失败");
-                            return;
-                        }
-                    }catch (Exception e){
-                        e.printStackTrace();
-                    }finally {
-                        if(lockStatus == true){
-                            deleteLock(lockName+id);
-                        }
-                    }
-                });
+            //如果bean过期了，或者快过期了（XFetch提前过期），提交重建任务
+            if(LocalDateTime.now().compareTo(bean.getExpireTime()) > 0
+                    || cacheRefreshScheduler.shouldRefreshEarly(keyPrefix, bean.getExpireTime())){
+                submitRefresh(keyPrefix, id, tMapper, bean.getExpireTime());
             }
             return bean;
         }
+        cacheMetrics.redisMiss(keyPrefix);
         return null;
     }
 
-    //shutdown拒绝新任务，等待已提交任务执行  shutdownNow强制关闭  awaitTermination阻塞等待线程池关闭，关闭完成返回true，超时返回false
+    private <T,ID> void submitRefresh(String keyPrefix, ID id, BaseMapper<T> tMapper, LocalDateTime expireTime){
+        String key = keyPrefix + id;
+        submitRefresh(keyPrefix, key, expireTime, () -> {
+            T t = selectById(keyPrefix, id, tMapper);
+            if(!setValueForRedis(key, t, LocalDateTime.now().plusMinutes(5))){
+                log.error("缓存创建失败:{}", key);
+            }
+        });
+    }
 
-    // 4. 优雅关闭线程池（Spring销毁时执行）
-    @PreDestroy
-    public void destroyThreadPool() {
-        if (CACHE_REFRESH_POOL == null || CACHE_REFRESH_POOL.isShutdown()) {
+    //提交逻辑过期缓存的重建任务，本节点同一个key已经在排队就不再提交
+    private void submitRefresh(String keyPrefix, String key, LocalDateTime expireTime, Runnable rebuild){
+        //redis熔断中重建了也写不进去，继续返回旧数据
+        if(redisCircuitBreaker.isOpen()){
+            return;
+        }
+        String lockName = "lock:" + key;
+        cacheRefreshScheduler.submit(keyPrefix, key, expireTime, () -> {
+            //获取分布式锁，其他节点在重建就不重复查库
+            if(!tryLock(lockName,1,5)){
+                log.debug("其他节点在重建缓存:{}", key);
+                return false;
+            }
+            try{
+                //获取锁成功，查询数据并更新缓存
+                rebuild.run();
+                return true;
+            }finally {
+                deleteLock(lockName);
+            }
+        });
+    }
+
+    /**
+     * 批量读取字符串（计数之类原样存的值），一次MGET
+     * @param keys
+     * @return 和keys一一对应，不存在的为null
+     */
+    public List<String> multiGetString(List<String> keys){
+        if(keys.isEmpty()){
+            return Collections.emptyList();
+        }
+        List<String> values = redisCircuitBreaker.call(() -> stringRedisTemplate.opsForValue().multiGet(keys));
+        return values == null ? new ArrayList<>(Collections.nCopies(keys.size(), null)) : values;
+    }
+
+    /**
+     * 批量写入缓存，一次pipeline，每个key都带TTL
+     * @param values key -> 值，字符串原样存，其他对象按编码器编码，null存空值
+     * @param onlyIfAbsent true时已经存在的key不覆盖，回填计数时不能覆盖并发的INCR；
+     *                     只写原来不存在的key，其他节点本地不会有比它新的值，不广播删除本地缓存
+     */
+    public void multiSet(Map<String, ?> values, long time, TimeUnit timeUnit, boolean onlyIfAbsent){
+        if(values.isEmpty()){
             return;
         }
+        //先编码，编码失败不要留下写了一半的pipeline
+        Map<byte[], byte[]> encoded = new LinkedHashMap<>();
+        for(Map.Entry<String, ?> entry : values.entrySet()){
+            encoded.put(entry.getKey().getBytes(StandardCharsets.UTF_8), encode(entry.getValue()));
+        }
+        Expiration expiration = Expiration.from(time, timeUnit);
+        RedisStringCommands.SetOption option = onlyIfAbsent ? RedisStringCommands.SetOption.ifAbsent() : RedisStringCommands.SetOption.upsert();
+        redisCircuitBreaker.run(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for(Map.Entry<byte[], byte[]> entry : encoded.entrySet()){
+                connection.stringCommands().set(entry.getKey(), entry.getValue(), expiration, option);
+            }
+            return null;
+        }));
+        if(!onlyIfAbsent){
+            localCacheManager.evictAll(values.keySet());
+        }
+    }
+
+    /**
+     * 批量ZSCORE，一次pipeline，查同一个member在多个zset里的分数
+     * @param keys
+     * @param member
+     * @return 和keys一一对应，不在集合里的为null
+     */
+    public List<Double> multiZScore(List<String> keys, String member){
+        if(keys.isEmpty()){
+            return Collections.emptyList();
+        }
+        byte[] memberBytes = member.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = redisCircuitBreaker.call(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for(String key : keys){
+                connection.zSetCommands().zScore(key.getBytes(StandardCharsets.UTF_8), memberBytes);
+            }
+            return null;
+        }));
+        List<Double> scores = new ArrayList<>(keys.size());
+        for(Object result : results){
+            scores.add(result == null ? null : ((Number) result).doubleValue());
+        }
+        return scores;
+    }
+
+    /**
+     * 批量查询，getValueTTL的批量版本
+     * 先查本地缓存，剩下的一次MGET，redis里没有的一次selectBatchIds查数据库，再一次pipeline回填redis
+     * @param keyPrefix
+     * @param ids
+     * @param classType
+     * @param tMapper
+     * @param idGetter 从查出来的对象上取id，用来和ids对应
+     * @param time 回填的TTL
+     * @param timeUnit
+     * @return id -> 对象，数据库里不存在的id不在结果里
+     */
+    public <T,ID> Map<ID,T> multiGetOrLoad(String keyPrefix, Collection<ID> ids, Class<T> classType, BaseMapper<T> tMapper,
+                                           Function<T,ID> idGetter, long time, TimeUnit timeUnit){
+        CacheLoadOptions options = new CacheLoadOptions();
+        options.setTtlMillis(timeUnit.toMillis(time));
+        options.setNullTtlMillis(timeUnit.toMillis(time));
+        return multiGetOrLoad(keyPrefix, ids, TypeFactory.defaultInstance().constructType(classType), missing -> {
+            Map<ID,T> loaded = new HashMap<>();
+            for(T t : tMapper.selectBatchIds((Collection<? extends Serializable>) missing)){
+                loaded.put(idGetter.apply(t), t);
+            }
+            return loaded;
+        }, options);
+    }
+
+    /**
+     * 批量查询，未命中的id一次交给loader查数据库，@HmdpCacheable的批量key用这个方法
+     * @param keyPrefix
+     * @param ids
+     * @param type 缓存值的类型
+     * @param loader 未命中的id -> 查到的对象，没查到的id不在结果里
+     * @param options 回填的TTL、空值，同一批写入用同一个随机浮动后的TTL
+     * @return id -> 对象，数据库里不存在的id不在结果里
+     */
+    public <T,ID> Map<ID,T> multiGetOrLoad(String keyPrefix, Collection<ID> ids, JavaType type,
+                                           Function<List<ID>, Map<ID,T>> loader, CacheLoadOptions options){
+        Map<ID,T> result = new HashMap<>();
+        List<ID> toRedis = new ArrayList<>();
+        for(ID id : new LinkedHashSet<>(ids)){
+            if(!mightContain(keyPrefix, id)){
+                continue;
+            }
+            Object local = getLocal(keyPrefix, keyPrefix + id);
+            if(local == null){
+                toRedis.add(id);
+            }else if(local != LocalCacheManager.NULL_VALUE){
+                result.put(id, (T) local);
+            }
+        }
+        if(toRedis.isEmpty()){
+            return result;
+        }
+        byte[][] keys = new byte[toRedis.size()][];
+        for(int i = 0; i < toRedis.size(); i++){
+            keys[i] = (keyPrefix + toRedis.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = null;
+        RedisUnavailableException unavailable = null;
+        try{
+            values = redisCircuitBreaker.call(() -> stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(keys)));
+        }catch (RedisUnavailableException e){
+            unavailable = e;
+        }
+        List<ID> missing = new ArrayList<>();
+        for(int i = 0; i < toRedis.size(); i++){
+            ID id = toRedis.get(i);
+            if(unavailable != null){
+                //redis熔断，有旧数据的返回旧数据，剩下的查数据库
+                Object stale = localCacheManager.getStale(keyPrefix + id);
+                if(stale == null){
+                    missing.add(id);
+                }else{
+                    cacheMetrics.staleHit(keyPrefix);
+                    if(stale != LocalCacheManager.NULL_VALUE){
+                        result.put(id, (T) stale);
+                    }
+                }
+                continue;
+            }
+            byte[] bytes = values == null ? null : values.get(i);
+            if(bytes == null){
+                cacheMetrics.redisMiss(keyPrefix);
+                missing.add(id);
+                continue;
+            }
+            T value = null;
+            if(bytes.length > 0){
+                try{
+                    value = (T) decode(bytes, type);
+                }catch (Exception e){
+                    log.warn("缓存解码失败，按未命中处理，key:{}，编码:{}", keyPrefix + id, cacheCodec.name(), e);
+                    cacheMetrics.error(keyPrefix, "decode");
+                    missing.add(id);
+                    continue;
+                }
+                result.put(id, value);
+            }
+            recordRedisHit(keyPrefix, value);
+            putLocal(keyPrefix, keyPrefix + id, value, true);
+        }
+        if(missing.isEmpty()){
+            return result;
+        }
+        if(unavailable != null){
+            return multiDegrade(keyPrefix, missing, loader, result, unavailable);
+        }
+        //一次查出所有未命中的，查不到的id缓存空值
+        Map<ID,T> loaded = load(keyPrefix, () -> loader.apply(missing));
+        Map<String, Object> backfill = new LinkedHashMap<>();
+        Map<String, Object> nulls = new LinkedHashMap<>();
+        for(ID id : missing){
+            T t = loaded.get(id);
+            if(t != null){
+                result.put(id, t);
+                backfill.put(keyPrefix + id, t);
+            }else if(options.isCacheNull()){
+                nulls.put(keyPrefix + id, null);
+            }
+        }
+        try{
+            //回填的都是redis里没有的key，NX写入，不覆盖并发写入的新值，也不用广播
+            multiSet(backfill, options.nextTtlMillis(), TimeUnit.MILLISECONDS, true);
+            multiSet(nulls, options.getNullTtlMillis(), TimeUnit.MILLISECONDS, true);
+        }catch (RedisUnavailableException e){
+            //回填失败下次再查数据库，这次的结果照常返回
+            log.warn("批量回填缓存失败，前缀:{}", keyPrefix);
+            cacheMetrics.error(keyPrefix, "write");
+        }
+        backfill.putAll(nulls);
+        for(Map.Entry<String, Object> entry : backfill.entrySet()){
+            putLocal(keyPrefix, entry.getKey(), entry.getValue(), true);
+        }
+        return result;
+    }
 
-        log.info("开始关闭缓存重建线程池...");
-        // 第一步：发起关闭请求（拒绝新任务，等待已提交任务执行）
-        CACHE_REFRESH_POOL.shutdown();
-
-        try {
-            // 第二步：阻塞等待，最多等10秒（超时则强制关闭）
-            // 超时时间根据你的业务调整：缓存重建一般5秒内完成，设10秒足够
-            if (!CACHE_REFRESH_POOL.awaitTermination(10, TimeUnit.SECONDS)) {
-                log.warn("线程池10秒内未关闭完成，强制中断剩余任务");
-                // 第三步：超时未关闭，强制中断（兜底）
-                List<Runnable> remainingTasks = CACHE_REFRESH_POOL.shutdownNow();
-                log.warn("强制关闭线程池，未执行的任务数：{}", remainingTasks.size());
-            } else {
-                log.info("线程池优雅关闭完成");
+    //multiGetOrLoad的降级：本地没有旧数据的id拿一个许可一次查数据库，结果只放进本地旧数据
+    private <T,ID> Map<ID,T> multiDegrade(String keyPrefix, List<ID> missing, Function<List<ID>, Map<ID,T>> loader,
+                                         Map<ID,T> result, RedisUnavailableException e){
+        if(!redisCircuitBreaker.tryAcquireDbPermit()){
+            cacheMetrics.error(keyPrefix, "shed");
+            throw new RedisUnavailableException("系统繁忙，请稍后重试", e);
+        }
+        try{
+            Map<ID,T> loaded = load(keyPrefix, () -> loader.apply(missing));
+            for(ID id : missing){
+                T t = loaded.get(id);
+                if(t != null){
+                    result.put(id, t);
+                }
+                localCacheManager.putStale(keyPrefix + id, t);
             }
-        } catch (InterruptedException e) {
-            // 等待过程中被中断，再次强制关闭
-            log.error("线程池关闭等待被中断，强制关闭", e);
-            CACHE_REFRESH_POOL.shutdownNow();
-            // 恢复中断状态（线程规范）
-            Thread.currentThread().interrupt();
+            return result;
+        }finally {
+            redisCircuitBreaker.releaseDbPermit();
+        }
+    }
+
+    /**
+     * 只读取逻辑过期的缓存，不触发重建，过没过期由调用方判断
+     * @param keyPrefix
+     * @param id
+     * @param dataType data的类型
+     * @return 不存在或者是空值返回null
+     */
+    public <T,ID> RedisData<T> getRedisData(String keyPrefix, ID id, Class<T> dataType){
+        String key = keyPrefix + id;
+        byte[] bytes = readBytes(key);
+        if(bytes == null){
+            cacheMetrics.redisMiss(keyPrefix);
+            return null;
+        }
+        if(bytes.length == 0){
+            cacheMetrics.redisNullHit(keyPrefix);
+            return null;
+        }
+        try{
+            RedisData<T> redisData = cacheCodec.decode(bytes, CacheCodec.redisDataType(dataType));
+            cacheMetrics.redisHit(keyPrefix);
+            return redisData;
+        }catch (Exception e){
+            log.warn("缓存解码失败，按未命中处理，key:{}，编码:{}", key, cacheCodec.name(), e);
+            cacheMetrics.error(keyPrefix, "decode");
+            return null;
         }
     }
+
+    //Spring销毁时关闭号段预取线程，缓存重建线程池由CacheRefreshScheduler关闭
+    @PreDestroy
+    public void destroyThreadPool() {
+        idSegmentPool.shutdownNow();
+    }
     //时间戳的起点
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     //移位的位数
     private static final int COUNT_BITS = 32;
 
+    //每次从redis租用的序号段长度，段内序号在本地内存分配，不再每个id一次INCR
+    @Value("${hmdp.id.segment-step:1000}")
+    private int segmentStep;
+
+    //业务前缀 -> 该业务当前使用的号段和预取的下一个号段
+    private final ConcurrentHashMap<String, IdBuffer> idBuffers = new ConcurrentHashMap<>();
+
+    //异步预取号段的线程，预取是低频操作，一个线程足够
+    private final ExecutorService idSegmentPool = Executors.newSingleThreadExecutor();
+
+    /**
+     * 一段连续的序号 [start, end)，只属于某一天
+     */
+    private static class IdSegment {
+        private final String date;
+        private final long end;
+        //下一个要分配的序号
+        private final AtomicLong cursor;
+        //分配到这个序号时（剩余20%）开始异步预取下一段
+        private final long prefetchAt;
+
+        IdSegment(String date, long start, long end) {
+            this.date = date;
+            this.end = end;
+            this.cursor = new AtomicLong(start);
+            this.prefetchAt = end - Math.max((end - start) / 5, 1);
+        }
+    }
+
+    private static class IdBuffer {
+        private volatile IdSegment current;
+        private volatile CompletableFuture<IdSegment> next;
+    }
+
     public long nextId(String keyPrefix){
         //获取时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);//时间戳终点
         long timesTamp = nowSecond-BEGIN_TIMESTAMP;//时间戳
 
-
-        //获取当前日期，精确到天
+        //获取当前日期，精确到天，序号按天重新计数
         String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //自增长，主要是记录id个数,返回对应个数
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + "::" + date);//该方法会对key对应的数值自增，没有则舒适化为0再自增
+        IdBuffer buffer = idBuffers.computeIfAbsent(keyPrefix, k -> new IdBuffer());
+        while (true) {
+            IdSegment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                //无锁分配，cursor超过end说明这一段用完了
+                long count = segment.cursor.getAndIncrement();
+                if (count < segment.end) {
+                    if (count == segment.prefetchAt) {
+                        prefetchSegment(buffer, keyPrefix, date);
+                    }
+                    //拼接id返回
+                    return timesTamp << COUNT_BITS | count;
+                }
+            }
+            //号段用完了或者跨天了，换一段再分配
+            switchSegment(buffer, segment, keyPrefix, date);
+        }
+    }
 
-        //拼接id返回
-        return timesTamp << COUNT_BITS | count;
+    private void prefetchSegment(IdBuffer buffer, String keyPrefix, String date) {
+        synchronized (buffer) {
+            if (buffer.next == null) {
+                buffer.next = CompletableFuture.supplyAsync(() -> leaseSegment(keyPrefix, date), idSegmentPool);
+            }
+        }
+    }
 
+    private void switchSegment(IdBuffer buffer, IdSegment used, String keyPrefix, String date) {
+        synchronized (buffer) {
+            if (buffer.current != used) {
+                //其他线程已经换过了
+                return;
+            }
+            IdSegment segment = null;
+            CompletableFuture<IdSegment> next = buffer.next;
+            buffer.next = null;
+            if (next != null) {
+                try {
+                    segment = next.get(3, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    log.error("预取id号段失败，同步重新租用，业务:{}", keyPrefix, e);
+                }
+            }
+            //预取的号段是前一天的就丢掉，序号按天计数
+            if (segment == null || !segment.date.equals(date)) {
+                segment = leaseSegment(keyPrefix, date);
+            }
+            buffer.current = segment;
+        }
+    }
 
+    /**
+     * 从redis租用一段序号，INCRBY一次拿到segmentStep个
+     */
+    private IdSegment leaseSegment(String keyPrefix, String date) {
+        //该方法会对key对应的数值自增，没有则初始化为0再自增
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + "::" + date, segmentStep);
+        if (end == null) {
+            throw new RuntimeException("id号段租用失败");
+        }
+        return new IdSegment(date, end - segmentStep + 1, end + 1);
     }
-}
+}
\ No newline at end of file
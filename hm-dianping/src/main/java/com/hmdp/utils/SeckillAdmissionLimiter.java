@@ -0,0 +1,290 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀准入限流，在跑秒杀lua之前把超出处理能力的请求挡掉
+ * 两层：
+ *      用户滑动窗口：同一个用户在窗口内最多请求user-max-requests次
+ *      优惠卷令牌桶：桶容量 = 剩余库存 * stock-factor，每个refill-period-ms补满一次，
+ *                  令牌不够时直接拒绝；开启queue-enabled后最多排队等待max-wait-ms（上限MAX_QUEUE_WAIT_MILLIS），
+ *                  排队会占着tomcat线程，只适合很短的等待
+ * 默认在本节点内存里限流（每个节点各自一份），mode为redis时所有节点共用redis里的令牌桶和窗口
+ */
+@Component
+@Slf4j
+public class SeckillAdmissionLimiter {
+
+    public static final int ADMITTED = 0;
+    public static final int REJECTED_BUSY = 1;
+    public static final int REJECTED_USER = 2;
+
+    private static final String ADMISSION_BUCKET_KEY = "seckill:admission:bucket::";
+    private static final String ADMISSION_USER_KEY = "seckill:admission:user::";
+
+    private static final DefaultRedisScript<Long> ADMISSION_SCRIPT;
+    static {
+        ADMISSION_SCRIPT = new DefaultRedisScript<>();
+        ADMISSION_SCRIPT.setLocation(new ClassPathResource("Lua/seckillAdmission.lua"));
+        ADMISSION_SCRIPT.setResultType(Long.class);
+    }
+
+    //排队等待的上限，等待期间占着请求线程，不能太长
+    private static final long MAX_QUEUE_WAIT_MILLIS = 50L;
+
+    //桶容量按剩余库存重新计算的间隔
+    private static final long CAPACITY_REFRESH_MILLIS = 5000L;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SeckillStockUtil seckillStockUtil;
+
+    @Autowired
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+
+    //local 本节点内存，redis 所有节点共用
+    @Value("${hmdp.seckill.admission.mode:local}")
+    private String mode;
+
+    @Value("${hmdp.seckill.admission.stock-factor:3.0}")
+    private double stockFactor;
+
+    //库存卖完后桶的最小容量，给订单取消还回来的库存留口子
+    @Value("${hmdp.seckill.admission.min-capacity:20}")
+    private long minCapacity;
+
+    @Value("${hmdp.seckill.admission.refill-period-ms:1000}")
+    private long refillPeriodMs;
+
+    //令牌不够时是否排队等待，false直接拒绝
+    @Value("${hmdp.seckill.admission.queue-enabled:false}")
+    private boolean queueEnabled;
+
+    @Value("${hmdp.seckill.admission.max-wait-ms:20}")
+    private long maxWaitMs;
+
+    @Value("${hmdp.seckill.admission.user-window-ms:1000}")
+    private long userWindowMs;
+
+    @Value("${hmdp.seckill.admission.user-max-requests:5}")
+    private int userMaxRequests;
+
+    private final ConcurrentHashMap<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    //优惠卷id -> {桶容量, 计算时间}
+    //桶容量 = 剩余库存 * 系数，隔一段时间按redis里的剩余库存重新算，库存越少放进来的请求越少
+    private final ConcurrentHashMap<Long, long[]> capacities = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, ArrayDeque<Long>> userWindows = new ConcurrentHashMap<>();
+
+    //zset的member需要唯一，节点标识+自增序号
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+    private final AtomicLong requestSeq = new AtomicLong();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejectedBusy = new LongAdder();
+    private final LongAdder rejectedUser = new LongAdder();
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder waitMillisTotal = new LongAdder();
+    private final AtomicLong waitMillisMax = new AtomicLong();
+
+    private static class TokenBucket {
+        private double tokens;
+        private long lastRefillAt;
+        private double capacity;
+
+        /**
+         * 预扣一个令牌
+         * @return 需要等待的毫秒数，-1表示等待时间超过上限，没有扣令牌
+         */
+        synchronized long reserve(long now, long refillPeriodMs, long maxWaitMs) {
+            double ratePerMs = capacity / refillPeriodMs;
+            tokens = Math.min(capacity, tokens + Math.max(0, now - lastRefillAt) * ratePerMs);
+            lastRefillAt = Math.max(lastRefillAt, now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            long wait = (long) Math.ceil((1 - tokens) / ratePerMs);
+            if (wait > maxWaitMs) {
+                return -1;
+            }
+            tokens -= 1;
+            return wait;
+        }
+    }
+
+    /**
+     * 判断请求能否进入秒杀，需要排队时在这里等待
+     * @param voucherId
+     * @param userId
+     * @return 0放行 1系统繁忙 2用户请求太频繁
+     */
+    public int tryAdmit(Long voucherId, Long userId) {
+        if (!enabled) {
+            return ADMITTED;
+        }
+        long now = System.currentTimeMillis();
+        long capacity = capacity(voucherId, now);
+        long maxWait = queueEnabled ? Math.min(maxWaitMs, MAX_QUEUE_WAIT_MILLIS) : 0;
+        long wait;
+        if ("redis".equalsIgnoreCase(mode)) {
+            Long result;
+            try {
+                result = redisCircuitBreaker.call(() -> stringRedisTemplate.execute(ADMISSION_SCRIPT,
+                        Arrays.asList(ADMISSION_BUCKET_KEY + voucherId, ADMISSION_USER_KEY + userId),
+                        String.valueOf(now), String.valueOf(capacity), String.valueOf((double) capacity / refillPeriodMs),
+                        String.valueOf(maxWait), String.valueOf(userWindowMs), String.valueOf(userMaxRequests),
+                        nodeId + ":" + requestSeq.incrementAndGet()));
+            } catch (RedisUnavailableException e) {
+                rejectedBusy.increment();
+                return REJECTED_BUSY;
+            }
+            if (result == null) {
+                log.warn("准入限流脚本没有返回结果，voucherId:{}", voucherId);
+                rejectedBusy.increment();
+                return REJECTED_BUSY;
+            }
+            wait = result;
+        } else {
+            if (!allowUser(userId, now)) {
+                wait = -2;
+            } else {
+                wait = bucket(voucherId, capacity, now).reserve(now, refillPeriodMs, maxWait);
+            }
+        }
+        if (wait == -2) {
+            rejectedUser.increment();
+            return REJECTED_USER;
+        }
+        if (wait < 0) {
+            rejectedBusy.increment();
+            return REJECTED_BUSY;
+        }
+        if (wait > 0) {
+            waited.increment();
+            waitMillisTotal.add(wait);
+            waitMillisMax.accumulateAndGet(wait, Math::max);
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejectedBusy.increment();
+                return REJECTED_BUSY;
+            }
+        }
+        admitted.increment();
+        return ADMITTED;
+    }
+
+    private boolean allowUser(Long userId, long now) {
+        if (userMaxRequests <= 0) {
+            return true;
+        }
+        ArrayDeque<Long> window = userWindows.computeIfAbsent(userId, k -> new ArrayDeque<>());
+        synchronized (window) {
+            while (!window.isEmpty() && window.peekFirst() <= now - userWindowMs) {
+                window.pollFirst();
+            }
+            if (window.size() >= userMaxRequests) {
+                return false;
+            }
+            window.addLast(now);
+            return true;
+        }
+    }
+
+    private TokenBucket bucket(Long voucherId, long capacity, long now) {
+        TokenBucket bucket = buckets.computeIfAbsent(voucherId, k -> {
+            TokenBucket created = new TokenBucket();
+            created.tokens = capacity;
+            created.lastRefillAt = now;
+            return created;
+        });
+        synchronized (bucket) {
+            bucket.capacity = capacity;
+        }
+        return bucket;
+    }
+
+    private long capacity(Long voucherId, long now) {
+        long[] cached = capacities.get(voucherId);
+        if (cached != null && now - cached[1] < CAPACITY_REFRESH_MILLIS) {
+            return cached[0];
+        }
+        long stock;
+        try {
+            stock = redisCircuitBreaker.call(() -> seckillStockUtil.remainingStock(voucherId));
+        } catch (RedisUnavailableException e) {
+            //redis慢或者熔断中，限流本身不能再等redis超时，继续用上次的容量，下次请求再试
+            return cached != null ? cached[0] : minCapacity;
+        }
+        long capacity = Math.max((long) Math.ceil(stock * stockFactor), minCapacity);
+        capacities.put(voucherId, new long[]{capacity, now});
+        return capacity;
+    }
+
+    /**
+     * 库存变了（新增、补库存），下次请求按新库存重新计算本节点的桶容量
+     * @param voucherId
+     */
+    public void reset(Long voucherId) {
+        capacities.remove(voucherId);
+        buckets.remove(voucherId);
+    }
+
+    /**
+     * 清理窗口已经过期的用户，避免一直占着内存
+     */
+    @Scheduled(fixedDelay = 60_000L)
+    public void evictIdleUsers() {
+        long expired = System.currentTimeMillis() - userWindowMs;
+        userWindows.entrySet().removeIf(entry -> {
+            ArrayDeque<Long> window = entry.getValue();
+            synchronized (window) {
+                Long last = window.peekLast();
+                return last == null || last <= expired;
+            }
+        });
+    }
+
+    /**
+     * 准入统计
+     * @return
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long waitedCount = waited.sum();
+        metrics.put("enabled", enabled);
+        metrics.put("mode", mode);
+        metrics.put("queueEnabled", queueEnabled);
+        metrics.put("admitted", admitted.sum());
+        metrics.put("rejectedBusy", rejectedBusy.sum());
+        metrics.put("rejectedUser", rejectedUser.sum());
+        metrics.put("waited", waitedCount);
+        metrics.put("waitMillisAvg", waitedCount == 0 ? 0 : waitMillisTotal.sum() / waitedCount);
+        metrics.put("waitMillisMax", waitMillisMax.get());
+        return metrics;
+    }
+}
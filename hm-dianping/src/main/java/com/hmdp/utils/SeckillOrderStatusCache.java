@@ -0,0 +1,173 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.SeckillOrderStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 秒杀订单的处理状态，存在redis里，订单还在mq里排队时查询状态不用查数据库
+ * key seckill:order:status::{orderId}  value 状态|用户id|失败原因
+ * 下单请求通过后写PENDING，消费者建单后写CREATED或FAILED，超时取消写CANCELLED
+ * 状态变化通过redis发布订阅通知所有节点，唤醒在本节点长轮询/SSE等待这个订单的请求
+ */
+@Component
+@Slf4j
+public class SeckillOrderStatusCache implements MessageListener {
+
+    private static final String ORDER_STATUS_KEY = "seckill:order:status::";
+
+    private static final String ORDER_STATUS_CHANNEL = "channel:seckillOrder:status";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //状态保留时间，要比未支付取消的时间长，取消状态才能查到
+    @Value("${hmdp.seckill.order.status.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    //订单id -> 本节点上等待这个订单状态变化的请求
+    private final ConcurrentHashMap<Long, Set<Consumer<SeckillOrderStatus>>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void subscribe() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    public void pending(Long orderId, Long userId) {
+        //排队中的状态没有人等，不用广播
+        //调用时库存和一人一单名额已经扣了，写失败也要接着发下单消息，状态查不到时查数据库，建单后就能查到
+        try {
+            stringRedisTemplate.opsForValue().set(ORDER_STATUS_KEY + orderId,
+                    SeckillOrderStatus.PENDING + "|" + userId + "|", ttlMinutes, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            log.error("订单状态写入失败，orderId:{}，status:{}", orderId, SeckillOrderStatus.PENDING, e);
+        }
+    }
+
+    public void created(Long orderId, Long userId) {
+        update(orderId, userId, SeckillOrderStatus.CREATED, "");
+    }
+
+    public void failed(Long orderId, Long userId, String reason) {
+        update(orderId, userId, SeckillOrderStatus.FAILED, reason);
+    }
+
+    /**
+     * 重复下单导致没有建单：可能是同一条消息重复投递（之前已经建单成功），已经有结果的不覆盖
+     */
+    public void failedIfPending(Long orderId, Long userId, String reason) {
+        SeckillOrderStatus current = get(orderId);
+        if (current == null || !current.isFinished()) {
+            failed(orderId, userId, reason);
+        }
+    }
+
+    public void cancelled(Long orderId, Long userId) {
+        update(orderId, userId, SeckillOrderStatus.CANCELLED, "超时未支付");
+    }
+
+    private void update(Long orderId, Long userId, String status, String reason) {
+        //状态是订单结果的附加信息，写失败不能影响订单本身
+        try {
+            String value = status + "|" + userId + "|" + (reason == null ? "" : reason.replace("|", " "));
+            stringRedisTemplate.opsForValue().set(ORDER_STATUS_KEY + orderId, value, ttlMinutes, TimeUnit.MINUTES);
+            stringRedisTemplate.convertAndSend(ORDER_STATUS_CHANNEL, orderId + "|" + value);
+        } catch (Exception e) {
+            log.error("订单状态写入失败，orderId:{}，status:{}", orderId, status, e);
+        }
+    }
+
+    /**
+     * 查询订单状态，只查redis
+     * @param orderId
+     * @return 状态已经过期或者订单不存在返回null
+     */
+    public SeckillOrderStatus get(Long orderId) {
+        String value = stringRedisTemplate.opsForValue().get(ORDER_STATUS_KEY + orderId);
+        if (value == null) {
+            return null;
+        }
+        return parse(orderId, value);
+    }
+
+    /**
+     * 等待订单状态变化，状态变成非PENDING时回调一次
+     * 注册之后会再查一次redis，防止注册之前状态已经变了
+     * @param orderId
+     * @param callback
+     * @return 取消等待，超时或者连接断开时调用
+     */
+    public Runnable await(Long orderId, Consumer<SeckillOrderStatus> callback) {
+        waiters.computeIfAbsent(orderId, k -> ConcurrentHashMap.newKeySet()).add(callback);
+        Runnable cancel = () -> removeWaiter(orderId, callback);
+        SeckillOrderStatus current = get(orderId);
+        if (current != null && current.isFinished()) {
+            notifyWaiters(current);
+        }
+        return cancel;
+    }
+
+    private void removeWaiter(Long orderId, Consumer<SeckillOrderStatus> callback) {
+        waiters.computeIfPresent(orderId, (k, set) -> {
+            set.remove(callback);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private void notifyWaiters(SeckillOrderStatus status) {
+        Set<Consumer<SeckillOrderStatus>> callbacks = waiters.remove(status.getOrderId());
+        if (callbacks == null) {
+            return;
+        }
+        for (Consumer<SeckillOrderStatus> callback : callbacks) {
+            try {
+                callback.accept(status);
+            } catch (Exception e) {
+                log.error("订单状态回调失败，orderId:{}", status.getOrderId(), e);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        //消息格式 orderId|状态|用户id|失败原因
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf('|');
+        if (index <= 0) {
+            log.error("无法识别的订单状态消息:{}", body);
+            return;
+        }
+        Long orderId = Long.valueOf(body.substring(0, index));
+        if (!waiters.containsKey(orderId)) {
+            return;
+        }
+        notifyWaiters(parse(orderId, body.substring(index + 1)));
+    }
+
+    private SeckillOrderStatus parse(Long orderId, String value) {
+        String[] parts = value.split("\\|", -1);
+        SeckillOrderStatus status = new SeckillOrderStatus();
+        status.setOrderId(orderId);
+        status.setStatus(parts[0]);
+        status.setUserId(parts.length > 1 && !parts[1].isEmpty() ? Long.valueOf(parts[1]) : null);
+        status.setReason(parts.length > 2 && !parts[2].isEmpty() ? parts[2] : null);
+        return status;
+    }
+}
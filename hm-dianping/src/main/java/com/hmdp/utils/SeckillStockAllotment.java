@@ -0,0 +1,336 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地配额模式的秒杀库存，每个应用节点一个实例
+ * 节点一次从redis库存 stock:seckillVoucher::{id} 租一批库存到内存，请求在内存里CAS扣减，不再每个请求跑一次lua
+ * 一人一单仍然由redis的已购用户集合保证：请求先在本地占一个库存，再把用户交给刷写线程，
+ * 刷写线程把一段时间内的用户攒成一批，一次lua批量SADD，按结果唤醒等待的请求
+ * 秒杀结束或者节点关闭时把没卖掉的库存还给redis
+ * 只支持单key库存的优惠卷，分片库存的优惠卷由调用方走原来的lua
+ */
+@Slf4j
+public class SeckillStockAllotment {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<List> BATCH_ADD_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("Lua/seckillStockLease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+
+        BATCH_ADD_SCRIPT = new DefaultRedisScript<>();
+        BATCH_ADD_SCRIPT.setLocation(new ClassPathResource("Lua/seckillBuyerBatchAdd.lua"));
+        BATCH_ADD_SCRIPT.setResultType(List.class);
+    }
+
+    //redis库存租完后多久再去看一眼，期间有订单取消或者补库存会还回redis
+    private static final long SOLD_OUT_RECHECK_MILLIS = 1000L;
+
+    //等待批量SADD结果的最长时间，等待期间占着请求线程，和spring.redis.timeout差不多，不比直接跑lua等得更久
+    private static final long BUYER_CHECK_TIMEOUT_MILLIS = 500L;
+
+    //排队等批量SADD的用户超过这么多批，刷写线程已经跟不上了，新请求直接拒绝，不再排队等超时
+    private static final int MAX_PENDING_BATCHES = 10;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final SeckillStockUtil seckillStockUtil;
+
+    //每次从redis租的库存数
+    private final int leaseSize;
+
+    //一次批量SADD最多带多少个用户
+    private final int batchSize;
+
+    //优惠卷id -> 本节点手里的库存
+    private final ConcurrentHashMap<Long, LocalStock> localStocks = new ConcurrentHashMap<>();
+
+    //等待批量SADD的用户
+    private final LinkedBlockingQueue<PendingBuyer> pendingBuyers = new LinkedBlockingQueue<>();
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    private static class LocalStock {
+        private final AtomicLong remaining = new AtomicLong();
+        //redis库存已经租完的时间，0表示还有
+        private volatile long redisEmptyAt;
+    }
+
+    private static class PendingBuyer {
+        private final Long voucherId;
+        private final Long userId;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingBuyer(Long voucherId, Long userId) {
+            this.voucherId = voucherId;
+            this.userId = userId;
+        }
+    }
+
+    public SeckillStockAllotment(StringRedisTemplate stringRedisTemplate, SeckillStockUtil seckillStockUtil,
+                                 int leaseSize, int batchSize) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillStockUtil = seckillStockUtil;
+        this.leaseSize = leaseSize;
+        this.batchSize = batchSize;
+        this.flusher = new Thread(this::flushLoop, "seckill-buyer-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 秒杀资格判断，返回值和SeckillStockUtil.tryAcquire一致
+     * 返回1只代表本节点没库存了，其他节点手里可能还有，所以不能广播售罄
+     * @param voucherId
+     * @param userId
+     * @return 0成功 1没库存了 2已经买过了 3秒杀未开始 4秒杀已结束
+     * @throws RedisUnavailableException 一人一单校验排队过多或者等待超时，本地库存已经还回去
+     */
+    public long tryAcquire(Long voucherId, Long userId) {
+        SeckillStockUtil.VoucherMeta meta = seckillStockUtil.getMeta(voucherId);
+        long now = System.currentTimeMillis();
+        if (meta.getBeginTime() != null && now < meta.getBeginTime()) {
+            return SeckillStockUtil.STATUS_NOT_STARTED;
+        }
+        if (meta.getEndTime() != null && now > meta.getEndTime()) {
+            return SeckillStockUtil.STATUS_ENDED;
+        }
+        if (pendingBuyers.size() >= batchSize * MAX_PENDING_BATCHES) {
+            //还没占库存也没排队，什么都没改
+            throw new RedisUnavailableException("一人一单校验排队过多", true);
+        }
+        LocalStock localStock = localStocks.computeIfAbsent(voucherId, k -> new LocalStock());
+        //先在本地占一个库存
+        if (!reserve(voucherId, localStock)) {
+            return SeckillStockUtil.STATUS_SOLD_OUT;
+        }
+        //再判断一人一单，没通过就把库存还给本地
+        boolean firstBuy;
+        try {
+            PendingBuyer pendingBuyer = new PendingBuyer(voucherId, userId);
+            pendingBuyers.add(pendingBuyer);
+            firstBuy = awaitBuyer(pendingBuyer);
+        } catch (Exception e) {
+            //超时或者刷写线程出错，用户没有留在已购集合里（见awaitBuyer），库存还回本地
+            localStock.remaining.incrementAndGet();
+            throw new RedisUnavailableException("一人一单校验失败", e);
+        }
+        if (!firstBuy) {
+            localStock.remaining.incrementAndGet();
+            return SeckillStockUtil.STATUS_BOUGHT;
+        }
+        return SeckillStockUtil.STATUS_OK;
+    }
+
+    /**
+     * 等待批量SADD的结果，超时就取消
+     * 取消后刷写线程还没取走的直接跳过，已经SADD进去的由刷写线程发现没人等了再SREM，不会留下没有订单的已购记录
+     * 取消的前一刻刚好有了结果就按结果处理
+     */
+    private boolean awaitBuyer(PendingBuyer pendingBuyer) throws Exception {
+        try {
+            return pendingBuyer.result.get(BUYER_CHECK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (pendingBuyer.result.cancel(false)) {
+                throw e;
+            }
+            return pendingBuyer.result.get();
+        }
+    }
+
+    private boolean reserve(Long voucherId, LocalStock localStock) {
+        while (true) {
+            long remaining = localStock.remaining.get();
+            if (remaining > 0) {
+                if (localStock.remaining.compareAndSet(remaining, remaining - 1)) {
+                    return true;
+                }
+                continue;
+            }
+            //本地没库存了，去redis租一批，同一张优惠卷同时只让一个线程去租
+            synchronized (localStock) {
+                if (localStock.remaining.get() > 0) {
+                    continue;
+                }
+                long redisEmptyAt = localStock.redisEmptyAt;
+                if (redisEmptyAt > 0 && System.currentTimeMillis() - redisEmptyAt < SOLD_OUT_RECHECK_MILLIS) {
+                    return false;
+                }
+                Long leased = stringRedisTemplate.execute(LEASE_SCRIPT,
+                        Collections.singletonList(SeckillStockUtil.SECKILL_VOUCHER_STOCK_KEY + voucherId),
+                        String.valueOf(leaseSize));
+                if (leased == null || leased <= 0) {
+                    localStock.redisEmptyAt = System.currentTimeMillis();
+                    return false;
+                }
+                localStock.redisEmptyAt = 0;
+                localStock.remaining.addAndGet(leased);
+            }
+        }
+    }
+
+    private void flushLoop() {
+        List<PendingBuyer> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                //没有请求时阻塞等待，有请求时把已经排队的一起带上，压力越大批越大
+                PendingBuyer first = pendingBuyers.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pendingBuyers.drainTo(batch, batchSize - 1);
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("批量校验一人一单失败，本批用户数:{}", batch.size(), e);
+                reconcile(batch, e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingBuyer> batch) {
+        //按优惠卷分组，每张优惠卷一次lua，已经超时取消的请求不再SADD
+        Map<Long, List<PendingBuyer>> byVoucher = new LinkedHashMap<>();
+        for (PendingBuyer pendingBuyer : batch) {
+            if (!pendingBuyer.result.isDone()) {
+                byVoucher.computeIfAbsent(pendingBuyer.voucherId, k -> new ArrayList<>()).add(pendingBuyer);
+            }
+        }
+        for (Map.Entry<Long, List<PendingBuyer>> entry : byVoucher.entrySet()) {
+            List<PendingBuyer> buyers = entry.getValue();
+            String buyerKey = SeckillStockUtil.ORDER_BOUGHT_USER_KEY + entry.getKey() + "::users";
+            Object[] userIds = new Object[buyers.size()];
+            for (int i = 0; i < buyers.size(); i++) {
+                userIds[i] = buyers.get(i).userId.toString();
+            }
+            List<?> results = stringRedisTemplate.execute(BATCH_ADD_SCRIPT, Collections.singletonList(buyerKey), userIds);
+            //SADD期间请求等超时取消了，新加进去的用户要删掉，否则这个用户再也抢不了又没有订单
+            List<Object> abandoned = new ArrayList<>();
+            for (int i = 0; i < buyers.size(); i++) {
+                boolean added = ((Number) results.get(i)).longValue() == 1;
+                if (!buyers.get(i).result.complete(added) && added) {
+                    abandoned.add(userIds[i]);
+                }
+            }
+            if (!abandoned.isEmpty()) {
+                stringRedisTemplate.opsForSet().remove(buyerKey, abandoned.toArray());
+                log.warn("优惠卷:{}有{}个用户等待超时，已从已购集合中删除", entry.getKey(), abandoned.size());
+            }
+        }
+    }
+
+    /**
+     * 批量SADD出错（比如命令超时）时不知道lua有没有执行，用SISMEMBER确认每个用户的结果
+     * 在集合里就当作抢到了，继续下单：之前就买过的用户下单时会撞订单表的唯一索引，最多本节点少卖一个库存，不会超卖
+     * SISMEMBER也失败时只能按失败返回，这个用户可能留在已购集合里，需要人工处理
+     */
+    private void reconcile(List<PendingBuyer> batch, Exception cause) {
+        for (PendingBuyer pendingBuyer : batch) {
+            if (pendingBuyer.result.isDone()) {
+                continue;
+            }
+            try {
+                Boolean member = stringRedisTemplate.opsForSet().isMember(
+                        SeckillStockUtil.ORDER_BOUGHT_USER_KEY + pendingBuyer.voucherId + "::users", pendingBuyer.userId.toString());
+                if (!pendingBuyer.result.complete(Boolean.TRUE.equals(member)) && Boolean.TRUE.equals(member)) {
+                    log.warn("用户:{}在已购集合中但请求已经超时，优惠卷:{}", pendingBuyer.userId, pendingBuyer.voucherId);
+                }
+            } catch (Exception e) {
+                log.error("确认一人一单结果失败，用户:{}，优惠卷:{}", pendingBuyer.userId, pendingBuyer.voucherId, e);
+                pendingBuyer.result.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * 把本节点手里某张优惠卷没卖掉的库存还给redis
+     * @param voucherId
+     * @return 还回去的数量
+     */
+    public long release(Long voucherId) {
+        LocalStock localStock = localStocks.get(voucherId);
+        if (localStock == null) {
+            return 0;
+        }
+        long remaining;
+        synchronized (localStock) {
+            remaining = localStock.remaining.getAndSet(0);
+            if (remaining > 0) {
+                stringRedisTemplate.opsForValue().increment(SeckillStockUtil.SECKILL_VOUCHER_STOCK_KEY + voucherId, remaining);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * 秒杀已经结束的优惠卷，把本地库存还给redis
+     */
+    @Scheduled(fixedDelay = 10_000L)
+    public void releaseEnded() {
+        long now = System.currentTimeMillis();
+        for (Long voucherId : localStocks.keySet()) {
+            Long endTime = seckillStockUtil.getMeta(voucherId).getEndTime();
+            if (endTime != null && now > endTime) {
+                long released = release(voucherId);
+                localStocks.remove(voucherId);
+                if (released > 0) {
+                    log.info("优惠卷:{}秒杀已结束，归还本地库存:{}", voucherId, released);
+                }
+            }
+        }
+    }
+
+    /**
+     * 节点关闭，停止刷写线程并归还全部本地库存
+     */
+    public void shutdown() {
+        running = false;
+        flusher.interrupt();
+        PendingBuyer pendingBuyer;
+        while ((pendingBuyer = pendingBuyers.poll()) != null) {
+            pendingBuyer.result.completeExceptionally(new IllegalStateException("节点正在关闭"));
+        }
+        for (Long voucherId : localStocks.keySet()) {
+            long released = release(voucherId);
+            if (released > 0) {
+                log.info("节点关闭，归还优惠卷:{}的本地库存:{}", voucherId, released);
+            }
+        }
+    }
+
+    /**
+     * 本节点手里某张优惠卷的库存
+     */
+    public long localRemaining(Long voucherId) {
+        LocalStock localStock = localStocks.get(voucherId);
+        return localStock == null ? 0 : localStock.remaining.get();
+    }
+}
@@ -0,0 +1,318 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀卷在redis中的库存和已购用户
+ * 两种模式，在新增秒杀卷时选定：
+ *      单key模式：stock:seckillVoucher::{id} 一个库存key，所有请求都打到这一个key上
+ *      分片模式：库存拆到N个分片key，按用户id哈希路由到所属分片，所属分片没库存再去其他分片扣
+ */
+@Component
+@Slf4j
+public class SeckillStockUtil {
+
+    public static final String SECKILL_VOUCHER_STOCK_KEY = "stock:seckillVoucher::";
+
+    public static final String ORDER_BOUGHT_USER_KEY = "orderBought:seckillVoucher:";
+
+    //秒杀卷元数据hash：shards分片数，begin/end秒杀开始结束时间（毫秒时间戳）
+    public static final String SECKILL_VOUCHER_META_KEY = "seckill:voucher:meta::";
+
+    //lua返回值
+    public static final long STATUS_OK = 0;
+    public static final long STATUS_SOLD_OUT = 1;
+    public static final long STATUS_BOUGHT = 2;
+    public static final long STATUS_NOT_STARTED = 3;
+    public static final long STATUS_ENDED = 4;
+    //分片模式：所属分片没库存，已占住一人一单名额
+    private static final long STATUS_SHARD_EMPTY = 5;
+
+    //元数据在本地缓存的时间，秒杀时间在redis里改了之后其他节点最多这么久后看到
+    @Value("${hmdp.seckill.meta.local-ttl-ms:5000}")
+    private long metaTtlMillis;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_DECR_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("Lua/seckillVoucher.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("Lua/seckillVoucherShard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+
+        SHARD_DECR_SCRIPT = new DefaultRedisScript<>();
+        SHARD_DECR_SCRIPT.setLocation(new ClassPathResource("Lua/seckillStockDecr.lua"));
+        SHARD_DECR_SCRIPT.setResultType(Long.class);
+
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("Lua/seckillStockRelease.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //优惠卷id -> 元数据，分片数创建后不会再变，秒杀时间可能改，按metaTtlMillis过期
+    private final ConcurrentHashMap<Long, VoucherMeta> metaCache = new ConcurrentHashMap<>();
+
+    @Data
+    public static class VoucherMeta {
+        private int shards = 1;
+        //秒杀开始结束时间（毫秒时间戳），为null不限制
+        private Long beginTime;
+        private Long endTime;
+        //false表示redis里没有元数据，按单key处理
+        private boolean present;
+        private long loadedAt;
+    }
+
+    /**
+     * 新增秒杀卷时写入redis库存和秒杀时间，之后的资格判断不再查数据库
+     * @param voucherId
+     * @param stock 总库存
+     * @param shards 分片数，小于等于1为单key模式
+     * @param beginTime 秒杀开始时间，为null不限制
+     * @param endTime 秒杀结束时间，为null不限制
+     */
+    public void initStock(Long voucherId, int stock, int shards, LocalDateTime beginTime, LocalDateTime endTime) {
+        shards = Math.max(shards, 1);
+        Map<String, String> window = new HashMap<>();
+        if (beginTime != null) {
+            window.put("begin", String.valueOf(toEpochMilli(beginTime)));
+        }
+        if (endTime != null) {
+            window.put("end", String.valueOf(toEpochMilli(endTime)));
+        }
+        if (shards == 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_VOUCHER_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            //均分库存，余数分给前面几个分片
+            Map<String, String> shardStock = new HashMap<>();
+            for (int i = 0; i < shards; i++) {
+                int count = stock / shards + (i < stock % shards ? 1 : 0);
+                shardStock.put(shardStockKey(voucherId, i), String.valueOf(count));
+                //秒杀时间每个分片存一份，和分片库存同一个hash tag，lua里能一起判断
+                if (!window.isEmpty()) {
+                    stringRedisTemplate.opsForHash().putAll(shardMetaKey(voucherId, i), window);
+                }
+            }
+            stringRedisTemplate.opsForValue().multiSet(shardStock);
+        }
+        Map<String, String> meta = new HashMap<>(window);
+        meta.put("shards", String.valueOf(shards));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_META_KEY + voucherId, meta);
+        metaCache.remove(voucherId);
+    }
+
+    /**
+     * 补库存，分片模式均分到各分片
+     * 要在数据库库存提交之后调用，中途失败已经加上的分片不回退，redis库存只会比数据库少
+     * @param voucherId
+     * @param count
+     */
+    public void addStock(Long voucherId, int count) {
+        int shards = getMeta(voucherId).getShards();
+        if (shards == 1) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_VOUCHER_STOCK_KEY + voucherId, count);
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            int add = count / shards + (i < count % shards ? 1 : 0);
+            if (add > 0) {
+                stringRedisTemplate.opsForValue().increment(shardStockKey(voucherId, i), add);
+            }
+        }
+    }
+
+    /**
+     * 秒杀资格判断：判断秒杀时间、库存、一人一单并扣减redis库存
+     * @param voucherId
+     * @param userId
+     * @return 0成功 1没库存了 2已经买过了 3秒杀未开始 4秒杀已结束
+     */
+    public long tryAcquire(Long voucherId, Long userId) {
+        int shards = getMeta(voucherId).getShards();
+        String now = String.valueOf(System.currentTimeMillis());
+        if (shards == 1) {
+            List<String> keys = new ArrayList<>();
+            keys.add(SECKILL_VOUCHER_STOCK_KEY + voucherId);
+            keys.add(ORDER_BOUGHT_USER_KEY + voucherId + "::users");
+            keys.add(SECKILL_VOUCHER_META_KEY + voucherId);
+            return stringRedisTemplate.execute(SECKILL_SCRIPT, keys, userId.toString(), now);
+        }
+        return tryAcquireSharded(voucherId, userId, shards, now);
+    }
+
+    private long tryAcquireSharded(Long voucherId, Long userId, int shards, String now) {
+        int home = homeShard(userId, shards);
+        Long status = stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(shardStockKey(voucherId, home), shardBuyerKey(voucherId, home), shardMetaKey(voucherId, home)),
+                userId.toString(), now);
+        if (status == null || status != STATUS_SHARD_EMPTY) {
+            return status == null ? STATUS_SOLD_OUT : status;
+        }
+        //所属分片没库存了，依次去其他分片扣
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long decr = stringRedisTemplate.execute(SHARD_DECR_SCRIPT,
+                    Collections.singletonList(shardStockKey(voucherId, shard)));
+            if (decr != null && decr == 1) {
+                return STATUS_OK;
+            }
+        }
+        //全部分片都没库存，把占住的名额还回去
+        stringRedisTemplate.opsForSet().remove(shardBuyerKey(voucherId, home), userId.toString());
+        return STATUS_SOLD_OUT;
+    }
+
+    /**
+     * 订单取消，把用户的一人一单名额和一个库存还回去
+     * 分片模式还到用户所属的分片，不管当初是从哪个分片扣的，总库存不变
+     * @param voucherId
+     * @param userId
+     * @return 是否真的还了，用户不在已购集合里（已经还过了）返回false
+     */
+    public boolean releaseStock(Long voucherId, Long userId) {
+        int shards = getMeta(voucherId).getShards();
+        List<String> keys;
+        if (shards == 1) {
+            keys = Arrays.asList(SECKILL_VOUCHER_STOCK_KEY + voucherId, ORDER_BOUGHT_USER_KEY + voucherId + "::users");
+        } else {
+            int home = homeShard(userId, shards);
+            keys = Arrays.asList(shardStockKey(voucherId, home), shardBuyerKey(voucherId, home));
+        }
+        Long released = stringRedisTemplate.execute(RELEASE_SCRIPT, keys, userId.toString());
+        return released != null && released == 1;
+    }
+
+    /**
+     * 用户是否在已购集合里，分片模式查用户所属的分片
+     * @param voucherId
+     * @param userId
+     * @return
+     */
+    public boolean isBuyer(Long voucherId, Long userId) {
+        int shards = getMeta(voucherId).getShards();
+        String key = shards == 1 ? ORDER_BOUGHT_USER_KEY + voucherId + "::users" : shardBuyerKey(voucherId, homeShard(userId, shards));
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(key, userId.toString()));
+    }
+
+    /**
+     * redis中剩余的总库存
+     * @param voucherId
+     * @return
+     */
+    public long remainingStock(Long voucherId) {
+        int shards = getMeta(voucherId).getShards();
+        List<String> keys = new ArrayList<>();
+        if (shards == 1) {
+            keys.add(SECKILL_VOUCHER_STOCK_KEY + voucherId);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                keys.add(shardStockKey(voucherId, i));
+            }
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        long total = 0;
+        if (values != null) {
+            for (String value : values) {
+                if (value != null) total += Long.parseLong(value);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 删除优惠卷在redis中的库存、已购用户和元数据，测试用
+     * @param voucherId
+     */
+    public void clearStock(Long voucherId) {
+        int shards = getMeta(voucherId).getShards();
+        List<String> keys = new ArrayList<>();
+        keys.add(SECKILL_VOUCHER_STOCK_KEY + voucherId);
+        keys.add(ORDER_BOUGHT_USER_KEY + voucherId + "::users");
+        keys.add(SECKILL_VOUCHER_META_KEY + voucherId);
+        for (int i = 0; i < shards; i++) {
+            keys.add(shardStockKey(voucherId, i));
+            keys.add(shardBuyerKey(voucherId, i));
+            keys.add(shardMetaKey(voucherId, i));
+        }
+        stringRedisTemplate.delete(keys);
+        metaCache.remove(voucherId);
+    }
+
+    public VoucherMeta getMeta(Long voucherId) {
+        VoucherMeta meta = metaCache.get(voucherId);
+        if (meta != null && System.currentTimeMillis() - meta.getLoadedAt() < metaTtlMillis) {
+            return meta;
+        }
+        VoucherMeta loaded = new VoucherMeta();
+        loaded.setLoadedAt(System.currentTimeMillis());
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_VOUCHER_META_KEY + voucherId, Arrays.asList("shards", "begin", "end"));
+        if (values.get(0) != null) {
+            loaded.setPresent(true);
+            loaded.setShards(Integer.parseInt(values.get(0).toString()));
+        }
+        if (values.get(1) != null) {
+            loaded.setBeginTime(Long.parseLong(values.get(1).toString()));
+        }
+        if (values.get(2) != null) {
+            loaded.setEndTime(Long.parseLong(values.get(2).toString()));
+        }
+        //没有元数据的优惠卷（老数据或者还没创建）按单key处理，不缓存，
+        //否则其他节点新建的分片卷在这里过期之前都会被当成单key
+        if (loaded.isPresent()) {
+            metaCache.put(voucherId, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * 用户所属分片，同一个用户永远落在同一个分片
+     */
+    static int homeShard(Long userId, int shards) {
+        //userId是自增的，先打散再取模
+        long mixed = userId * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(mixed ^ (mixed >>> 32), (long) shards);
+    }
+
+    //{}是redis cluster的hash tag，同一个分片的库存和已购用户落在同一个slot，lua脚本才能同时操作
+    static String shardStockKey(Long voucherId, int shard) {
+        return SECKILL_VOUCHER_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    static String shardBuyerKey(Long voucherId, int shard) {
+        return ORDER_BOUGHT_USER_KEY + "{" + voucherId + ":" + shard + "}::users";
+    }
+
+    static String shardMetaKey(Long voucherId, int shard) {
+        return SECKILL_VOUCHER_META_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,111 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 节点本地的秒杀卷售罄登记表
+ * lua脚本返回库存不足后登记，之后的请求直接在内存里拒绝，不用再跑一次lua
+ * 登记和清除都通过redis发布订阅同步到其他节点
+ */
+@Component
+@Slf4j
+public class SoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT_CHANNEL = "channel:seckillVoucher:soldOut";
+
+    private static final String SOLD_OUT = "soldOut";
+    private static final String RESTOCK = "restock";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //已售罄的优惠卷id -> 登记时间
+    private final ConcurrentHashMap<Long, Long> soldOut = new ConcurrentHashMap<>();
+    //优惠卷id -> 最近一次补库存的时间，补库存之前发起的lua结果不能再把优惠卷登记为售罄
+    private final ConcurrentHashMap<Long, Long> restocked = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void subscribe() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.containsKey(voucherId);
+    }
+
+    /**
+     * 登记售罄并通知其他节点
+     * @param voucherId
+     * @param checkedAt 发起lua判断库存的时间
+     */
+    public void markSoldOut(Long voucherId, long checkedAt) {
+        if (applySoldOut(voucherId, checkedAt)) {
+            publish(SOLD_OUT, voucherId, checkedAt);
+        }
+    }
+
+    /**
+     * 补库存后清除售罄标记并通知其他节点
+     * @param voucherId
+     */
+    public void clear(Long voucherId) {
+        long now = System.currentTimeMillis();
+        applyRestock(voucherId, now);
+        publish(RESTOCK, voucherId, now);
+    }
+
+    private boolean applySoldOut(Long voucherId, long checkedAt) {
+        Long restockTime = restocked.get(voucherId);
+        if (restockTime != null && checkedAt < restockTime) {
+            //lua是在补库存之前跑的，结果已经过时
+            return false;
+        }
+        return soldOut.putIfAbsent(voucherId, checkedAt) == null;
+    }
+
+    private void applyRestock(Long voucherId, long time) {
+        restocked.merge(voucherId, time, Math::max);
+        soldOut.remove(voucherId);
+    }
+
+    private void publish(String type, Long voucherId, long time) {
+        try {
+            stringRedisTemplate.convertAndSend(SOLD_OUT_CHANNEL, type + ":" + voucherId + ":" + time);
+        } catch (Exception e) {
+            //广播失败只影响其他节点的短路，不影响正确性，其他节点还是会走lua
+            log.error("售罄状态广播失败，voucherId:{}", voucherId, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        //消息格式 type:voucherId:time，自己发出的消息也会收到，重复处理没有影响
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String[] parts = body.split(":");
+        if (parts.length != 3) {
+            log.error("无法识别的售罄消息:{}", body);
+            return;
+        }
+        Long voucherId = Long.valueOf(parts[1]);
+        long time = Long.parseLong(parts[2]);
+        if (SOLD_OUT.equals(parts[0])) {
+            applySoldOut(voucherId, time);
+        } else if (RESTOCK.equals(parts[0])) {
+            applyRestock(voucherId, time);
+        }
+    }
+}
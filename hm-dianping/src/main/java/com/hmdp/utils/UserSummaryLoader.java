@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.User;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户摘要（id、昵称、头像）的批量加载，博客作者、共同关注等需要展示用户的地方都用它，不要逐个selectById
+ *      一级缓存：LocalCacheManager，前缀cache:user:summary::，在local.specs里配置
+ *      二级缓存：redis hash cache:user:summary::{id}，字段id、nickName、icon，一次pipeline HGETALL
+ *      都没有的一次selectBatchIds查数据库，再一次pipeline回填redis
+ * 用户资料修改后调用evict，删redis并通知所有节点删本地的
+ * 返回的对象在本地缓存中共享，调用方不要修改
+ */
+@Component
+@Slf4j
+public class UserSummaryLoader {
+
+    private static final String USER_SUMMARY_KEY = "cache:user:summary::";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Autowired
+    private LocalCacheManager localCacheManager;
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    @Autowired
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    @Autowired
+    private CacheMetrics cacheMetrics;
+
+    @Value("${hmdp.user.summary.ttl-minutes:30}")
+    private long ttlMinutes;
+
+    /**
+     * 查一个用户
+     * @param userId
+     * @return 不存在返回null
+     */
+    public UserDTO load(Long userId) {
+        return userId == null ? null : loadAll(Collections.singletonList(userId)).get(userId);
+    }
+
+    /**
+     * 批量查用户，本地缓存、redis、数据库各最多一次调用
+     * @param userIds
+     * @return id -> 用户，不存在的id不在结果里
+     */
+    public Map<Long, UserDTO> loadAll(Collection<Long> userIds) {
+        Map<Long, UserDTO> result = new HashMap<>();
+        List<Long> toRedis = new ArrayList<>();
+        for (Long userId : new LinkedHashSet<>(userIds)) {
+            if (userId == null) {
+                continue;
+            }
+            Object local = localCacheManager.get(USER_SUMMARY_KEY, USER_SUMMARY_KEY + userId);
+            if (local instanceof UserDTO) {
+                result.put(userId, (UserDTO) local);
+            } else {
+                toRedis.add(userId);
+            }
+        }
+        if (toRedis.isEmpty()) {
+            return result;
+        }
+        List<Long> missing = new ArrayList<>();
+        List<Object> hashes = null;
+        try {
+            hashes = redisCircuitBreaker.call(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long userId : toRedis) {
+                    connection.hashCommands().hGetAll((USER_SUMMARY_KEY + userId).getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            }));
+        } catch (RedisUnavailableException e) {
+            //redis不可用直接查数据库，拿不到许可就不带用户信息返回，不让整个列表失败
+            if (!redisCircuitBreaker.tryAcquireDbPermit()) {
+                cacheMetrics.error(USER_SUMMARY_KEY, "shed");
+                return result;
+            }
+            try {
+                result.putAll(selectUsers(toRedis));
+            } finally {
+                redisCircuitBreaker.releaseDbPermit();
+            }
+            return result;
+        }
+        for (int i = 0; i < toRedis.size(); i++) {
+            Long userId = toRedis.get(i);
+            Map<String, String> hash = (Map<String, String>) hashes.get(i);
+            if (hash == null || hash.isEmpty()) {
+                cacheMetrics.redisMiss(USER_SUMMARY_KEY);
+                missing.add(userId);
+                continue;
+            }
+            cacheMetrics.redisHit(USER_SUMMARY_KEY);
+            UserDTO user = new UserDTO();
+            user.setId(userId);
+            user.setNickName(hash.get("nickName"));
+            user.setIcon(hash.get("icon"));
+            localCacheManager.put(USER_SUMMARY_KEY, USER_SUMMARY_KEY + userId, user);
+            result.put(userId, user);
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        Map<Long, UserDTO> loaded = selectUsers(missing);
+        try {
+            redisCircuitBreaker.run(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (UserDTO user : loaded.values()) {
+                    byte[] key = (USER_SUMMARY_KEY + user.getId()).getBytes(StandardCharsets.UTF_8);
+                    connection.hashCommands().hMSet(key, toHash(user));
+                    connection.keyCommands().expire(key, TimeUnit.MINUTES.toSeconds(ttlMinutes));
+                }
+                return null;
+            }));
+        } catch (RedisUnavailableException e) {
+            log.warn("用户摘要回填redis失败，用户数:{}", loaded.size());
+            cacheMetrics.error(USER_SUMMARY_KEY, "write");
+        }
+        for (UserDTO user : loaded.values()) {
+            localCacheManager.put(USER_SUMMARY_KEY, USER_SUMMARY_KEY + user.getId(), user);
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    //一次IN查询，只查摘要需要的字段
+    private Map<Long, UserDTO> selectUsers(List<Long> userIds) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Map<Long, UserDTO> users = new HashMap<>();
+            for (User user : userMapper.selectBatchIds(userIds)) {
+                UserDTO dto = new UserDTO();
+                dto.setId(user.getId());
+                dto.setNickName(user.getNickName());
+                dto.setIcon(user.getIcon());
+                users.put(user.getId(), dto);
+            }
+            success = true;
+            return users;
+        } finally {
+            cacheMetrics.load(USER_SUMMARY_KEY, System.nanoTime() - start, success);
+        }
+    }
+
+    private Map<byte[], byte[]> toHash(UserDTO user) {
+        Map<byte[], byte[]> hash = new HashMap<>();
+        hash.put("id".getBytes(StandardCharsets.UTF_8), user.getId().toString().getBytes(StandardCharsets.UTF_8));
+        hash.put("nickName".getBytes(StandardCharsets.UTF_8), nullToEmpty(user.getNickName()).getBytes(StandardCharsets.UTF_8));
+        hash.put("icon".getBytes(StandardCharsets.UTF_8), nullToEmpty(user.getIcon()).getBytes(StandardCharsets.UTF_8));
+        return hash;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * 用户资料修改后删除摘要缓存，所有节点的本地缓存一起删
+     * @param userId
+     */
+    public void evict(Long userId) {
+        redisUtil.delete(USER_SUMMARY_KEY + userId);
+    }
+}
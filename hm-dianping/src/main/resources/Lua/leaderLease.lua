@@ -0,0 +1,13 @@
+-- 选主租约：key不存在时抢占，已经是自己的续期
+-- KEYS[1] 租约key
+-- ARGV[1] 节点标识  ARGV[2] 租约时间毫秒
+-- 返回 1当前节点是主 0其他节点是主
+
+if(redis.call("get",KEYS[1]) == ARGV[1]) then
+    redis.call("pexpire",KEYS[1],ARGV[2])
+    return 1
+end
+if(redis.call("set",KEYS[1],ARGV[1],"NX","PX",ARGV[2])) then
+    return 1
+end
+return 0
@@ -0,0 +1,25 @@
+-- 点赞/取消点赞，一次调用里改完点赞记录、点赞数、排行榜分数，并把博客标记为待同步到数据库
+-- KEYS[1] 点赞用户zset  KEYS[2] 点赞数  KEYS[3] 热门排行榜zset  KEYS[4] 点赞数待同步的博客id zset(权值为第一次变化的时间)
+-- ARGV[1] 用户id  ARGV[2] 博客id  ARGV[3] 当前时间毫秒  ARGV[4] 点赞数的过期时间秒
+-- 返回 {1已点赞/0已取消, 最新点赞数}，点赞数不在redis里时返回{-1, 0}，什么都不改，由调用方从数据库加载后重试
+
+local count = redis.call("get",KEYS[2])
+if(count == false or count == "") then
+    return {-1, 0}
+end
+
+local liked = 0
+if(redis.call("zscore",KEYS[1],ARGV[1]) == false) then
+    redis.call("zadd",KEYS[1],ARGV[3],ARGV[1])
+    count = redis.call("incr",KEYS[2])
+    liked = 1
+else
+    redis.call("zrem",KEYS[1],ARGV[1])
+    count = redis.call("decr",KEYS[2])
+end
+redis.call("expire",KEYS[2],ARGV[4])
+-- 排行榜分数直接设成最新点赞数，不用增量，之前有偏差的分数也会被纠正
+redis.call("zadd",KEYS[3],count,ARGV[2])
+-- 已经在待同步里的不改时间，同步延迟从第一次变化算起
+redis.call("zadd",KEYS[4],"NX",ARGV[3],ARGV[2])
+return {liked, count}
@@ -0,0 +1,11 @@
+-- 点赞数同步：从待同步zset里取出最早变化的一批博客id，同时放进同步中zset
+-- 同步节点在写数据库之前挂了，同步中的id会在下次同步时放回待同步
+-- KEYS[1] 待同步zset  KEYS[2] 同步中zset
+-- ARGV[1] 一批最多取多少个
+-- 返回 {博客id, 第一次变化的时间, 博客id, 第一次变化的时间, ...}
+
+local popped = redis.call("zpopmin",KEYS[1],ARGV[1])
+for i = 1, #popped, 2 do
+    redis.call("zadd",KEYS[2],popped[i + 1],popped[i])
+end
+return popped
@@ -0,0 +1,43 @@
+-- 秒杀准入的全局模式：所有节点共用一个优惠卷令牌桶和用户滑动窗口
+-- KEYS[1] 优惠卷令牌桶hash(tokens剩余令牌, ts上次补充时间)  KEYS[2] 用户请求时间zset
+-- ARGV[1] 当前时间毫秒  ARGV[2] 桶容量  ARGV[3] 每毫秒补充的令牌数  ARGV[4] 最多排队等待毫秒
+-- ARGV[5] 用户窗口毫秒  ARGV[6] 窗口内最多请求数(0不限制)  ARGV[7] 本次请求在zset里的member
+-- 返回 -2用户请求太频繁  -1令牌不够且等待超过上限  >=0需要等待的毫秒数（令牌已经预扣）
+
+local now = tonumber(ARGV[1])
+local userMax = tonumber(ARGV[6])
+if(userMax > 0) then
+    local window = tonumber(ARGV[5])
+    redis.call("zremrangebyscore",KEYS[2],0,now - window)
+    if(redis.call("zcard",KEYS[2]) >= userMax) then
+        return -2
+    end
+    redis.call("zadd",KEYS[2],now,ARGV[7])
+    redis.call("pexpire",KEYS[2],window)
+end
+
+local capacity = tonumber(ARGV[2])
+local rate = tonumber(ARGV[3])
+local bucket = redis.call("hmget",KEYS[1],"tokens","ts")
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if(tokens == nil or ts == nil) then
+    tokens = capacity
+    ts = now
+end
+-- 按时间补充令牌，不超过容量
+tokens = math.min(capacity,tokens + math.max(0,now - ts) * rate)
+
+local wait = 0
+if(tokens < 1) then
+    wait = math.ceil((1 - tokens) / rate)
+    if(wait > tonumber(ARGV[4])) then
+        redis.call("hset",KEYS[1],"tokens",tostring(tokens),"ts",now)
+        return -1
+    end
+end
+-- 预扣一个令牌，需要等待时令牌为负数，后面的请求等得更久
+tokens = tokens - 1
+redis.call("hset",KEYS[1],"tokens",tostring(tokens),"ts",now)
+redis.call("pexpire",KEYS[1],60000)
+return wait
@@ -0,0 +1,9 @@
+-- 本地配额模式：一次把一批用户加入已购用户集合
+-- KEYS[1] 已购用户集合  ARGV 用户id列表
+-- 按顺序返回每个用户的结果，1表示第一次购买，0表示已经买过了（同一批里重复的用户只有第一个是1）
+
+local result = {}
+for i = 1, #ARGV do
+    result[i] = redis.call("sadd",KEYS[1],ARGV[i])
+end
+return result
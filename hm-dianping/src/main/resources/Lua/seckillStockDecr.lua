@@ -0,0 +1,10 @@
+-- 分片库存模式下，用户所属分片没库存时到其他分片扣库存
+-- KEYS[1] 分片库存
+-- 扣减成功返回1，没有库存返回0
+
+local stock = tonumber(redis.call("get",KEYS[1]))
+if(stock == nil or stock <= 0) then
+    return 0
+end
+redis.call("incrby",KEYS[1],-1)
+return 1
@@ -0,0 +1,11 @@
+-- 本地配额模式：节点从redis库存里租一批库存到本地内存扣减
+-- KEYS[1] 库存  ARGV[1] 想租的数量
+-- 返回实际租到的数量，库存不够就把剩下的全租走，没有库存返回0
+
+local stock = tonumber(redis.call("get",KEYS[1]))
+if(stock == nil or stock <= 0) then
+    return 0
+end
+local lease = math.min(stock,tonumber(ARGV[1]))
+redis.call("incrby",KEYS[1],-lease)
+return lease
@@ -0,0 +1,9 @@
+-- 订单取消后把名额和库存还给redis
+-- KEYS[1] 库存（分片模式为用户所属分片的库存）  KEYS[2] 已购用户集合  ARGV[1] 用户id
+-- 只有用户还在已购集合里才加库存，重复执行不会多还库存
+
+if(redis.call("srem",KEYS[2],ARGV[1]) == 0) then
+    return 0
+end
+redis.call("incrby",KEYS[1],1)
+return 1
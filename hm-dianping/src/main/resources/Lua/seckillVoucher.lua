@@ -4,6 +4,20 @@
 
 
 
+-- KEYS[1] 库存  KEYS[2] 已购用户集合  KEYS[3] 优惠卷元数据hash(begin/end为毫秒时间戳)
+-- ARGV[1] 用户id  ARGV[2] 当前时间毫秒
+-- 先判断秒杀时间，没有元数据的老优惠卷不判断
+local beginTime = tonumber(redis.call("hget", KEYS[3], "begin"))
+if beginTime ~= nil and tonumber(ARGV[2]) < beginTime then
+--    秒杀未开始
+    return 3
+end
+local endTime = tonumber(redis.call("hget", KEYS[3], "end"))
+if endTime ~= nil and tonumber(ARGV[2]) > endTime then
+--    秒杀已结束
+    return 4
+end
+
 -- 获取库存信息
 local stock = redis.call("get", KEYS[1])
 if stock == false or stock == nil then return 1 end
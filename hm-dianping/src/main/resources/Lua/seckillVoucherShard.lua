@@ -0,0 +1,32 @@
+-- 分片库存模式下在用户所属的分片上执行
+-- KEYS[1] 本分片库存  KEYS[2] 本分片已购用户集合  KEYS[3] 本分片的元数据hash(begin/end为毫秒时间戳)
+-- ARGV[1] 用户id  ARGV[2] 当前时间毫秒
+-- 一个用户永远落在同一个分片（按用户id哈希），所以一人一单只需要在本分片的集合里判断
+-- 秒杀时间每个分片都存一份，和库存在同一个slot，一次调用内原子判断
+
+local beginTime = tonumber(redis.call("hget",KEYS[3],"begin"))
+if(beginTime ~= nil and tonumber(ARGV[2]) < beginTime) then
+    -- 秒杀未开始
+    return 3
+end
+local endTime = tonumber(redis.call("hget",KEYS[3],"end"))
+if(endTime ~= nil and tonumber(ARGV[2]) > endTime) then
+    -- 秒杀已结束
+    return 4
+end
+
+-- 该用户已下单
+if(redis.call("sismember",KEYS[2],ARGV[1]) == 1) then
+    return 2
+end
+-- 先占住一人一单的名额
+redis.call("sadd",KEYS[2],ARGV[1])
+
+local stock = tonumber(redis.call("get",KEYS[1]))
+if(stock ~= nil and stock > 0) then
+    -- 本分片还有库存，直接扣减
+    redis.call("incrby",KEYS[1],-1)
+    return 0
+end
+-- 本分片没库存了，由调用方去其他分片扣，都扣不到再把名额还回来
+return 5
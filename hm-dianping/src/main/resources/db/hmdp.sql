@@ -1274,8 +1274,12 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) STORED COMMENT '未取消为1，已取消为NULL，只让未取消的订单参与一人一单的唯一索引',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+-- 已有库升级：ALTER TABLE `tb_voucher_order` ADD COLUMN `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) STORED COMMENT '未取消为1，已取消为NULL，只让未取消的订单参与一人一单的唯一索引',
+--   DROP INDEX `uk_user_voucher`, ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE;
 
 -- ----------------------------
 -- Records of tb_voucher_order
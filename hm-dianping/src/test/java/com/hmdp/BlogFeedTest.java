@@ -0,0 +1,117 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.FollowMapper;
+import com.hmdp.service.IBlogService;
+import com.hmdp.utils.BlogFeedFanout;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 关注流：新博客推送到所有粉丝的收件箱，滚动分页翻到底不重复不遗漏，时间戳相同的博客跨页也不会重复
+ */
+@SpringBootTest
+public class BlogFeedTest {
+
+    @Autowired
+    private BlogFeedFanout blogFeedFanout;
+
+    @Autowired
+    private IBlogService blogService;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    @Autowired
+    private FollowMapper followMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void testFanout() {
+        //不存在的作者和粉丝，不往真实用户的收件箱里推
+        Long authorId = 987654330L;
+        List<Long> fanIds = Arrays.asList(987654331L, 987654332L, 987654333L);
+        for (Long fanId : fanIds) {
+            Follow follow = new Follow();
+            follow.setUserId(fanId);
+            follow.setFollowUserId(authorId);
+            followMapper.insert(follow);
+        }
+        long timestamp = System.currentTimeMillis();
+        Long blogId = -1L;
+        try {
+            int fans = blogFeedFanout.fanout(blogId, authorId, timestamp);
+            assertEquals(fanIds.size(), fans);
+            for (Long fanId : fanIds) {
+                assertEquals((double) timestamp, stringRedisTemplate.opsForZSet().score(FEED_KEY + fanId, blogId.toString()));
+            }
+        } finally {
+            followMapper.delete(new LambdaQueryWrapper<Follow>().eq(Follow::getFollowUserId, authorId));
+            for (Long fanId : fanIds) {
+                stringRedisTemplate.delete(FEED_KEY + fanId);
+            }
+        }
+    }
+
+    @Test
+    public void testScrollNoDuplicates() {
+        Long userId = 987654321L;
+        String key = FEED_KEY + userId;
+        stringRedisTemplate.delete(key);
+        List<Blog> blogs = blogMapper.selectList(null);
+        assertFalse(blogs.isEmpty());
+        //每3篇用同一个时间戳，分页边界正好落在相同时间戳中间
+        long base = System.currentTimeMillis();
+        for (int i = 0; i < blogs.size(); i++) {
+            stringRedisTemplate.opsForZSet().add(key, blogs.get(i).getId().toString(), base - i / 3);
+        }
+        //最新的一整页是已经删掉的博客，查不到也要接着往下翻
+        for (int i = 1; i <= SystemConstants.MAX_PAGE_SIZE; i++) {
+            stringRedisTemplate.opsForZSet().add(key, String.valueOf(-i), base + i);
+        }
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        try {
+            Set<Long> seen = new HashSet<>();
+            long max = System.currentTimeMillis() + SystemConstants.MAX_PAGE_SIZE;
+            int offset = 0;
+            while (true) {
+                Result result = blogService.queryBlogOfFollow(max, offset);
+                ScrollResult scroll = (ScrollResult) result.getData();
+                if (scroll.getList().isEmpty()) {
+                    break;
+                }
+                for (Object o : scroll.getList()) {
+                    assertTrue(seen.add(((Blog) o).getId()), "重复的博客:" + ((Blog) o).getId());
+                }
+                max = scroll.getMinTime();
+                offset = scroll.getOffset();
+            }
+            assertEquals(blogs.size(), seen.size());
+        } finally {
+            UserHolder.removeUser();
+            stringRedisTemplate.delete(key);
+        }
+    }
+}
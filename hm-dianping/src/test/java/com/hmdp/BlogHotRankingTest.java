@@ -0,0 +1,95 @@
+package com.hmdp;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.service.IBlogService;
+import com.hmdp.utils.BlogHotRanking;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_RANK_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 热门博客排行榜：从数据库重建、按页取id、点赞时分数跟着变，深分页和第一页耗时相同
+ */
+@SpringBootTest
+public class BlogHotRankingTest {
+
+    @Autowired
+    private BlogHotRanking blogHotRanking;
+
+    @Autowired
+    private IBlogService blogService;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void testRebuildAndPage() {
+        assertTrue(blogHotRanking.rebuild());
+        Long size = stringRedisTemplate.opsForZSet().zCard(BLOG_HOT_RANK_KEY);
+        assertEquals(blogMapper.selectCount(null).longValue(), size.longValue());
+
+        //每一页内、页与页之间分数都是递减的
+        Double last = null;
+        int pages = (int) ((size + 9) / 10);
+        for (int current = 1; current <= pages; current++) {
+            List<Long> blogIds = blogHotRanking.page(current, 10);
+            assertNotNull(blogIds);
+            for (Long blogId : blogIds) {
+                Double score = stringRedisTemplate.opsForZSet().score(BLOG_HOT_RANK_KEY, blogId.toString());
+                assertNotNull(score);
+                if (last != null) {
+                    assertTrue(score <= last);
+                }
+                last = score;
+            }
+        }
+        //超过最后一页返回空列表，不是null
+        assertTrue(blogHotRanking.page(pages + 1, 10).isEmpty());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            blogHotRanking.page(1, 10);
+        }
+        long first = (System.nanoTime() - start) / 100;
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            blogHotRanking.page(pages, 10);
+        }
+        long deep = (System.nanoTime() - start) / 100;
+        System.out.println("排行榜博客数:" + size + "，第1页:" + first / 1000 + "us，第" + pages + "页:" + deep / 1000 + "us");
+    }
+
+    @Test
+    public void testLikeUpdatesScore() {
+        assertTrue(blogHotRanking.rebuild());
+        Blog blog = blogMapper.selectList(null).get(0);
+        UserDTO user = new UserDTO();
+        user.setId(987654321L);
+        UserHolder.saveUser(user);
+        try {
+            Double before = stringRedisTemplate.opsForZSet().score(BLOG_HOT_RANK_KEY, blog.getId().toString());
+            blogService.likeBlog(blog.getId());
+            Double liked = stringRedisTemplate.opsForZSet().score(BLOG_HOT_RANK_KEY, blog.getId().toString());
+            blogService.likeBlog(blog.getId());
+            Double unliked = stringRedisTemplate.opsForZSet().score(BLOG_HOT_RANK_KEY, blog.getId().toString());
+            System.out.println("点赞前:" + before + "，点赞后:" + liked + "，取消后:" + unliked);
+            //这个用户之前没点过赞，点赞加1，取消减1
+            assertEquals(before + 1, liked);
+            assertEquals(before, unliked);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.hmdp;
+
+import com.hmdp.dto.BlogLikeDTO;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.service.IBlogService;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_RANK_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_DIRTY_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 点赞lua脚本：同一个用户并发连点，点赞数、点赞记录、排行榜分数始终一致
+ */
+@SpringBootTest
+public class BlogLikeTest {
+
+    private static final String BLOG_CACHE_LIKE_USER_NAME = "cache:blog:likeUser::blog_";
+    private static final String BLOG_CACHE_LIKE_NUMBER_NAME = "cache:blog:likeNumber::blog_";
+
+    @Autowired
+    private IBlogService blogService;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void testConcurrentToggle() throws InterruptedException {
+        Blog blog = blogMapper.selectList(null).get(0);
+        Long blogId = blog.getId();
+        Long userId = 987654322L;
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+
+        //第一次点赞，点赞数不在redis里时从数据库加载
+        UserHolder.saveUser(user);
+        BlogLikeDTO first;
+        try {
+            first = (BlogLikeDTO) blogService.likeBlog(blogId).getData();
+        } finally {
+            UserHolder.removeUser();
+        }
+        int base = first.getIsLike() ? first.getLiked() - 1 : first.getLiked();
+
+        //同一个用户并发点击，奇数次之后和第一次相反
+        int clicks = 101;
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        CountDownLatch latch = new CountDownLatch(clicks);
+        //线程池里的断言失败不会传到测试线程，失败次数计数后在外面断言
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < clicks; i++) {
+            pool.submit(() -> {
+                UserHolder.saveUser(user);
+                try {
+                    Result result = blogService.likeBlog(blogId);
+                    if (!result.getSuccess()) {
+                        failures.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertEquals(0, failures.get());
+
+        boolean liked = stringRedisTemplate.opsForZSet().score(BLOG_CACHE_LIKE_USER_NAME + blogId, userId.toString()) != null;
+        int count = Integer.parseInt(stringRedisTemplate.opsForValue().get(BLOG_CACHE_LIKE_NUMBER_NAME + blogId));
+        Double score = stringRedisTemplate.opsForZSet().score(BLOG_HOT_RANK_KEY, blogId.toString());
+        assertEquals(!first.getIsLike(), liked);
+        assertEquals(base + (liked ? 1 : 0), count);
+        assertEquals((double) count, score);
+        //在待同步或者同步中，也可能已经被写回任务写回数据库了
+        boolean dirty = stringRedisTemplate.opsForZSet().score(BLOG_LIKE_DIRTY_KEY, blogId.toString()) != null
+                || stringRedisTemplate.opsForZSet().score(BLOG_LIKE_DIRTY_KEY + ":flushing", blogId.toString()) != null;
+        assertTrue(dirty || blogMapper.selectById(blogId).getLiked() == count);
+
+        //还原
+        if (liked) {
+            UserHolder.saveUser(user);
+            try {
+                blogService.likeBlog(blogId);
+            } finally {
+                UserHolder.removeUser();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.hmdp;
+
+import com.hmdp.dto.BlogLikeDTO;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.service.IBlogService;
+import com.hmdp.utils.BlogLikeWriteBack;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_DIRTY_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 点赞数写回：点赞后博客进入待同步，一次同步用一条UPDATE写回所有变化的点赞数
+ * 需要当前节点拿到选主租约，有其他节点在跑时先停掉
+ */
+@SpringBootTest
+public class BlogLikeWriteBackTest {
+
+    @Autowired
+    private BlogLikeWriteBack blogLikeWriteBack;
+
+    @Autowired
+    private IBlogService blogService;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void testFlush() {
+        List<Blog> blogs = blogMapper.selectList(null);
+        List<Blog> liked = new ArrayList<>();
+        UserDTO user = new UserDTO();
+        user.setId(987654323L);
+        UserHolder.saveUser(user);
+        try {
+            for (Blog blog : blogs.subList(0, Math.min(blogs.size(), 5))) {
+                BlogLikeDTO like = (BlogLikeDTO) blogService.likeBlog(blog.getId()).getData();
+                Blog expected = new Blog();
+                expected.setId(blog.getId());
+                expected.setLiked(like.getLiked());
+                liked.add(expected);
+            }
+            //定时任务可能已经写回了一部分
+            blogLikeWriteBack.flush();
+            System.out.println("写回状态:" + blogLikeWriteBack.metrics());
+            assertEquals(true, blogLikeWriteBack.metrics().get("leader"));
+            for (Blog expected : liked) {
+                assertNull(stringRedisTemplate.opsForZSet().score(BLOG_LIKE_DIRTY_KEY, expected.getId().toString()));
+                assertEquals(expected.getLiked(), blogMapper.selectById(expected.getId()).getLiked());
+            }
+        } finally {
+            //还原点赞
+            for (Blog expected : liked) {
+                blogService.likeBlog(expected.getId());
+            }
+            UserHolder.removeUser();
+            blogLikeWriteBack.flush();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.RedisUtil;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 布隆过滤器：误判率、内存占用，以及随机id扫描时不会打到redis和数据库
+ */
+@SpringBootTest
+public class CacheBloomFilterTest {
+
+    private static final String CACHE_SHOP_KEY = "cache:shop::";
+
+    @Autowired
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void testFalsePositiveRate() {
+        int n = 100_000;
+        double fpp = 0.01;
+        IdBloomFilter filter = new IdBloomFilter(n, fpp);
+        for (long id = 1; id <= n; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= n; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+        int falsePositives = 0;
+        int probes = 1_000_000;
+        for (long id = n + 1; id <= n + probes; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        System.out.println("元素个数: " + n + ", 内存: " + filter.memoryBytes() / 1024 + "KB, 哈希次数: " + filter.getHashCount()
+                + ", 实际误判率: " + rate);
+        assertTrue(rate < fpp * 1.5);
+    }
+
+    @Test
+    public void testRandomIdScanDoesNotReachRedis() {
+        //库里不存在的id，扫描前先清掉可能残留的空值缓存
+        long base = 900_000_000L;
+        int scans = 1000;
+        for (long id = base; id < base + scans; id++) {
+            stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        }
+        long rejectedBefore = (Long) cacheBloomFilter.stats().get(CACHE_SHOP_KEY).get("rejected");
+        for (long id = base; id < base + scans; id++) {
+            assertNull(redisUtil.getValueTTL(CACHE_SHOP_KEY, id, Shop.class, shopMapper));
+        }
+        Map<String, Object> stats = cacheBloomFilter.stats().get(CACHE_SHOP_KEY);
+        long rejected = (Long) stats.get("rejected") - rejectedBefore;
+        int emptyKeys = 0;
+        for (long id = base; id < base + scans; id++) {
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(CACHE_SHOP_KEY + id))) {
+                emptyKeys++;
+            }
+        }
+        System.out.println("扫描id数: " + scans + ", 布隆过滤器拦截数: " + rejected + ", 写入redis的空值数: " + emptyKeys + ", 过滤器状态: " + stats);
+        //只有误判的id会走到redis和数据库
+        assertTrue(rejected >= scans * 0.95);
+        assertEquals(scans - rejected, emptyKeys);
+    }
+}
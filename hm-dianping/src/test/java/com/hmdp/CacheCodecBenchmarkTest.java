@@ -0,0 +1,149 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.hmdp.dto.BlogListToJsonDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JacksonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 缓存编码对比：原来的JSONUtil、jackson json、smile的编码/解码耗时和大小
+ * 只用到编码器，不需要启动spring和连接redis
+ * 用预热+多轮取最好成绩代替JMH，结果只用来比较几种编码的相对快慢
+ */
+public class CacheCodecBenchmarkTest {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final int OPS_PER_ROUND = 20_000;
+
+    private final CacheCodec json = JacksonCacheCodec.json();
+    private final CacheCodec smile = JacksonCacheCodec.smile();
+
+    @Test
+    public void testRoundTripKeepsTypesAndTime() {
+        RedisData<BlogListToJsonDTO> page = hotPage();
+        JavaType type = CacheCodec.redisDataType(BlogListToJsonDTO.class);
+        for (CacheCodec codec : new CacheCodec[]{json, smile}) {
+            RedisData<BlogListToJsonDTO> decoded = codec.decode(codec.encode(page), type);
+            //泛型里的Blog直接解析成对象，不是JSONObject
+            Blog blog = decoded.getData().getBlogs().get(0);
+            assertEquals(page.getData().getBlogs().get(0).getTitle(), blog.getTitle());
+            //时间按毫秒存
+            assertEquals(page.getExpireTime().truncatedTo(ChronoUnit.MILLIS), decoded.getExpireTime());
+        }
+        //原来JSONUtil写入的缓存也能解析
+        String legacy = JSONUtil.toJsonStr(page);
+        RedisData<BlogListToJsonDTO> decoded = json.decode(legacy.getBytes(StandardCharsets.UTF_8), type);
+        assertEquals(page.getExpireTime().truncatedTo(ChronoUnit.MILLIS), decoded.getExpireTime());
+        assertEquals(10, decoded.getData().getBlogs().size());
+    }
+
+    @Test
+    public void testCompareCodecs() {
+        System.out.println(String.format("%-10s %-8s %10s %12s %12s", "对象", "编码", "大小(B)", "编码(ns/op)", "解码(ns/op)"));
+        compare("Shop", shop(), TypeFactory.defaultInstance().constructType(Shop.class), Shop.class);
+        compare("Blog", blog(1), TypeFactory.defaultInstance().constructType(Blog.class), Blog.class);
+        compare("HotPage", hotPage(), CacheCodec.redisDataType(BlogListToJsonDTO.class), RedisData.class);
+    }
+
+    private void compare(String name, Object value, JavaType type, Class<?> hutoolType) {
+        String hutoolJson = JSONUtil.toJsonStr(value);
+        print(name, "hutool", hutoolJson.getBytes(StandardCharsets.UTF_8).length,
+                measure(() -> JSONUtil.toJsonStr(value)),
+                measure(() -> JSONUtil.toBean(hutoolJson, hutoolType)));
+        for (CacheCodec codec : new CacheCodec[]{json, smile}) {
+            byte[] bytes = codec.encode(value);
+            print(name, codec.name(), bytes.length,
+                    measure(() -> codec.encode(value)),
+                    measure(() -> codec.decode(bytes, type)));
+        }
+    }
+
+    private void print(String name, String codec, int size, long encodeNanos, long decodeNanos) {
+        System.out.println(String.format("%-10s %-8s %10d %12d %12d", name, codec, size, encodeNanos, decodeNanos));
+    }
+
+    //每轮的平均耗时取最小值，减少GC和JIT的干扰
+    private long measure(Supplier<?> op) {
+        Object sink = null;
+        for (int i = 0; i < WARMUP_ROUNDS * OPS_PER_ROUND; i++) {
+            sink = op.get();
+        }
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < OPS_PER_ROUND; i++) {
+                sink = op.get();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / OPS_PER_ROUND);
+        }
+        assertNotNull(sink);
+        return best;
+    }
+
+    private Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.now());
+        shop.setUpdateTime(LocalDateTime.now());
+        return shop;
+    }
+
+    private Blog blog(long id) {
+        Blog blog = new Blog();
+        blog.setId(id);
+        blog.setShopId(4L);
+        blog.setUserId(2L);
+        blog.setName("可可今天不吃肉");
+        blog.setIcon("/imgs/icons/kkjtbcr.jpg");
+        blog.setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩");
+        blog.setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg");
+        blog.setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>男朋友给不了的浪漫要学会自己给🍒<br/>"
+                + "无法重来的一生·尽量快乐.<br/><br/>🏰「小筑里·神秘浪漫花园餐厅」🏰<br/><br/>💯这是一家最最最美花园的西餐厅·到处都是花餐桌上是花前台是花");
+        blog.setLiked(1234);
+        blog.setComments(104);
+        blog.setCreateTime(LocalDateTime.now());
+        blog.setUpdateTime(LocalDateTime.now());
+        return blog;
+    }
+
+    private RedisData<BlogListToJsonDTO> hotPage() {
+        List<Blog> blogs = new ArrayList<>();
+        for (long i = 1; i <= 10; i++) {
+            blogs.add(blog(i));
+        }
+        BlogListToJsonDTO dto = new BlogListToJsonDTO();
+        dto.setBlogs(blogs);
+        RedisData<BlogListToJsonDTO> redisData = new RedisData<>();
+        redisData.setData(dto);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(10));
+        return redisData;
+    }
+}
@@ -0,0 +1,88 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.RedisUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 缓存指标：按前缀统计redis命中/未命中/空值命中、数据库加载耗时
+ * 用一个没有配置本地缓存和布隆过滤器的前缀，每次读都会走到redis
+ */
+@SpringBootTest
+public class CacheMetricsTest {
+
+    private static final String METRICS_TEST_KEY = "cache:metricsTest::";
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    @Autowired
+    private CacheMetrics cacheMetrics;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Test
+    public void testHitMissAndLoadMetrics() {
+        long shopId = 1L;
+        long missingId = -1L;
+        redisUtil.evict(METRICS_TEST_KEY, shopId);
+        redisUtil.evict(METRICS_TEST_KEY, missingId);
+        double missBefore = gets("miss");
+        double hitBefore = gets("hit");
+        double nullHitBefore = gets("null_hit");
+        long loadsBefore = loads();
+
+        int rounds = 100;
+        for (int i = 0; i < rounds; i++) {
+            assertNotNull(redisUtil.getValueTTL(METRICS_TEST_KEY, shopId, Shop.class, shopMapper));
+            assertNull(redisUtil.getValueTTL(METRICS_TEST_KEY, missingId, Shop.class, shopMapper));
+        }
+
+        //两个key各未命中一次、查一次数据库，之后都是命中
+        assertEquals(2, gets("miss") - missBefore);
+        assertEquals(rounds - 1, gets("hit") - hitBefore);
+        assertEquals(rounds - 1, gets("null_hit") - nullHitBefore);
+        assertEquals(2, loads() - loadsBefore);
+
+        Map<String, Object> snapshot = cacheMetrics.snapshot().get(METRICS_TEST_KEY);
+        System.out.println(METRICS_TEST_KEY + " metrics " + snapshot);
+        assertNotNull(snapshot.get("load.success"));
+
+        redisUtil.evict(METRICS_TEST_KEY, shopId);
+        redisUtil.evict(METRICS_TEST_KEY, missingId);
+    }
+
+    @Test
+    public void testPrefixOf() {
+        assertEquals("cache:shop::", CacheMetrics.prefixOf("cache:shop::1"));
+        assertEquals("cache:blog:page::", CacheMetrics.prefixOf("cache:blog:page::3"));
+        assertEquals("other", CacheMetrics.prefixOf("blog:liked:1"));
+    }
+
+    //用find不用counter/timer，不能抢在CacheMetrics之前注册一个没有直方图配置的指标
+    private double gets(String result) {
+        Counter counter = meterRegistry.find("hmdp.cache.gets")
+                .tags("prefix", METRICS_TEST_KEY, "layer", "redis", "result", result).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    private long loads() {
+        Timer timer = meterRegistry.find("hmdp.cache.load").tags("prefix", METRICS_TEST_KEY, "result", "success").timer();
+        return timer == null ? 0 : timer.count();
+    }
+}
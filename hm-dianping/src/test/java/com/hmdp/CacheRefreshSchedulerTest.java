@@ -0,0 +1,71 @@
+package com.hmdp;
+
+import com.hmdp.utils.CacheRefreshScheduler;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 缓存重建调度：同一个key只执行一次、XFetch提前刷新的概率随临近过期而增大
+ */
+@SpringBootTest
+public class CacheRefreshSchedulerTest {
+
+    @Autowired
+    private CacheRefreshScheduler cacheRefreshScheduler;
+
+    @Test
+    public void testSameKeyRefreshedOnce() throws InterruptedException {
+        String key = "test:refresh::1";
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            boolean submitted = cacheRefreshScheduler.submit("test:refresh::", key, LocalDateTime.now().minusSeconds(1), () -> {
+                runs.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            });
+            if (submitted) {
+                accepted++;
+            }
+        }
+        release.countDown();
+        Thread.sleep(200);
+        System.out.println("提交100次，接受: " + accepted + "，执行: " + runs.get() + "，统计: " + cacheRefreshScheduler.metrics());
+        assertEquals(1, accepted);
+        assertEquals(1, runs.get());
+
+        //上一个任务结束后可以再次提交
+        assertTrue(cacheRefreshScheduler.submit("test:refresh::", key, LocalDateTime.now(), () -> true));
+    }
+
+    @Test
+    public void testEarlyRefreshProbability() {
+        int samples = 10_000;
+        int far = 0;
+        int near = 0;
+        for (int i = 0; i < samples; i++) {
+            if (cacheRefreshScheduler.shouldRefreshEarly("test:xfetch::", LocalDateTime.now().plusMinutes(5))) {
+                far++;
+            }
+            if (cacheRefreshScheduler.shouldRefreshEarly("test:xfetch::", LocalDateTime.now().plusNanos(20_000_000))) {
+                near++;
+            }
+        }
+        System.out.println("离过期5分钟提前刷新次数: " + far + "，离过期20ms提前刷新次数: " + near + "，采样: " + samples);
+        assertEquals(0, far);
+        assertTrue(near > samples / 10);
+    }
+}
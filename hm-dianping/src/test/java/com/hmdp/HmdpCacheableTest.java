@@ -0,0 +1,128 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.RedisUtil;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @HmdpCacheable三种模式：互斥锁TTL（店铺）、逻辑过期（博客详情）、读穿透（店铺类型），以及批量key（博客批量查询）
+ */
+@SpringBootTest
+public class HmdpCacheableTest {
+
+    private static final String CACHE_SHOP_KEY = "cache:shop::";
+    private static final String BLOG_CACHE_NAME = "cache:blog::";
+    private static final String BLOG_ITEM_CACHE_NAME = "cache:blog:item::";
+
+    @Autowired
+    private IShopService shopService;
+
+    @Autowired
+    private IBlogService blogService;
+
+    @Autowired
+    private IShopTypeService shopTypeService;
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void testMutexWithJitter() throws InterruptedException {
+        long shopId = 1L;
+        redisUtil.evict(CACHE_SHOP_KEY, shopId);
+
+        int threadCount = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threadCount);
+        Map<Long, Shop> results = new ConcurrentHashMap<>();
+        for (int i = 0; i < threadCount; i++) {
+            long index = i;
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    Shop shop = shopService.getShopById(shopId);
+                    if (shop != null) results.put(index, shop);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertEquals(threadCount, results.size());
+
+        //30分钟，±10%浮动
+        Long ttl = stringRedisTemplate.getExpire(CACHE_SHOP_KEY + shopId, TimeUnit.SECONDS);
+        System.out.println("店铺缓存TTL(秒): " + ttl);
+        assertTrue(ttl != null && ttl >= 27 * 60 - 5 && ttl <= 33 * 60);
+    }
+
+    @Test
+    public void testLogicalExpire() {
+        long blogId = 1L;
+        redisUtil.evict(BLOG_CACHE_NAME, blogId);
+        Blog blog = blogService.getBlogById(blogId);
+        assertNotNull(blog);
+        //缓存的是博客本身，作者信息在读的时候从用户摘要填，不跟着博客缓存
+        assertNull(blog.getName());
+        Result result = blogService.queryBlogById(blogId);
+        assertTrue(result.getSuccess());
+        assertNotNull(((Blog) result.getData()).getName());
+        //填作者信息的是复制出来的对象，缓存里的对象不变
+        assertNull(blogService.getBlogById(blogId).getName());
+        //逻辑过期的缓存不设TTL
+        assertEquals(-1L, stringRedisTemplate.getExpire(BLOG_CACHE_NAME + blogId));
+        assertNull(blogService.getBlogById(-1L));
+    }
+
+    @Test
+    public void testReadThrough() {
+        stringRedisTemplate.delete("cache:shop:type::all");
+        List<ShopType> types = shopTypeService.queryTypeList();
+        assertFalse(types.isEmpty());
+        assertTrue(Boolean.TRUE.equals(stringRedisTemplate.hasKey("cache:shop:type::all")));
+        assertEquals(types.size(), shopTypeService.queryTypeList().size());
+    }
+
+    @Test
+    public void testBatchKeys() {
+        List<Long> blogIds = Arrays.asList(1L, 2L, -1L);
+        for (Long blogId : blogIds) {
+            redisUtil.evict(BLOG_ITEM_CACHE_NAME, blogId);
+        }
+        Map<Long, Blog> blogs = blogService.getBlogsByIds(blogIds);
+        System.out.println("批量查询结果: " + blogs.keySet());
+        assertFalse(blogs.containsKey(-1L));
+        //不存在的id缓存了空值
+        assertEquals("", stringRedisTemplate.opsForValue().get(BLOG_ITEM_CACHE_NAME + (-1L)));
+        //第二次全部命中缓存
+        assertEquals(blogs.keySet(), blogService.getBlogsByIds(blogIds).keySet());
+    }
+}
@@ -0,0 +1,73 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.RedisUtil;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 热点key探测：高频读的key自动晋升、值缓存在本节点，删除缓存后失效，冷下来后降级
+ * 用一个没有配置本地缓存的前缀，只有晋升之后才会跳过redis
+ */
+@SpringBootTest
+public class HotKeyDetectorTest {
+
+    private static final String HOT_TEST_KEY = "cache:hotTest::";
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Test
+    public void testPromoteAndDemote() {
+        long hotId = 1L;
+        long coldId = 2L;
+        String hotKey = HOT_TEST_KEY + hotId;
+        redisUtil.evict(HOT_TEST_KEY, hotId);
+        redisUtil.evict(HOT_TEST_KEY, coldId);
+
+        long start = System.nanoTime();
+        int rounds = 50_000;
+        for (int i = 0; i < rounds; i++) {
+            redisUtil.getValueTTL(HOT_TEST_KEY, hotId, Shop.class, shopMapper);
+            if (i % 1000 == 0) {
+                redisUtil.getValueTTL(HOT_TEST_KEY, coldId, Shop.class, shopMapper);
+            }
+        }
+        long costMs = (System.nanoTime() - start) / 1_000_000;
+        System.out.println(rounds + "次读取耗时(ms): " + costMs + ", 热点: " + hotKeyDetector.stats());
+
+        assertTrue(isHot(hotKey));
+        assertFalse(isHot(HOT_TEST_KEY + coldId));
+        assertNotNull(hotKeyDetector.get(hotKey));
+
+        //删除缓存时热点的值一起失效
+        redisUtil.evict(HOT_TEST_KEY, hotId);
+        assertNull(hotKeyDetector.get(hotKey));
+
+        //没有访问之后几个窗口就降级
+        for (int i = 0; i < 20 && isHot(hotKey); i++) {
+            hotKeyDetector.decay();
+        }
+        assertFalse(isHot(hotKey));
+        redisUtil.evict(HOT_TEST_KEY, coldId);
+    }
+
+    private boolean isHot(String key) {
+        List<Map<String, Object>> hotKeys = (List<Map<String, Object>>) hotKeyDetector.stats().get("hotKeys");
+        return hotKeys.stream().anyMatch(hotKey -> key.equals(hotKey.get("key")));
+    }
+}
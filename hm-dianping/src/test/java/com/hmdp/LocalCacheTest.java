@@ -0,0 +1,79 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.LocalCacheManager;
+import com.hmdp.utils.RedisUtil;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RedisUtil一级缓存：命中本地缓存、删除缓存后本地缓存同步失效、其他节点的失效广播
+ */
+@SpringBootTest
+public class LocalCacheTest {
+
+    private static final String CACHE_SHOP_KEY = "cache:shop::";
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    @Autowired
+    private LocalCacheManager localCacheManager;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void testLocalHitAndEvict() {
+        long shopId = 1L;
+        redisUtil.evict(CACHE_SHOP_KEY, shopId);
+
+        Shop first = redisUtil.getValueTTL(CACHE_SHOP_KEY, shopId, Shop.class, shopMapper);
+        assertNotNull(first);
+        //第二次直接从本地缓存拿到同一个对象
+        Shop second = redisUtil.getValueTTL(CACHE_SHOP_KEY, shopId, Shop.class, shopMapper);
+        assertSame(first, second);
+
+        long start = System.nanoTime();
+        int rounds = 100_000;
+        for (int i = 0; i < rounds; i++) {
+            redisUtil.getValueTTL(CACHE_SHOP_KEY, shopId, Shop.class, shopMapper);
+        }
+        System.out.println("Local cache avg latency: " + (System.nanoTime() - start) / rounds + " ns");
+
+        redisUtil.evict(CACHE_SHOP_KEY, shopId);
+        assertNull(localCacheManager.get(CACHE_SHOP_KEY, CACHE_SHOP_KEY + shopId));
+        Shop reloaded = redisUtil.getValueTTL(CACHE_SHOP_KEY, shopId, Shop.class, shopMapper);
+        assertNotSame(first, reloaded);
+
+        Map<String, Object> stats = localCacheManager.stats().get(CACHE_SHOP_KEY);
+        System.out.println("cache:shop:: stats " + stats);
+        assertTrue((Long) stats.get("localHits") >= rounds);
+    }
+
+    @Test
+    public void testEvictBroadcastFromOtherNode() throws Exception {
+        long shopId = 2L;
+        redisUtil.getValueTTL(CACHE_SHOP_KEY, shopId, Shop.class, shopMapper);
+        assertNotNull(localCacheManager.get(CACHE_SHOP_KEY, CACHE_SHOP_KEY + shopId));
+
+        //模拟另一个节点更新了店铺后发出的失效广播
+        long start = System.nanoTime();
+        stringRedisTemplate.convertAndSend("channel:cache:evict", "otherNode|" + CACHE_SHOP_KEY + shopId);
+        for (int i = 0; i < 100 && localCacheManager.get(CACHE_SHOP_KEY, CACHE_SHOP_KEY + shopId) != null; i++) {
+            Thread.sleep(10);
+        }
+        System.out.println("Evict broadcast applied after " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        assertNull(localCacheManager.get(CACHE_SHOP_KEY, CACHE_SHOP_KEY + shopId));
+    }
+}
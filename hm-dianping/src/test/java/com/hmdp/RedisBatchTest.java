@@ -0,0 +1,112 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.RedisUtil;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RedisUtil批量操作：MGET/pipeline和逐个GET的耗时对比，multiGetOrLoad一次批量查库回填
+ */
+@SpringBootTest
+public class RedisBatchTest {
+
+    private static final String TEST_COUNT_KEY = "test:batch:count::";
+    private static final String TEST_SHOP_KEY = "test:batch:shop::";
+
+    @Autowired
+    private RedisUtil redisUtil;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Test
+    public void testMultiGetVersusSingleGet() {
+        int size = 10;
+        Map<String, String> values = new HashMap<>();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            keys.add(TEST_COUNT_KEY + i);
+            values.put(TEST_COUNT_KEY + i, String.valueOf(i));
+        }
+        redisUtil.multiSet(values, 1, TimeUnit.MINUTES, false);
+        //已存在的key不覆盖
+        Map<String, String> overwrite = new HashMap<>();
+        for (String key : keys) {
+            overwrite.put(key, "-1");
+        }
+        redisUtil.multiSet(overwrite, 1, TimeUnit.MINUTES, true);
+
+        int rounds = 200;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (String key : keys) {
+                stringRedisTemplate.opsForValue().get(key);
+            }
+        }
+        long single = (System.nanoTime() - start) / rounds;
+        start = System.nanoTime();
+        List<String> got = null;
+        for (int r = 0; r < rounds; r++) {
+            got = redisUtil.multiGetString(keys);
+        }
+        long batch = (System.nanoTime() - start) / rounds;
+        System.out.println("10个key逐个GET: " + single / 1000 + " us，MGET: " + batch / 1000 + " us");
+        for (int i = 0; i < size; i++) {
+            assertEquals(String.valueOf(i), got.get(i));
+        }
+
+        stringRedisTemplate.opsForZSet().add(TEST_COUNT_KEY + "zset:1", "7777", 1.0);
+        List<Double> scores = redisUtil.multiZScore(Arrays.asList(TEST_COUNT_KEY + "zset:1", TEST_COUNT_KEY + "zset:2"), "7777");
+        assertEquals(1.0, scores.get(0));
+        assertNull(scores.get(1));
+    }
+
+    @Test
+    public void testMultiGetOrLoadBatchesMisses() {
+        AtomicInteger batchLoads = new AtomicInteger();
+        AtomicInteger singleLoads = new AtomicInteger();
+        BaseMapper<Shop> countingMapper = (BaseMapper<Shop>) Proxy.newProxyInstance(ShopMapper.class.getClassLoader(),
+                new Class<?>[]{ShopMapper.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("selectBatchIds")) {
+                        batchLoads.incrementAndGet();
+                    } else if (method.getName().equals("selectById")) {
+                        singleLoads.incrementAndGet();
+                    }
+                    return method.invoke(shopMapper, args);
+                });
+        List<Long> ids = Arrays.asList(1L, 2L, 3L, 4L, 5L, 900_000_001L);
+        for (Long id : ids) {
+            stringRedisTemplate.delete(TEST_SHOP_KEY + id);
+        }
+
+        Map<Long, Shop> first = redisUtil.multiGetOrLoad(TEST_SHOP_KEY, ids, Shop.class, countingMapper, Shop::getId, 1, TimeUnit.MINUTES);
+        Map<Long, Shop> second = redisUtil.multiGetOrLoad(TEST_SHOP_KEY, ids, Shop.class, countingMapper, Shop::getId, 1, TimeUnit.MINUTES);
+        System.out.println("第一次: " + first.keySet() + "，第二次: " + second.keySet() + "，批量查库次数: " + batchLoads.get() + "，单个查库次数: " + singleLoads.get());
+
+        assertEquals(1, batchLoads.get());
+        assertEquals(0, singleLoads.get());
+        assertFalse(first.containsKey(900_000_001L));
+        assertEquals(first.keySet(), second.keySet());
+        //不存在的id缓存了空值
+        assertEquals("", stringRedisTemplate.opsForValue().get(TEST_SHOP_KEY + 900_000_001L));
+    }
+}
@@ -0,0 +1,293 @@
+package com.hmdp;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.hmdp.config.LocalCacheProperties;
+import com.hmdp.config.RedisDegradeProperties;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheLoadNotifier;
+import com.hmdp.utils.CacheLoadOptions;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheRefreshScheduler;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.LocalCacheManager;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisUnavailableException;
+import com.hmdp.utils.RedisUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * redis熔断器的故障注入测试，不需要redis：用一个会卡住再超时的假redis连接模拟redis挂掉
+ * 熔断之后RedisUtil不再等超时，有本地旧数据的返回旧数据，没有的按许可限流查数据库，许可用完直接拒绝，p99不随redis超时时间增长
+ */
+public class RedisCircuitBreakerTest {
+
+    //模拟的命令超时时间，对应spring.redis.timeout
+    private static final long REDIS_TIMEOUT_MILLIS = 100;
+
+    //模拟的数据库查询耗时
+    private static final long DB_MILLIS = 10;
+
+    private static final String CACHE_PREFIX = "cache:shop::";
+
+    //redis正常时读过、本地有旧数据的id个数
+    private static final int HOT_KEYS = 100;
+
+    //冷数据的id从这里开始，本地没有旧数据
+    private static final int COLD_KEY_BASE = 1_000_000;
+
+    private RedisDegradeProperties properties() {
+        RedisDegradeProperties properties = new RedisDegradeProperties();
+        properties.setWindowSize(50);
+        properties.setMinimumCalls(10);
+        properties.setFailureRateThreshold(0.5);
+        properties.setSlowCallMs(50);
+        properties.setOpenMs(500);
+        properties.setHalfOpenCalls(3);
+        properties.setDbConcurrency(2);
+        properties.setDbPermitsPerSecond(5);
+        return properties;
+    }
+
+    @Test
+    public void testP99BoundedWhenRedisDown() throws InterruptedException {
+        RedisDegradeProperties properties = properties();
+        //测试期间一直保持熔断，不让半开的试探请求混进统计
+        properties.setOpenMs(60_000);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        RedisCircuitBreaker breaker = new RedisCircuitBreaker(properties, meterRegistry);
+
+        //假redis：正常时GET返回值，挂掉时卡住REDIS_TIMEOUT_MILLIS再抛超时，和lettuce的命令超时一样
+        AtomicBoolean redisDown = new AtomicBoolean(false);
+        AtomicInteger redisCalls = new AtomicInteger();
+        Answer<byte[]> get = invocation -> {
+            redisCalls.incrementAndGet();
+            if (redisDown.get()) {
+                sleep(REDIS_TIMEOUT_MILLIS);
+                throw new QueryTimeoutException("模拟redis超时");
+            }
+            String key = new String((byte[]) invocation.getArgument(0), StandardCharsets.UTF_8);
+            return ("redis:" + key.substring(CACHE_PREFIX.length())).getBytes(StandardCharsets.UTF_8);
+        };
+        //StringRedisTemplate会把连接包装成DefaultStringRedisConnection，GET走的是连接上的get
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.get(any(byte[].class))).thenAnswer(get);
+        RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        RedisUtil redisUtil = redisUtil(new StringRedisTemplate(connectionFactory), breaker, properties, meterRegistry);
+
+        //数据库：每次查询耗时DB_MILLIS，统计实际查了几次
+        AtomicInteger dbLoads = new AtomicInteger();
+        CacheLoadOptions options = new CacheLoadOptions();
+        options.setTtlMillis(60_000);
+        JavaType type = TypeFactory.defaultInstance().constructType(String.class);
+
+        //redis正常时读一遍热数据，本地留下旧数据
+        for (int id = 0; id < HOT_KEYS; id++) {
+            final int key = id;
+            assertEquals("redis:" + id, redisUtil.getValueTTL(CACHE_PREFIX, id, type, () -> "db:" + key, options));
+        }
+        redisDown.set(true);
+        int warmUpCalls = redisCalls.get();
+
+        //90%的请求读热数据，10%读本地没有旧数据的冷数据
+        //熔断前窗口里还有预热时的成功调用，要失败到window-size * failure-rate-threshold次左右才熔断
+        int threads = 16;
+        int requests = 10000;
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>(requests));
+        AtomicInteger staleServed = new AtomicInteger();
+        AtomicInteger dbServed = new AtomicInteger();
+        AtomicInteger shed = new AtomicInteger();
+        AtomicInteger wrong = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(requests);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            final int id = i % 10 == 0 ? COLD_KEY_BASE + i : i % HOT_KEYS;
+            pool.submit(() -> {
+                boolean degraded = breaker.isOpen();
+                long start = System.nanoTime();
+                try {
+                    String value = redisUtil.getValueTTL(CACHE_PREFIX, id, type, () -> {
+                        dbLoads.incrementAndGet();
+                        sleep(DB_MILLIS);
+                        return "db:" + id;
+                    }, options);
+                    if (("redis:" + id).equals(value)) {
+                        staleServed.incrementAndGet();
+                    } else if (("db:" + id).equals(value)) {
+                        dbServed.incrementAndGet();
+                    } else {
+                        wrong.incrementAndGet();
+                    }
+                } catch (RedisUnavailableException e) {
+                    shed.incrementAndGet();
+                } finally {
+                    //只统计熔断之后开始的请求，熔断前的请求等了超时是预期的，单独用访问redis的次数限制
+                    if (degraded) {
+                        latencies.add(System.nanoTime() - start);
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        pool.shutdown();
+        long seconds = (System.currentTimeMillis() - begin) / 1000 + 1;
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        long p50 = TimeUnit.NANOSECONDS.toMillis(sorted.get((int) (sorted.size() * 0.5)));
+        long p99 = TimeUnit.NANOSECONDS.toMillis(sorted.get((int) (sorted.size() * 0.99)));
+        long max = TimeUnit.NANOSECONDS.toMillis(sorted.get(sorted.size() - 1));
+        double staleHits = meterRegistry.get("hmdp.cache.gets").tag("layer", "stale").tag("result", "hit").counter().count();
+        System.out.println("请求数:" + requests + "，熔断后的请求数:" + sorted.size() + "，实际访问redis次数:" + (redisCalls.get() - warmUpCalls)
+                + "，返回旧数据:" + staleServed.get() + "，查数据库:" + dbServed.get() + "，拒绝:" + shed.get()
+                + "，p50:" + p50 + "ms，p99:" + p99 + "ms，max:" + max + "ms");
+        System.out.println("熔断器状态:" + breaker.stats());
+
+        assertTrue(breaker.isOpen());
+        assertEquals(0, wrong.get());
+        //热数据全部返回旧数据，包括熔断前等了超时的那几个请求
+        assertEquals(requests - requests / 10, staleServed.get());
+        assertEquals(staleServed.get(), (int) staleHits);
+        //冷数据按许可查数据库，许可用完的直接拒绝，数据库查询次数不超过每秒许可数
+        assertEquals(requests / 10, dbServed.get() + shed.get());
+        assertTrue(shed.get() > 0);
+        assertEquals(dbServed.get(), dbLoads.get());
+        //许可按自然秒计数，测试时间跨了几个秒边界就多几秒的许可
+        assertTrue(dbLoads.get() <= properties.getDbPermitsPerSecond() * (seconds + 1), "查数据库次数:" + dbLoads.get());
+        //只有熔断前的少量请求等了超时
+        assertTrue(redisCalls.get() - warmUpCalls < requests / 50);
+        assertTrue(sorted.size() > requests * 0.9);
+        assertTrue(p99 < REDIS_TIMEOUT_MILLIS / 2, "熔断后p99超过了redis超时时间的一半:" + p99 + "ms");
+    }
+
+    /**
+     * 不启动spring，按字段组装RedisUtil：真实的熔断器、本地缓存（含旧数据）、指标，redis用传进来的假连接
+     */
+    private RedisUtil redisUtil(StringRedisTemplate stringRedisTemplate, RedisCircuitBreaker breaker,
+                                RedisDegradeProperties properties, SimpleMeterRegistry meterRegistry) {
+        HotKeyDetector hotKeyDetector = new HotKeyDetector();
+        ReflectionTestUtils.setField(hotKeyDetector, "enabled", false);
+        ReflectionTestUtils.setField(hotKeyDetector, "sketchWidth", 1024);
+        ReflectionTestUtils.setField(hotKeyDetector, "topK", 10);
+        ReflectionTestUtils.setField(hotKeyDetector, "ttlMs", 2000L);
+        hotKeyDetector.init();
+
+        LocalCacheProperties localCacheProperties = new LocalCacheProperties();
+        localCacheProperties.setEnabled(false);
+        LocalCacheManager localCacheManager = new LocalCacheManager();
+        ReflectionTestUtils.setField(localCacheManager, "localCacheProperties", localCacheProperties);
+        ReflectionTestUtils.setField(localCacheManager, "redisDegradeProperties", properties);
+        ReflectionTestUtils.setField(localCacheManager, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(localCacheManager, "redisMessageListenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(localCacheManager, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(localCacheManager, "hotKeyDetector", hotKeyDetector);
+        localCacheManager.init();
+
+        CacheMetrics cacheMetrics = new CacheMetrics();
+        ReflectionTestUtils.setField(cacheMetrics, "meterRegistry", meterRegistry);
+
+        CacheBloomFilter cacheBloomFilter = mock(CacheBloomFilter.class);
+        when(cacheBloomFilter.mightContain(anyString(), any())).thenReturn(true);
+
+        RedisUtil redisUtil = new RedisUtil();
+        ReflectionTestUtils.setField(redisUtil, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(redisUtil, "localCacheManager", localCacheManager);
+        ReflectionTestUtils.setField(redisUtil, "cacheLoadNotifier", mock(CacheLoadNotifier.class));
+        ReflectionTestUtils.setField(redisUtil, "cacheBloomFilter", cacheBloomFilter);
+        ReflectionTestUtils.setField(redisUtil, "cacheCodec", mock(CacheCodec.class));
+        ReflectionTestUtils.setField(redisUtil, "cacheMetrics", cacheMetrics);
+        ReflectionTestUtils.setField(redisUtil, "hotKeyDetector", hotKeyDetector);
+        ReflectionTestUtils.setField(redisUtil, "redisCircuitBreaker", breaker);
+        ReflectionTestUtils.setField(redisUtil, "cacheRefreshScheduler", mock(CacheRefreshScheduler.class));
+        ReflectionTestUtils.setField(redisUtil, "loadWaitMs", 3000L);
+        return redisUtil;
+    }
+
+    @Test
+    public void testHalfOpenRecover() {
+        RedisDegradeProperties properties = properties();
+        RedisCircuitBreaker breaker = new RedisCircuitBreaker(properties, new SimpleMeterRegistry());
+        for (int i = 0; i < properties.getMinimumCalls(); i++) {
+            assertThrows(RedisUnavailableException.class, () -> breaker.call(() -> {
+                throw new QueryTimeoutException("模拟redis超时");
+            }));
+        }
+        assertTrue(breaker.isOpen());
+        assertThrows(RedisUnavailableException.class, () -> breaker.call(() -> "ok"));
+
+        //熔断时间到了，试探请求全部成功后恢复
+        sleep(properties.getOpenMs() + 50);
+        assertFalse(breaker.isOpen());
+        for (int i = 0; i < properties.getHalfOpenCalls(); i++) {
+            assertEquals("ok", breaker.call(() -> "ok"));
+        }
+        assertEquals("CLOSED", breaker.stats().get("state"));
+
+        //业务异常说明redis是通的，不算失败，原样抛出
+        for (int i = 0; i < properties.getMinimumCalls(); i++) {
+            assertThrows(IllegalStateException.class, () -> breaker.call(() -> {
+                throw new IllegalStateException("lua脚本返回错误");
+            }));
+        }
+        assertEquals("CLOSED", breaker.stats().get("state"));
+    }
+
+    @Test
+    public void testDbPermitBounded() {
+        RedisDegradeProperties properties = properties();
+        RedisCircuitBreaker breaker = new RedisCircuitBreaker(properties, new SimpleMeterRegistry());
+        //并发数限制
+        assertTrue(breaker.tryAcquireDbPermit());
+        assertTrue(breaker.tryAcquireDbPermit());
+        assertFalse(breaker.tryAcquireDbPermit());
+        breaker.releaseDbPermit();
+        breaker.releaseDbPermit();
+        //每秒次数限制，同一秒内最多db-permits-per-second次
+        int granted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (breaker.tryAcquireDbPermit()) {
+                granted++;
+                breaker.releaseDbPermit();
+            }
+        }
+        System.out.println("同一秒内拿到的查数据库许可:" + granted + "，" + breaker.stats());
+        assertTrue(granted <= properties.getDbPermitsPerSecond());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.hmdp;
 
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.RedisUtil;
 import cn.hutool.json.JSONUtil;
@@ -9,11 +12,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
+import java.lang.reflect.Proxy;
 import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @SpringBootTest
 public class RedisUtilConcurrencyTest {
@@ -24,6 +33,9 @@ public class RedisUtilConcurrencyTest {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private ShopMapper shopMapper;
+
     private static final String TEST_KEY_PREFIX = "test:shop:";
     private static final long TEST_SHOP_ID = 1L;
 
@@ -176,4 +188,90 @@ public class RedisUtilConcurrencyTest {
             System.out.println("✗ 高并发下 getValueTime 方法存在问题");
         }
     }
+
+    @Test
+    public void testNextIdSegmentConcurrency() throws InterruptedException {
+        int threadCount = 50;
+        int idsPerThread = 2000;
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicInteger notIncreasing = new AtomicInteger(0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < threadCount; i++) {
+            executorService.submit(() -> {
+                try {
+                    long last = 0;
+                    for (int j = 0; j < idsPerThread; j++) {
+                        long id = redisUtil.nextId("test");
+                        ids.add(id);
+                        //同一个线程拿到的id必须递增
+                        if (id <= last) {
+                            notIncreasing.incrementAndGet();
+                        }
+                        last = id;
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long cost = System.nanoTime() - start;
+        executorService.shutdown();
+
+        int total = threadCount * idsPerThread;
+        System.out.println("生成id数: " + total + ", 不重复id数: " + ids.size() + ", 非递增次数: " + notIncreasing.get());
+        System.out.println("耗时: " + cost / 1_000_000 + " ms, 吞吐: " + String.format("%.1f", total * 1e9 / cost) + " ids/s");
+        assertEquals(total, ids.size());
+        assertEquals(0, notIncreasing.get());
+    }
+
+    @Test
+    public void testGetValueTTLSingleFlight() throws InterruptedException {
+        int threadCount = 200;
+        //包一层代理统计selectById的次数
+        AtomicInteger dbLoads = new AtomicInteger(0);
+        BaseMapper<Shop> countingMapper = (BaseMapper<Shop>) Proxy.newProxyInstance(ShopMapper.class.getClassLoader(),
+                new Class<?>[]{ShopMapper.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("selectById")) {
+                        dbLoads.incrementAndGet();
+                        //放大数据库查询耗时，让请求都堆在未命中上
+                        Thread.sleep(100);
+                    }
+                    return method.invoke(shopMapper, args);
+                });
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch ready = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        AtomicInteger nullCount = new AtomicInteger(0);
+        AtomicLong maxCost = new AtomicLong(0);
+
+        for (int i = 0; i < threadCount; i++) {
+            executorService.submit(() -> {
+                try {
+                    ready.await();
+                    long start = System.nanoTime();
+                    Shop shop = redisUtil.getValueTTL(TEST_KEY_PREFIX, TEST_SHOP_ID, Shop.class, countingMapper);
+                    maxCost.accumulateAndGet(System.nanoTime() - start, Math::max);
+                    if (shop == null) {
+                        nullCount.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        ready.countDown();
+        latch.await();
+        executorService.shutdown();
+
+        System.out.println("并发请求数: " + threadCount + ", 查询数据库次数: " + dbLoads.get() + ", 返回null次数: " + nullCount.get()
+                + ", 最大耗时: " + maxCost.get() / 1_000_000 + " ms");
+        assertEquals(1, dbLoads.get());
+        assertEquals(0, nullCount.get());
+    }
 }
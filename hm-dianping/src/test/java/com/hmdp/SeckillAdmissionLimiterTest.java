@@ -0,0 +1,90 @@
+package com.hmdp;
+
+import com.hmdp.utils.SeckillAdmissionLimiter;
+import com.hmdp.utils.SeckillStockUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 秒杀准入限流：十倍于库存的突发请求只放进来 库存*系数 左右
+ */
+@SpringBootTest
+public class SeckillAdmissionLimiterTest {
+
+    @Autowired
+    private SeckillAdmissionLimiter seckillAdmissionLimiter;
+    @Autowired
+    private SeckillStockUtil seckillStockUtil;
+
+    private static final Long TEST_VOUCHER_ID = 9_000_003L;
+    private static final int STOCK = 100;
+
+    @BeforeEach
+    public void setUp() {
+        seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+        seckillStockUtil.initStock(TEST_VOUCHER_ID, STOCK, 1, null, null);
+        seckillAdmissionLimiter.reset(TEST_VOUCHER_ID);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+    }
+
+    @Test
+    public void testBurstIsCappedByStock() throws InterruptedException {
+        int requestCount = STOCK * 10;
+        AtomicInteger admitted = new AtomicInteger();
+        AtomicInteger busy = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        CountDownLatch latch = new CountDownLatch(requestCount);
+        for (int i = 0; i < requestCount; i++) {
+            final long userId = 4_000_000L + i;
+            executor.submit(() -> {
+                try {
+                    int result = seckillAdmissionLimiter.tryAdmit(TEST_VOUCHER_ID, userId);
+                    if (result == SeckillAdmissionLimiter.ADMITTED) {
+                        admitted.incrementAndGet();
+                    } else if (result == SeckillAdmissionLimiter.REJECTED_BUSY) {
+                        busy.incrementAndGet();
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        System.out.println("Requests: " + requestCount + ", admitted: " + admitted.get() + ", busy: " + busy.get());
+        System.out.println("Metrics: " + seckillAdmissionLimiter.metrics());
+        //桶容量是库存的3倍，加上排队期间补充的令牌，放进来的请求远少于突发请求数
+        assertTrue(admitted.get() >= STOCK, "Should admit at least the stock");
+        assertTrue(admitted.get() < requestCount, "Excess requests should be rejected");
+        assertEquals(requestCount, admitted.get() + busy.get());
+    }
+
+    @Test
+    public void testUserSlidingWindow() {
+        int admitted = 0;
+        int limited = 0;
+        for (int i = 0; i < 20; i++) {
+            int result = seckillAdmissionLimiter.tryAdmit(TEST_VOUCHER_ID, 7777L);
+            if (result == SeckillAdmissionLimiter.ADMITTED) admitted++;
+            if (result == SeckillAdmissionLimiter.REJECTED_USER) limited++;
+        }
+        System.out.println("Same user admitted: " + admitted + ", limited: " + limited);
+        assertEquals(5, admitted);
+        assertEquals(15, limited);
+    }
+}
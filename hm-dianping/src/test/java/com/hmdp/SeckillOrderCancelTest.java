@@ -0,0 +1,83 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillStockUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 未支付订单超时取消：直接调用取消方法，不等延时队列过期
+ */
+@SpringBootTest
+public class SeckillOrderCancelTest {
+
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+    @Autowired
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Autowired
+    private VoucherOrderMapper voucherOrderMapper;
+    @Autowired
+    private SeckillStockUtil seckillStockUtil;
+
+    private static final Long TEST_VOUCHER_ID = 11L;
+    private static final Long TEST_USER_ID = 7777L;
+    private static final int STOCK = 10;
+
+    @BeforeEach
+    public void setUp() {
+        voucherOrderMapper.delete(new LambdaQueryWrapper<VoucherOrder>());
+        SeckillVoucher seckillVoucher = seckillVoucherMapper.selectById(TEST_VOUCHER_ID);
+        if (seckillVoucher != null) {
+            seckillVoucher.setStock(STOCK);
+            seckillVoucherMapper.updateById(seckillVoucher);
+        } else {
+            seckillVoucher = new SeckillVoucher();
+            seckillVoucher.setVoucherId(TEST_VOUCHER_ID);
+            seckillVoucher.setStock(STOCK);
+            seckillVoucher.setCreateTime(java.time.LocalDateTime.now());
+            seckillVoucher.setBeginTime(java.time.LocalDateTime.now().minusDays(1));
+            seckillVoucher.setEndTime(java.time.LocalDateTime.now().plusDays(1));
+            seckillVoucherMapper.insert(seckillVoucher);
+        }
+        seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+        seckillStockUtil.initStock(TEST_VOUCHER_ID, STOCK, 1, null, null);
+    }
+
+    @Test
+    public void testCancelReturnsStockAndAllowsRebuy() {
+        //走一遍redis资格判断再下单，和正常流程一样
+        assertEquals(SeckillStockUtil.STATUS_OK, seckillStockUtil.tryAcquire(TEST_VOUCHER_ID, TEST_USER_ID));
+        voucherOrderService.getResult(5_000_001L, TEST_USER_ID, TEST_VOUCHER_ID);
+        assertEquals(STOCK - 1, seckillVoucherMapper.selectById(TEST_VOUCHER_ID).getStock());
+        assertEquals(STOCK - 1, seckillStockUtil.remainingStock(TEST_VOUCHER_ID));
+
+        assertTrue(voucherOrderService.cancelUnpaidOrder(5_000_001L));
+        //重复取消不会多还库存
+        assertFalse(voucherOrderService.cancelUnpaidOrder(5_000_001L));
+        assertEquals(4, voucherOrderMapper.selectById(5_000_001L).getStatus());
+        assertEquals(STOCK, seckillVoucherMapper.selectById(TEST_VOUCHER_ID).getStock());
+        assertEquals(STOCK, seckillStockUtil.remainingStock(TEST_VOUCHER_ID));
+
+        //取消后同一条消息重复投递，不能复活取消的订单
+        voucherOrderService.getResult(5_000_001L, TEST_USER_ID, TEST_VOUCHER_ID);
+        assertEquals(4, voucherOrderMapper.selectById(5_000_001L).getStatus());
+
+        //名额还回来了，可以重新抢
+        assertEquals(SeckillStockUtil.STATUS_OK, seckillStockUtil.tryAcquire(TEST_VOUCHER_ID, TEST_USER_ID));
+        voucherOrderService.getResult(5_000_002L, TEST_USER_ID, TEST_VOUCHER_ID);
+        //取消的订单保留
+        assertEquals(4, voucherOrderMapper.selectById(5_000_001L).getStatus());
+        assertEquals(1, voucherOrderMapper.selectById(5_000_002L).getStatus());
+        assertEquals(STOCK - 1, seckillVoucherMapper.selectById(TEST_VOUCHER_ID).getStock());
+    }
+}
@@ -0,0 +1,56 @@
+package com.hmdp;
+
+import com.hmdp.dto.SeckillOrderStatus;
+import com.hmdp.utils.SeckillOrderStatusCache;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 秒杀订单状态：写入、查询，以及通过发布订阅唤醒等待的请求
+ */
+@SpringBootTest
+public class SeckillOrderStatusCacheTest {
+
+    @Autowired
+    private SeckillOrderStatusCache seckillOrderStatusCache;
+
+    @Test
+    public void testWaiterIsWokenByStatusChange() throws Exception {
+        long orderId = 6_000_001L;
+        seckillOrderStatusCache.pending(orderId, 7777L);
+        assertEquals(SeckillOrderStatus.PENDING, seckillOrderStatusCache.get(orderId).getStatus());
+
+        CompletableFuture<SeckillOrderStatus> woken = new CompletableFuture<>();
+        seckillOrderStatusCache.await(orderId, woken::complete);
+        assertFalse(woken.isDone());
+
+        long start = System.nanoTime();
+        seckillOrderStatusCache.created(orderId, 7777L);
+        SeckillOrderStatus status = woken.get(5, TimeUnit.SECONDS);
+        System.out.println("Waiter woken after " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        assertEquals(SeckillOrderStatus.CREATED, status.getStatus());
+        assertEquals(7777L, status.getUserId());
+        //已经有结果了，重复投递的消息不能改成失败
+        seckillOrderStatusCache.failedIfPending(orderId, 7777L, "已经购买过了");
+        assertEquals(SeckillOrderStatus.CREATED, seckillOrderStatusCache.get(orderId).getStatus());
+    }
+
+    @Test
+    public void testAwaitAfterFinishedCompletesImmediately() throws Exception {
+        long orderId = 6_000_002L;
+        seckillOrderStatusCache.failed(orderId, 7777L, "库存扣除失败");
+
+        CompletableFuture<SeckillOrderStatus> woken = new CompletableFuture<>();
+        seckillOrderStatusCache.await(orderId, woken::complete);
+        SeckillOrderStatus status = woken.get(1, TimeUnit.SECONDS);
+        assertEquals(SeckillOrderStatus.FAILED, status.getStatus());
+        assertEquals("库存扣除失败", status.getReason());
+    }
+}
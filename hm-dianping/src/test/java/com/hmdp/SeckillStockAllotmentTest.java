@@ -0,0 +1,120 @@
+package com.hmdp;
+
+import com.hmdp.utils.SeckillStockAllotment;
+import com.hmdp.utils.SeckillStockUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 本地配额模式的超卖测试
+ * 同一个进程里创建多个SeckillStockAllotment当作多个节点，共用同一个redis库存和已购用户集合
+ */
+@SpringBootTest
+public class SeckillStockAllotmentTest {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private SeckillStockUtil seckillStockUtil;
+
+    private static final Long TEST_VOUCHER_ID = 9_000_002L;
+    private static final int STOCK = 5000;
+    private static final int NODE_COUNT = 4;
+    private static final int THREAD_COUNT = 64;
+    //不同用户数多于库存，另外每个用户重复请求一次
+    private static final int USER_COUNT = 6000;
+
+    private final List<SeckillStockAllotment> nodes = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown() {
+        for (SeckillStockAllotment node : nodes) {
+            node.shutdown();
+        }
+        seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+    }
+
+    @Test
+    public void testNoOversellAcrossNodes() throws InterruptedException {
+        seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+        seckillStockUtil.initStock(TEST_VOUCHER_ID, STOCK, 1, null, null);
+        for (int i = 0; i < NODE_COUNT; i++) {
+            nodes.add(new SeckillStockAllotment(stringRedisTemplate, seckillStockUtil, 200, 100));
+        }
+
+        Map<Long, AtomicInteger> successByUser = new ConcurrentHashMap<>();
+        AtomicInteger success = new AtomicInteger();
+        AtomicInteger bought = new AtomicInteger();
+        AtomicInteger soldOut = new AtomicInteger();
+        AtomicInteger error = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(USER_COUNT * 2);
+        for (int i = 0; i < USER_COUNT * 2; i++) {
+            final long userId = 3_000_000L + i % USER_COUNT;
+            //同一个用户的两次请求落在不同节点
+            final SeckillStockAllotment node = nodes.get(i % NODE_COUNT);
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    long status = node.tryAcquire(TEST_VOUCHER_ID, userId);
+                    if (status == SeckillStockUtil.STATUS_OK) {
+                        success.incrementAndGet();
+                        successByUser.computeIfAbsent(userId, k -> new AtomicInteger()).incrementAndGet();
+                    } else if (status == SeckillStockUtil.STATUS_BOUGHT) {
+                        bought.incrementAndGet();
+                    } else if (status == SeckillStockUtil.STATUS_SOLD_OUT) {
+                        soldOut.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    error.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long cost = System.nanoTime() - begin;
+        executor.shutdown();
+
+        long localLeft = 0;
+        for (SeckillStockAllotment node : nodes) {
+            localLeft += node.localRemaining(TEST_VOUCHER_ID);
+        }
+        //模拟秒杀结束，各节点归还本地库存
+        for (SeckillStockAllotment node : nodes) {
+            node.release(TEST_VOUCHER_ID);
+        }
+        long redisLeft = seckillStockUtil.remainingStock(TEST_VOUCHER_ID);
+        long maxPerUser = successByUser.values().stream().mapToInt(AtomicInteger::get).max().orElse(0);
+
+        System.out.println("\n========== Local Allotment ==========");
+        System.out.println("Nodes: " + NODE_COUNT + ", stock: " + STOCK + ", requests: " + USER_COUNT * 2);
+        System.out.println("Cost: " + cost / 1_000_000 + " ms, throughput: " + String.format("%.1f", USER_COUNT * 2 * 1e9 / cost) + " req/s");
+        System.out.println("Success: " + success.get() + ", bought: " + bought.get() + ", sold out: " + soldOut.get() + ", error: " + error.get());
+        System.out.println("Local stock before release: " + localLeft + ", redis stock after release: " + redisLeft);
+        System.out.println("=====================================\n");
+
+        assertTrue(success.get() <= STOCK, "Oversold");
+        assertEquals(1, maxPerUser, "One order per user");
+        assertEquals(STOCK, success.get() + redisLeft, "Sold + returned stock should equal initial stock");
+        assertEquals(0, error.get());
+    }
+}
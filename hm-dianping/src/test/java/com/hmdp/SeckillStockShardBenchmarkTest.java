@@ -0,0 +1,136 @@
+package com.hmdp;
+
+import com.hmdp.utils.SeckillStockUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 单key库存和分片库存的redis扣减吞吐对比
+ * 只跑资格判断这一段（lua扣库存+一人一单），不发mq
+ */
+@SpringBootTest
+public class SeckillStockShardBenchmarkTest {
+
+    @Autowired
+    private SeckillStockUtil seckillStockUtil;
+
+    private static final Long TEST_VOUCHER_ID = 9_000_001L;
+    private static final int STOCK = 5000;
+    //请求数多于库存，验证卖完之后不会超卖
+    private static final int REQUEST_COUNT = 8000;
+    private static final int THREAD_COUNT = 64;
+    private static final int SHARDS = 8;
+
+    @AfterEach
+    public void tearDown() {
+        seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+    }
+
+    @Test
+    public void testSingleKeyVsSharded() throws InterruptedException {
+        System.out.println("\n========== Single Key vs Sharded Stock ==========");
+        System.out.println("Stock: " + STOCK + ", requests: " + REQUEST_COUNT + ", threads: " + THREAD_COUNT + ", shards: " + SHARDS);
+
+        Run single = run(1, 1_000_000L);
+        Run sharded = run(SHARDS, 2_000_000L);
+
+        print("Single key", single);
+        print("Sharded", sharded);
+        System.out.println("\nSpeedup: " + String.format("%.2f", (double) single.cost / sharded.cost) + "x");
+        System.out.println("=================================================\n");
+
+        assertEquals(STOCK, single.success.get(), "Single key should sell exactly the stock");
+        assertEquals(STOCK, sharded.success.get(), "Sharded should sell exactly the stock");
+        assertEquals(0, single.remaining);
+        assertEquals(0, sharded.remaining);
+    }
+
+    @Test
+    public void testShardedOneOrderPerUser() {
+        seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+        seckillStockUtil.initStock(TEST_VOUCHER_ID, 10, SHARDS, null, null);
+
+        assertEquals(SeckillStockUtil.STATUS_OK, seckillStockUtil.tryAcquire(TEST_VOUCHER_ID, 7777L));
+        assertEquals(SeckillStockUtil.STATUS_BOUGHT, seckillStockUtil.tryAcquire(TEST_VOUCHER_ID, 7777L));
+        assertEquals(9, seckillStockUtil.remainingStock(TEST_VOUCHER_ID));
+    }
+
+    @Test
+    public void testTimeWindowCheckedInLua() {
+        for (int shards : new int[]{1, SHARDS}) {
+            seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+            seckillStockUtil.initStock(TEST_VOUCHER_ID, 10, shards,
+                    LocalDateTime.now().plusHours(1), LocalDateTime.now().plusHours(2));
+            assertEquals(SeckillStockUtil.STATUS_NOT_STARTED, seckillStockUtil.tryAcquire(TEST_VOUCHER_ID, 7777L));
+
+            seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+            seckillStockUtil.initStock(TEST_VOUCHER_ID, 10, shards,
+                    LocalDateTime.now().minusHours(2), LocalDateTime.now().minusHours(1));
+            assertEquals(SeckillStockUtil.STATUS_ENDED, seckillStockUtil.tryAcquire(TEST_VOUCHER_ID, 7777L));
+
+            //时间不对的请求不扣库存
+            assertEquals(10, seckillStockUtil.remainingStock(TEST_VOUCHER_ID));
+        }
+    }
+
+    private Run run(int shards, long userIdBase) throws InterruptedException {
+        seckillStockUtil.clearStock(TEST_VOUCHER_ID);
+        seckillStockUtil.initStock(TEST_VOUCHER_ID, STOCK, shards, null, null);
+
+        Run result = new Run();
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(REQUEST_COUNT);
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            final long userId = userIdBase + i;
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    long status = seckillStockUtil.tryAcquire(TEST_VOUCHER_ID, userId);
+                    if (status == SeckillStockUtil.STATUS_OK) {
+                        result.success.incrementAndGet();
+                    } else if (status == SeckillStockUtil.STATUS_SOLD_OUT) {
+                        result.soldOut.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    result.error.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        result.cost = System.nanoTime() - begin;
+        executor.shutdown();
+        result.remaining = seckillStockUtil.remainingStock(TEST_VOUCHER_ID);
+        return result;
+    }
+
+    private void print(String name, Run run) {
+        System.out.println("\n=== " + name + " ===");
+        System.out.println("Cost: " + run.cost / 1_000_000 + " ms");
+        System.out.println("Throughput: " + String.format("%.1f", REQUEST_COUNT * 1e9 / run.cost) + " req/s");
+        System.out.println("Success: " + run.success.get() + ", sold out: " + run.soldOut.get() + ", error: " + run.error.get());
+        System.out.println("Redis stock left: " + run.remaining);
+    }
+
+    private static class Run {
+        AtomicInteger success = new AtomicInteger();
+        AtomicInteger soldOut = new AtomicInteger();
+        AtomicInteger error = new AtomicInteger();
+        long cost;
+        long remaining;
+    }
+}
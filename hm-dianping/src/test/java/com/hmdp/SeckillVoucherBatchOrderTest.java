@@ -0,0 +1,129 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.IVoucherOrderService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 单条下单（getResult）和批量下单（getResultBatch）的数据库吞吐对比
+ * 直接调用消费者里的下单方法，绕开redis和mq，只比较数据库这一段
+ */
+@SpringBootTest
+public class SeckillVoucherBatchOrderTest {
+
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+    @Autowired
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Autowired
+    private VoucherOrderMapper voucherOrderMapper;
+
+    private static final Long TEST_VOUCHER_ID = 11L;
+    private static final int ORDER_COUNT = 2000;
+    private static final int BATCH_SIZE = 100;
+
+    @BeforeEach
+    public void setUp() {
+        resetStock();
+    }
+
+    @Test
+    public void testSingleVsBatchThroughput() {
+        System.out.println("\n========== Single vs Batch Order Writer ==========");
+        System.out.println("Orders: " + ORDER_COUNT + ", batch size: " + BATCH_SIZE);
+
+        List<VoucherOrder> singleOrders = buildOrders(1_000_000L);
+        long singleStart = System.nanoTime();
+        for (VoucherOrder order : singleOrders) {
+            voucherOrderService.getResult(order.getId(), order.getUserId(), order.getVoucherId());
+        }
+        long singleCost = System.nanoTime() - singleStart;
+        long singleCount = countOrders();
+        int singleStock = seckillVoucherMapper.selectById(TEST_VOUCHER_ID).getStock();
+
+        resetStock();
+
+        List<VoucherOrder> batchOrders = buildOrders(2_000_000L);
+        long batchStart = System.nanoTime();
+        for (int i = 0; i < batchOrders.size(); i += BATCH_SIZE) {
+            voucherOrderService.getResultBatch(batchOrders.subList(i, Math.min(i + BATCH_SIZE, batchOrders.size())));
+        }
+        long batchCost = System.nanoTime() - batchStart;
+        long batchCount = countOrders();
+        int batchStock = seckillVoucherMapper.selectById(TEST_VOUCHER_ID).getStock();
+
+        System.out.println("\n=== Single ===");
+        System.out.println("Cost: " + singleCost / 1_000_000 + " ms");
+        System.out.println("Throughput: " + String.format("%.1f", ORDER_COUNT * 1e9 / singleCost) + " orders/s");
+        System.out.println("Orders in DB: " + singleCount + ", DB stock left: " + singleStock);
+        System.out.println("\n=== Batch ===");
+        System.out.println("Cost: " + batchCost / 1_000_000 + " ms");
+        System.out.println("Throughput: " + String.format("%.1f", ORDER_COUNT * 1e9 / batchCost) + " orders/s");
+        System.out.println("Orders in DB: " + batchCount + ", DB stock left: " + batchStock);
+        System.out.println("\nSpeedup: " + String.format("%.2f", (double) singleCost / batchCost) + "x");
+        System.out.println("==================================================\n");
+
+        assertEquals(ORDER_COUNT, singleCount);
+        assertEquals(ORDER_COUNT, batchCount);
+        assertEquals(singleStock, batchStock, "Both paths should deduct the same stock");
+    }
+
+    @Test
+    public void testBatchSkipsDuplicateUsers() {
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            //同一个用户10条订单
+            orders.add(new VoucherOrder().setId(3_000_000L + i).setUserId(7777L).setVoucherId(TEST_VOUCHER_ID));
+        }
+        List<VoucherOrder> created = voucherOrderService.getResultBatch(orders);
+        //再来一批，已经下过单了
+        List<VoucherOrder> createdAgain = voucherOrderService.getResultBatch(orders.subList(0, 1));
+
+        System.out.println("Created in first batch: " + created.size() + ", second batch: " + createdAgain.size());
+        assertEquals(1, created.size());
+        assertEquals(0, createdAgain.size());
+        assertEquals(1, countOrders());
+    }
+
+    private List<VoucherOrder> buildOrders(long idBase) {
+        List<VoucherOrder> orders = new ArrayList<>(ORDER_COUNT);
+        for (int i = 0; i < ORDER_COUNT; i++) {
+            orders.add(new VoucherOrder().setId(idBase + i).setUserId(100_000L + i).setVoucherId(TEST_VOUCHER_ID));
+        }
+        return orders;
+    }
+
+    private long countOrders() {
+        return voucherOrderMapper.selectCount(
+                new LambdaQueryWrapper<VoucherOrder>().eq(VoucherOrder::getVoucherId, TEST_VOUCHER_ID));
+    }
+
+    private void resetStock() {
+        voucherOrderMapper.delete(new LambdaQueryWrapper<VoucherOrder>());
+        SeckillVoucher seckillVoucher = seckillVoucherMapper.selectById(TEST_VOUCHER_ID);
+        if (seckillVoucher != null) {
+            seckillVoucher.setStock(ORDER_COUNT);
+            seckillVoucherMapper.updateById(seckillVoucher);
+        } else {
+            seckillVoucher = new SeckillVoucher();
+            seckillVoucher.setVoucherId(TEST_VOUCHER_ID);
+            seckillVoucher.setStock(ORDER_COUNT);
+            seckillVoucher.setCreateTime(java.time.LocalDateTime.now());
+            seckillVoucher.setBeginTime(java.time.LocalDateTime.now().minusDays(1));
+            seckillVoucher.setEndTime(java.time.LocalDateTime.now().plusDays(1));
+            seckillVoucherMapper.insert(seckillVoucher);
+        }
+    }
+}
@@ -6,9 +6,12 @@ import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillAdmissionLimiter;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -18,7 +21,9 @@ import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -37,6 +42,12 @@ public class SeckillVoucherHighConcurrencyTest {
     private VoucherOrderMapper voucherOrderMapper;
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
+    @Autowired
+    private SeckillAdmissionLimiter seckillAdmissionLimiter;
 
     private static final Long TEST_VOUCHER_ID = 11L;
     private static final String STOCK_KEY = "stock:seckillVoucher::" + TEST_VOUCHER_ID;
@@ -63,6 +74,9 @@ public class SeckillVoucherHighConcurrencyTest {
         stringRedisTemplate.delete(STOCK_KEY);
         stringRedisTemplate.delete(ORDER_USER_KEY);
         stringRedisTemplate.opsForValue().set(STOCK_KEY, "100");
+        //直接改了redis库存，上一个用例留下的售罄标记和限流状态要手动清掉
+        soldOutRegistry.clear(TEST_VOUCHER_ID);
+        seckillAdmissionLimiter.reset(TEST_VOUCHER_ID);
     }
 
     @Test
@@ -599,6 +613,9 @@ public class SeckillVoucherHighConcurrencyTest {
         stringRedisTemplate.delete(STOCK_KEY);
         stringRedisTemplate.delete(ORDER_USER_KEY);
         stringRedisTemplate.opsForValue().set(STOCK_KEY, "100");
+        //直接改了redis库存，上一个用例留下的售罄标记和限流状态要手动清掉
+        soldOutRegistry.clear(TEST_VOUCHER_ID);
+        seckillAdmissionLimiter.reset(TEST_VOUCHER_ID);
         
         voucherOrderMapper.delete(new LambdaQueryWrapper<VoucherOrder>());
         
@@ -736,8 +753,86 @@ public class SeckillVoucherHighConcurrencyTest {
         assertEquals(1, sameUserOrderCount, "Same user should only create 1 order");
     }
 
-    private void waitForMessageProcessing() throws InterruptedException {
-        Thread.sleep(5000);
+    /**
+     * 绕开lua直接往队列里投消息，只看消费者一侧的竞争：
+     * 99个不同用户抢同一张优惠卷（优惠卷级别竞争），同一个用户重复投100条（用户级别竞争）
+     * 去掉优惠卷级别的锁之后，前者应该全部成功，后者只靠唯一索引留下一单
+     */
+    @Test
+    public void testConsumerContentionWithoutLock() throws InterruptedException {
+        int differentUserCount = 99;
+        int sameUserMessages = 100;
+        Long sameUserId = 7777L;
+
+        System.out.println("\n========== Consumer Contention (no voucher lock) ==========");
+        long orderIdBase = System.currentTimeMillis() << 12;
+        int messages = 0;
+        for (int i = 0; i < differentUserCount; i++) {
+            sendOrderMessage(orderIdBase + messages++, 6000L + i);
+        }
+        for (int i = 0; i < sameUserMessages; i++) {
+            sendOrderMessage(orderIdBase + messages++, sameUserId);
+        }
+        System.out.println("Messages sent: " + messages);
+
+        long drainMs = waitForMessageProcessing();
+
+        SeckillVoucher seckillVoucher = seckillVoucherMapper.selectById(TEST_VOUCHER_ID);
+        int stock = seckillVoucher != null ? seckillVoucher.getStock() : -1;
+        long orderCount = voucherOrderMapper.selectCount(
+                new LambdaQueryWrapper<VoucherOrder>()
+                        .eq(VoucherOrder::getVoucherId, TEST_VOUCHER_ID)
+        );
+        long sameUserOrderCount = voucherOrderMapper.selectCount(
+                new LambdaQueryWrapper<VoucherOrder>()
+                        .eq(VoucherOrder::getVoucherId, TEST_VOUCHER_ID)
+                        .eq(VoucherOrder::getUserId, sameUserId)
+        );
+
+        System.out.println("\n=== Final Result ===");
+        System.out.println("Voucher-level: " + differentUserCount + " users -> orders " + (orderCount - sameUserOrderCount));
+        System.out.println("User-level: " + sameUserMessages + " messages -> orders " + sameUserOrderCount
+                + " (duplicates rejected by unique key: " + (sameUserMessages - sameUserOrderCount) + ")");
+        System.out.println("Consumer throughput: " + (drainMs > 0 ? String.format("%.1f", messages * 1000.0 / drainMs) : "n/a") + " msg/s");
+        System.out.println("Final DB stock: " + stock);
+        System.out.println("===========================================================\n");
+
+        assertEquals(differentUserCount + 1, orderCount, "Every distinct user should get an order");
+        assertEquals(1, sameUserOrderCount, "Same user should only create 1 order");
+        assertEquals(0, stock);
+    }
+
+    private void sendOrderMessage(long orderId, Long userId) {
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("orderId", orderId);
+        msg.put("voucherId", TEST_VOUCHER_ID);
+        msg.put("userId", userId);
+        rabbitTemplate.convertAndSend("seckillVoucherQueue_1", msg);
+    }
+
+    /**
+     * 轮询订单数，连续1秒不再变化就认为消费完了
+     * @return 消费者写完最后一条订单所花的时间（毫秒）
+     */
+    private long waitForMessageProcessing() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long lastCount = -1;
+        long lastChange = start;
+        while (System.currentTimeMillis() - start < 30000) {
+            long count = voucherOrderMapper.selectCount(
+                    new LambdaQueryWrapper<VoucherOrder>().eq(VoucherOrder::getVoucherId, TEST_VOUCHER_ID));
+            long now = System.currentTimeMillis();
+            if (count != lastCount) {
+                lastCount = count;
+                lastChange = now;
+            } else if (now - lastChange >= 1000) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        long drainMs = lastChange - start;
+        System.out.println("Consumer drain time: " + drainMs + " ms, orders written: " + lastCount);
+        return drainMs;
     }
 
     private void mockUserHolder(Long userId) {
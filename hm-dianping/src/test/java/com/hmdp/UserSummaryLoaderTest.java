@@ -0,0 +1,82 @@
+package com.hmdp;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.User;
+import com.hmdp.mapper.UserMapper;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.UserSummaryLoader;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 用户摘要批量加载：一次查出整批用户，第二次走缓存，改资料后缓存失效
+ */
+@SpringBootTest
+public class UserSummaryLoaderTest {
+
+    private static final String USER_SUMMARY_KEY = "cache:user:summary::";
+
+    @Autowired
+    private UserSummaryLoader userSummaryLoader;
+
+    @Autowired
+    private IUserService userService;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void testLoadAllAndEvict() {
+        List<User> users = userMapper.selectList(null);
+        assertFalse(users.isEmpty());
+        List<Long> ids = new ArrayList<>();
+        for (User user : users.subList(0, Math.min(users.size(), 10))) {
+            ids.add(user.getId());
+            userSummaryLoader.evict(user.getId());
+        }
+        //不存在的用户不在结果里
+        ids.add(-1L);
+
+        long start = System.nanoTime();
+        Map<Long, UserDTO> loaded = userSummaryLoader.loadAll(ids);
+        long cold = System.nanoTime() - start;
+        start = System.nanoTime();
+        Map<Long, UserDTO> cached = userSummaryLoader.loadAll(ids);
+        long warm = System.nanoTime() - start;
+        System.out.println("用户数:" + (ids.size() - 1) + "，查数据库:" + cold / 1000 + "us，走缓存:" + warm / 1000 + "us");
+
+        assertEquals(ids.size() - 1, loaded.size());
+        assertEquals(loaded.keySet(), cached.keySet());
+        assertFalse(loaded.containsKey(-1L));
+        User first = users.get(0);
+        assertEquals(first.getNickName(), cached.get(first.getId()).getNickName());
+        assertEquals(Boolean.TRUE, stringRedisTemplate.hasKey(USER_SUMMARY_KEY + first.getId()));
+
+        //改资料后缓存删除，下次读到新昵称
+        String nickName = first.getNickName();
+        try {
+            User update = new User();
+            update.setId(first.getId());
+            update.setNickName(nickName + "_new");
+            assertTrue(userService.updateById(update));
+            assertEquals(Boolean.FALSE, stringRedisTemplate.hasKey(USER_SUMMARY_KEY + first.getId()));
+            assertEquals(nickName + "_new", userSummaryLoader.load(first.getId()).getNickName());
+        } finally {
+            User restore = new User();
+            restore.setId(first.getId());
+            restore.setNickName(nickName);
+            userService.updateById(restore);
+        }
+    }
+}